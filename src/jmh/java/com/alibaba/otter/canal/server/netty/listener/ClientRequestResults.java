@@ -0,0 +1,34 @@
+package com.alibaba.otter.canal.server.netty.listener;
+
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import com.google.protobuf.GeneratedMessageV3;
+
+/**
+ * The setters of {@link ChannelFutureAggregator.ClientRequestResult.Builder} are package private,
+ * benchmarks build their synthetic requests through here.
+ */
+public final class ClientRequestResults {
+
+    private ClientRequestResults() {
+    }
+
+    public static ChannelFutureAggregator.ClientRequestResult of(String destination, CanalPacket.PacketType type,
+                                                                 int amount, long latency, short errorCode,
+                                                                 boolean empty) {
+        return of(destination, type, amount, latency, errorCode, empty, null);
+    }
+
+    public static ChannelFutureAggregator.ClientRequestResult of(String destination, CanalPacket.PacketType type,
+                                                                 int amount, long latency, short errorCode,
+                                                                 boolean empty, GeneratedMessageV3 request) {
+        return new ChannelFutureAggregator.ClientRequestResult.Builder()
+                .destination(destination)
+                .type(type)
+                .request(request)
+                .amount(amount)
+                .latency(latency)
+                .errorCode(errorCode)
+                .empty(empty)
+                .build();
+    }
+}
@@ -0,0 +1,71 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.protocol.CanalEntry;
+import com.alibaba.otter.canal.protocol.position.LogIdentity;
+import com.alibaba.otter.canal.store.model.Event;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sink batches shaped like production traffic: transactions of a few row events, over tables whose traffic
+ * is skewed towards the first ones, stored raw as the memory store does by default.
+ */
+public final class BenchmarkEvents {
+    private static final CanalEntry.EventType[] DML = {
+            CanalEntry.EventType.INSERT, CanalEntry.EventType.INSERT, CanalEntry.EventType.UPDATE,
+            CanalEntry.EventType.UPDATE, CanalEntry.EventType.UPDATE, CanalEntry.EventType.DELETE
+    };
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @param size        Number of events of the batch.
+     * @param tables      Number of distinct tables.
+     * @param executeTime Execute time of the first event, the others follow a millisecond apart.
+     */
+    public static List<Event> batch(int size, int tables, long executeTime, Random random) {
+        final List<Event> events = new ArrayList<>(size);
+        long position = 4;
+        while (events.size() < size) {
+            final long time = executeTime + events.size();
+            events.add(event(CanalEntry.EntryType.TRANSACTIONBEGIN, CanalEntry.EventType.QUERY, null, position, time, 0));
+            final int rows = 1 + random.nextInt(8);
+            for (int i = 0; i < rows && events.size() < size - 1; i++) {
+                // cube of a uniform variable, a handful of tables take most of the events
+                final double r = random.nextDouble();
+                final int table = (int) (tables * r * r * r);
+                position += 200;
+                events.add(event(CanalEntry.EntryType.ROWDATA, DML[random.nextInt(DML.length)], "table_" + table,
+                        position, time, 1 + random.nextInt(20)));
+            }
+            events.add(event(CanalEntry.EntryType.TRANSACTIONEND, CanalEntry.EventType.QUERY, null, position, time, 0));
+        }
+        return events;
+    }
+
+    private static Event event(CanalEntry.EntryType entryType, CanalEntry.EventType eventType, String table,
+                               long position, long executeTime, int rows) {
+        final CanalEntry.Header.Builder header = CanalEntry.Header.newBuilder()
+                .setLogfileName("mysql-bin.000042")
+                .setLogfileOffset(position)
+                .setServerId(1L)
+                .setExecuteTime(executeTime)
+                .setSchemaName("canal_bench")
+                .setEventType(eventType)
+                .setEventLength(200L);
+        if (table != null) {
+            header.setTableName(table);
+            header.addProps(CanalEntry.Pair.newBuilder().setKey("rowsCount").setValue(String.valueOf(rows)));
+        }
+        final CanalEntry.Entry entry = CanalEntry.Entry.newBuilder()
+                .setHeader(header)
+                .setEntryType(entryType)
+                .setStoreValue(ByteString.copyFrom(new byte[64 + rows * 48]))
+                .build();
+        return new Event(new LogIdentity(), entry, true);
+    }
+}
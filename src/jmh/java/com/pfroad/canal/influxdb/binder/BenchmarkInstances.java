@@ -0,0 +1,83 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.meta.MemoryMetaManager;
+import com.alibaba.otter.canal.parse.inbound.mysql.MysqlEventParser;
+import com.alibaba.otter.canal.protocol.ClientIdentity;
+import com.alibaba.otter.canal.sink.CanalEventDownStreamHandler;
+import com.alibaba.otter.canal.sink.entry.EntryEventSink;
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+import com.alibaba.otter.canal.store.model.Event;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Canal instances made of the real store, sink, parser and meta manager, with nothing running, enough for the
+ * binders to register and evaluate their meters.
+ */
+public final class BenchmarkInstances {
+
+    /**
+     * Default options, with the table counters and the transaction tracker enabled.
+     */
+    public static final CanalInfluxConfig CONFIG = k -> null;
+
+    private BenchmarkInstances() {
+    }
+
+    public static CanalInstance of(String destination) {
+        final MemoryEventStoreWithBuffer store = new MemoryEventStoreWithBuffer();
+        store.setBufferSize(16 * 1024);
+        store.start();
+        final EntryEventSink sink = new EntryEventSink();
+        sink.setEventStore(store);
+        final MysqlEventParser parser = new MysqlEventParser();
+        final MemoryMetaManager meta = new MemoryMetaManager();
+        meta.start();
+        meta.subscribe(new ClientIdentity(destination, (short) 1001));
+
+        return (CanalInstance) Proxy.newProxyInstance(CanalInstance.class.getClassLoader(),
+                new Class<?>[] {CanalInstance.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getDestination":
+                            return destination;
+                        case "getEventStore":
+                            return store;
+                        case "getEventSink":
+                            return sink;
+                        case "getEventParser":
+                            return parser;
+                        case "getMetaManager":
+                            return meta;
+                        case "isStart":
+                            return true;
+                        case "subscribeChange":
+                            return false;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return destination;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * Puts a batch into the store of the instance and passes it through its downstream handlers, as the sink does.
+     */
+    @SuppressWarnings("unchecked")
+    public static void sink(CanalInstance instance, int size, Random random) {
+        final List<Event> events = BenchmarkEvents.batch(size, 50, System.currentTimeMillis() - 1000, random);
+        final EntryEventSink sink = (EntryEventSink) instance.getEventSink();
+        for (CanalEventDownStreamHandler handler : sink.getHandlers()) {
+            handler.before(events);
+        }
+        ((MemoryEventStoreWithBuffer) instance.getEventStore()).tryPut(events);
+    }
+}
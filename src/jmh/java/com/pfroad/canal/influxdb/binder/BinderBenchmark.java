@@ -0,0 +1,72 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluation of every gauge and function counter the binders register on a {@code MemoryEventStoreWithBuffer}
+ * backed instance, which is what the publishing thread pays for each step before serializing anything.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinderBenchmark {
+
+    @Param({"1", "100"})
+    private int destinations;
+
+    private List<Meter>  meters;
+    private CachedGauges cachedGauges;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final InfluxClientInstanceProfiler profiler = new InfluxClientInstanceProfiler(registry, new AdaptiveSampler(0L),
+                BenchmarkInstances.CONFIG);
+        final Random random = new Random(42);
+        cachedGauges = new CachedGauges(30000L, 0.1, 2, 10000L);
+        for (int d = 0; d < destinations; d++) {
+            final CanalInstance instance = BenchmarkInstances.of("destination-" + d);
+            new CanalInstanceMetrics(instance, profiler, BenchmarkInstances.CONFIG, cachedGauges).bindTo(registry);
+            BenchmarkInstances.sink(instance, 512, random);
+        }
+        meters = registry.getMeters();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cachedGauges.close();
+    }
+
+    @Benchmark
+    public void measure(Blackhole bh) {
+        for (Meter meter : meters) {
+            for (Measurement measurement : meter.measure()) {
+                bh.consume(measurement.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import com.alibaba.otter.canal.server.netty.listener.ChannelFutureAggregator.ClientRequestResult;
+import com.alibaba.otter.canal.server.netty.listener.ClientRequestResults;
+import com.google.protobuf.GeneratedMessageV3;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steady state cost of {@link InfluxClientInstanceProfiler#profiling}, from four threads sharing the destinations
+ * as Netty workers do. Run with {@code -prof gc}: {@code gc.alloc.rate.norm} should stay at ~0 bytes per
+ * operation once the destinations are resolved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ClientProfilerBenchmark {
+
+    @Param({"1", "10", "500"})
+    private int destinations;
+
+    private InfluxClientInstanceProfiler profiler;
+    private ClientRequestResult[]        results;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        profiler = new InfluxClientInstanceProfiler(new SimpleMeterRegistry(), new AdaptiveSampler(0L),
+                BenchmarkInstances.CONFIG);
+        profiler.start();
+
+        final CanalPacket.PacketType[] types = {CanalPacket.PacketType.GET, CanalPacket.PacketType.CLIENTACK};
+        results = new ClientRequestResult[destinations * types.length * 2];
+        int i = 0;
+        for (int d = 0; d < destinations; d++) {
+            final String destination = "destination-" + d;
+            final GeneratedMessageV3 get = CanalPacket.Get.newBuilder()
+                    .setDestination(destination).setClientId("1001").setFetchSize(1000).build();
+            final GeneratedMessageV3 ack = CanalPacket.ClientAck.newBuilder()
+                    .setDestination(destination).setClientId("1001").build();
+            for (CanalPacket.PacketType type : types) {
+                final GeneratedMessageV3 request = type == CanalPacket.PacketType.GET ? get : ack;
+                results[i++] = ClientRequestResults.of(destination, type, 4096, 1500000L, (short) 0, false, request);
+                results[i++] = ClientRequestResults.of(destination, type, 64, 200000L, (short) 0, true, request);
+            }
+        }
+        // resolve every destination before measuring
+        for (ClientRequestResult result : results) {
+            profiler.profiling(result);
+        }
+    }
+
+    @Benchmark
+    public void profiling(Cursor cursor) {
+        final ClientRequestResult[] rs = results;
+        int i = cursor.next;
+        if (++i == rs.length) {
+            i = 0;
+        }
+        cursor.next = i;
+        profiler.profiling(rs[i]);
+    }
+
+    /**
+     * Each thread walks the requests from its own offset.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ClientProfilerBenchmark benchmark) {
+            next = (int) (Thread.currentThread().getId() * 7919 % benchmark.results.length);
+        }
+    }
+}
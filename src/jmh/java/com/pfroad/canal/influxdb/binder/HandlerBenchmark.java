@@ -0,0 +1,85 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.store.model.Event;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link InfluxCanalEventDownStreamHandler#before} per sunk batch, with the lag timer, the transaction
+ * tracker and the table counters on. 2000 tables keeps the tracked set full, so tables are turned away and
+ * forgotten every ranking.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+
+    private static final int BATCHES = 16;
+
+    @Param({"128", "1024"})
+    private int batchSize;
+
+    @Param({"50", "2000"})
+    private int tables;
+
+    @Param({"0", "1000000"})
+    private long samplingBudget;
+
+    private InfluxCanalEventDownStreamHandler handler;
+    private List<Event>[]                     batches;
+    private int                               next;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final Tags tags = Tags.of(CanalInstanceMetrics.DESTINATION, "destination-0");
+        handler = new InfluxCanalEventDownStreamHandler(
+                "destination-0",
+                Timer.builder("canal.instance.traffic.lag").publishPercentiles(0.5, 0.9, 0.99, 0.999).tags(tags).register(registry),
+                Counter.builder("canal.instance.traffic.lag.events").tags(tags).register(registry),
+                new TransactionTracker(registry, tags, "destination-0", 100000L),
+                new TableTraffic(registry, tags, 20, 100L),
+                new AdaptiveSampler(samplingBudget),
+                new HookTime(registry, tags, "before"),
+                null);
+
+        final Random random = new Random(42);
+        batches = new List[BATCHES];
+        for (int i = 0; i < BATCHES; i++) {
+            batches[i] = BenchmarkEvents.batch(batchSize, tables, System.currentTimeMillis(), random);
+        }
+    }
+
+    @Benchmark
+    public List<Event> before() {
+        int i = next;
+        if (++i == BATCHES) {
+            i = 0;
+        }
+        next = i;
+        return handler.before(batches[i]);
+    }
+}
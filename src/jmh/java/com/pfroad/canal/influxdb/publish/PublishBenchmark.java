@@ -0,0 +1,127 @@
+package com.pfroad.canal.influxdb.publish;
+
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.influx.InfluxConfig;
+import io.micrometer.influx.InfluxLineProtocol;
+import io.micrometer.influx.InfluxMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One step of serialization, micrometer's String based {@link InfluxMeterRegistry} against
+ * {@link CanalInfluxMeterRegistry}, over the same series and with a sender that only counts the bytes.
+ * Run with {@code -prof gc} to compare {@code gc.alloc.rate.norm} per step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+    @Param({"10000", "50000"})
+    private int series;
+
+    @Param({"false", "true"})
+    private boolean compressed;
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private InfluxMeterRegistry      micrometer;
+    private CanalInfluxMeterRegistry canal;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final HttpSender sender = request -> {
+            sentBytes.addAndGet(request.getEntity().length);
+            return new HttpSender.Response(204, null);
+        };
+        micrometer = InfluxMeterRegistry.builder(config()).httpClient(sender).build();
+        canal = new CanalInfluxMeterRegistry(config(), Clock.SYSTEM, sender);
+        populate(micrometer);
+        populate(canal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        micrometer.close();
+        canal.close();
+    }
+
+    @Benchmark
+    public void micrometer() {
+        InfluxLineProtocol.publish(micrometer);
+    }
+
+    @Benchmark
+    public void encoder() {
+        canal.publish();
+    }
+
+    private CanalInfluxConfig config() {
+        return new CanalInfluxConfig() {
+            @Override
+            public String get(String k) {
+                switch (k) {
+                    case "influx.enabled":
+                    case "influx.autoCreateDb":
+                        return "false";
+                    case "influx.compressed":
+                        return String.valueOf(compressed);
+                    default:
+                        return null;
+                }
+            }
+        };
+    }
+
+    private void populate(MeterRegistry registry) {
+        registry.config().commonTags("app", "canal", "host", "canal-node-01");
+        for (int i = 0; i < series; i++) {
+            final String destination = "destination-" + (i % 500);
+            final String table = "schema_" + (i % 7) + ".table_" + i;
+            switch (i % 5) {
+                case 0:
+                case 1:
+                    Counter.builder("canal.instance.table.rows")
+                            .tags("destination", destination, "table", table)
+                            .register(registry)
+                            .increment(i * 31);
+                    break;
+                case 2:
+                case 3:
+                    Gauge.builder("canal.instance.store.occupancy", i, (v) -> v * 0.001)
+                            .tags("destination", destination, "table", table)
+                            .register(registry);
+                    break;
+                default:
+                    Timer.builder("canal.instance.client.request.latency")
+                            .tags("destination", destination, "packetType", table)
+                            .register(registry)
+                            .record(i % 1000, TimeUnit.MILLISECONDS);
+                    break;
+            }
+        }
+    }
+}
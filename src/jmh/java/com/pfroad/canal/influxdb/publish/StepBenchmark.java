@@ -0,0 +1,101 @@
+package com.pfroad.canal.influxdb.publish;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import com.alibaba.otter.canal.server.netty.listener.ClientRequestResults;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import com.pfroad.canal.influxdb.binder.AdaptiveSampler;
+import com.pfroad.canal.influxdb.binder.BenchmarkInstances;
+import com.pfroad.canal.influxdb.binder.CachedGauges;
+import com.pfroad.canal.influxdb.binder.CanalInstanceMetrics;
+import com.pfroad.canal.influxdb.binder.InfluxClientInstanceProfiler;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One publish of the registry holding the meters the plugin really registers, every binder, the client meters,
+ * the table counters and the transaction histograms of each destination, into a sender that only counts bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+    @Param({"10", "200"})
+    private int destinations;
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private CanalInfluxMeterRegistry registry;
+    private CachedGauges             cachedGauges;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        final CanalInfluxConfig config = k -> {
+            switch (k) {
+                case "influx.enabled":
+                case "influx.autoCreateDb":
+                    return "false";
+                case "influx.step":
+                    return "PT1S";
+                default:
+                    return null;
+            }
+        };
+        registry = new CanalInfluxMeterRegistry(config, Clock.SYSTEM, request -> {
+            sentBytes.addAndGet(request.getEntity().length);
+            return new HttpSender.Response(204, null);
+        });
+        final InfluxClientInstanceProfiler profiler = new InfluxClientInstanceProfiler(registry, new AdaptiveSampler(0L),
+                config);
+        cachedGauges = new CachedGauges(30000L, 0.1, 2, 10000L);
+        final CanalInstance[] instances = new CanalInstance[destinations];
+        for (int d = 0; d < destinations; d++) {
+            instances[d] = BenchmarkInstances.of("destination-" + d);
+            new CanalInstanceMetrics(instances[d], profiler, config, cachedGauges).bindTo(registry);
+        }
+
+        // two table rankings, so that every destination publishes its top tables
+        final Random random = new Random(42);
+        for (int round = 0; round < 2; round++) {
+            Thread.sleep(1100);
+            for (CanalInstance instance : instances) {
+                BenchmarkInstances.sink(instance, 1024, random);
+                for (CanalPacket.PacketType type : new CanalPacket.PacketType[] {CanalPacket.PacketType.GET, CanalPacket.PacketType.CLIENTACK}) {
+                    profiler.profiling(ClientRequestResults.of(instance.getDestination(), type, 4096, 1500000L, (short) 0, false));
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        registry.close();
+        cachedGauges.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        registry.publish();
+    }
+}
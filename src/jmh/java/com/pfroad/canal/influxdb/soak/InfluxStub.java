@@ -0,0 +1,152 @@
+package com.pfroad.canal.influxdb.soak;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Influx endpoint in the same process, answering {@code /query} and {@code /write} and decoding the line protocol
+ * of the writes. The values of the counter series of the destinations are summed per measurement and destination, so that they can be
+ * compared with the totals the load generated. The tags of the harness carry no escaped characters.
+ */
+class InfluxStub implements AutoCloseable {
+    private static final String DESTINATION = "destination=";
+    private static final String COUNTER     = "metric_type=counter";
+    private static final String VALUE       = "value=";
+
+    private final HttpServer      server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor((r) -> new Thread(r, "soak-influx-stub"));
+
+    private final Map<String, Map<String, Double>> counters = new HashMap<>();
+    private long writes;
+    private long lines;
+    private long bytes;
+    private long malformed;
+
+    InfluxStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.setExecutor(executor);
+        server.createContext("/query", (exchange) -> respond(exchange, 200));
+        server.createContext("/write", (exchange) -> {
+            final byte[] body = read(exchange);
+            write(new String(body, StandardCharsets.UTF_8), body.length);
+            respond(exchange, 204);
+        });
+        server.start();
+    }
+
+    String uri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private synchronized void write(String body, int length) {
+        writes++;
+        bytes += length;
+        int from = 0;
+        while (from < body.length()) {
+            int to = body.indexOf('\n', from);
+            if (to < 0) {
+                to = body.length();
+            }
+            if (to > from) {
+                line(body.substring(from, to));
+            }
+            from = to + 1;
+        }
+    }
+
+    private void line(String line) {
+        lines++;
+        final int fields = line.indexOf(' ');
+        final int timestamp = line.lastIndexOf(' ');
+        if (fields <= 0 || timestamp <= fields) {
+            malformed++;
+            return;
+        }
+        final String series = line.substring(0, fields);
+        if (!series.endsWith(COUNTER)) {
+            return;
+        }
+        final int tag = series.indexOf(DESTINATION);
+        if (tag < 0) {
+            return;
+        }
+        final int value = line.indexOf(VALUE, fields);
+        if (value < 0) {
+            malformed++;
+            return;
+        }
+        final int tagEnd = series.indexOf(',', tag);
+        final String destination = series.substring(tag + DESTINATION.length(), tagEnd < 0 ? series.length() : tagEnd);
+        int valueEnd = line.indexOf(',', value);
+        if (valueEnd < 0 || valueEnd > timestamp) {
+            valueEnd = timestamp;
+        }
+        try {
+            final double v = Double.parseDouble(line.substring(value + VALUE.length(), valueEnd));
+            counters.computeIfAbsent(series.substring(0, series.indexOf(',')).replace('.', '_'), (k) -> new HashMap<>())
+                    .merge(destination, v, Double::sum);
+        } catch (NumberFormatException e) {
+            malformed++;
+        }
+    }
+
+    /**
+     * @return Sum of the values written to the counter of the destination, 0 when none were.
+     */
+    synchronized double counter(String measurement, String destination) {
+        final Map<String, Double> byDestination = counters.get(measurement);
+        final Double sum = byDestination == null ? null : byDestination.get(destination);
+        return sum == null ? 0 : sum;
+    }
+
+    synchronized long getWrites() {
+        return writes;
+    }
+
+    synchronized long getLines() {
+        return lines;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getMalformed() {
+        return malformed;
+    }
+
+    private static byte[] read(HttpExchange exchange) throws IOException {
+        final boolean gzip = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        try (InputStream in = gzip ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
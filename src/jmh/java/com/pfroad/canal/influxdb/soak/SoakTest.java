@@ -0,0 +1,626 @@
+package com.pfroad.canal.influxdb.soak;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.protocol.CanalEntry;
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import com.alibaba.otter.canal.server.netty.listener.ClientRequestResults;
+import com.alibaba.otter.canal.sink.CanalEventDownStreamHandler;
+import com.alibaba.otter.canal.sink.entry.EntryEventSink;
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+import com.alibaba.otter.canal.store.model.Event;
+import com.alibaba.otter.canal.store.model.Events;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import com.pfroad.canal.influxdb.binder.AdaptiveSampler;
+import com.pfroad.canal.influxdb.binder.BenchmarkEvents;
+import com.pfroad.canal.influxdb.binder.BenchmarkInstances;
+import com.pfroad.canal.influxdb.binder.CachedGauges;
+import com.pfroad.canal.influxdb.binder.CanalInstanceMetrics;
+import com.pfroad.canal.influxdb.binder.InfluxClientInstanceProfiler;
+import com.pfroad.canal.influxdb.publish.CanalInfluxMeterRegistry;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load harness running the plugin at production scale outside of canal: destinations made of the real memory
+ * store, entry sink and downstream handler, producer threads putting synthetic batches through the handlers as the
+ * sink does, consumer threads getting and acking them as the netty server does and passing their requests to the
+ * client profiler, and the registry publishing to an {@link InfluxStub}.
+ * <p>
+ * Once the load stops and the last steps are published, it reports the share of the cpu spent by the plugin, the
+ * allocation rates, the publish durations, and checks the counters received by the stub against the totals the load
+ * generated. Options are given as {@code --name=value}, see {@link #OPTIONS}; the {@code --influx.*} ones are passed
+ * to the registry. The process exits with 1 when a check fails.
+ * <p>
+ * The plugin cpu is the cpu time of the load threads within the hooks plus that of the threads of the plugin,
+ * checked against all the cores over the run: the synthetic load costs next to nothing compared to parsing binlog,
+ * so the share of the process would say little about a real server.
+ * <p>
+ * The batches are generated once and put over and over, the store counts by item and the acks go by sequence, so
+ * repeated positions do not matter.
+ */
+public final class SoakTest {
+
+    private static final String[][] OPTIONS = {
+            {"destinations", "100", "number of destinations"},
+            {"eventsPerSecond", "1000000", "events put per second over all destinations, 0 for as many as possible"},
+            {"batchSize", "256", "events per put"},
+            {"producers", "4", "threads putting into the stores"},
+            {"consumers", "4", "threads getting and acking"},
+            {"fetchSize", "1024", "events per get"},
+            {"duration", "PT60S", "duration of the load"},
+            {"step", "PT5S", "publish step"},
+            {"churn", "0", "destinations replaced per step, their meters must be gone at the end"},
+            {"maxCpuShare", "0.05", "highest share of the cpu of the machine spent by the plugin"},
+            {"maxPublishMillis", "1000", "longest publish"},
+    };
+
+    private static final int    BATCHES   = 64;
+    private static final int    TABLES    = 50;
+    private static final String CLIENT_ID = "1001";
+    private static final String PLUGIN    = "influx-";
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * What reading the cpu time of the thread adds to what is measured between two reads.
+     */
+    private static final long CPU_TIME_COST = cpuTimeCost();
+
+    private final Map<String, String>          options;
+    private final InfluxStub                   stub;
+    private final CanalInfluxMeterRegistry     registry;
+    private final InfluxClientInstanceProfiler profiler;
+    private final CachedGauges                 cachedGauges;
+    private final CanalInfluxConfig            config;
+    private final List<List<Event>>            batches      = new ArrayList<>(BATCHES);
+    private final int[]                        transactions = new int[BATCHES];
+    private final AtomicReferenceArray<Lane>   lanes;
+    private final List<Lane>                   retired      = new ArrayList<>();
+    private final List<Worker>                 workers      = new ArrayList<>();
+    private final List<String>                 failures     = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    private SoakTest(Map<String, String> options) throws Exception {
+        this.options = options;
+        this.stub = new InfluxStub();
+        options.put("influx.uri", stub.uri());
+        options.put("influx.step", options.get("step"));
+        this.config = options::get;
+        this.registry = new CanalInfluxMeterRegistry(config, Clock.SYSTEM,
+                new HttpUrlConnectionSender(config.httpConnectTimeout(), config.httpReadTimeout()));
+        this.profiler = new InfluxClientInstanceProfiler(registry, new AdaptiveSampler(config.samplingBudget()),
+                config);
+        this.profiler.start();
+        this.cachedGauges = new CachedGauges(config.gaugeCacheTtl().toMillis(), config.gaugeCacheJitter(),
+                config.gaugeCacheParallelism(), config.gaugeCacheTimeout().toMillis());
+        this.cachedGauges.every(config.step().toMillis(), profiler::sweepIdle);
+
+        final Random random = new Random(42);
+        final int batchSize = intOption("batchSize");
+        for (int i = 0; i < BATCHES; i++) {
+            final List<Event> batch = BenchmarkEvents.batch(batchSize, TABLES, System.currentTimeMillis(), random);
+            for (Event event : batch) {
+                if (event.getEntryType() == CanalEntry.EntryType.TRANSACTIONEND) {
+                    transactions[i]++;
+                }
+            }
+            batches.add(batch);
+        }
+        this.lanes = new AtomicReferenceArray<>(intOption("destinations"));
+        for (int i = 0; i < lanes.length(); i++) {
+            lanes.set(i, new Lane("destination-" + i));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                usage(arg);
+                return;
+            }
+            final String name = arg.substring(2, eq);
+            if (!options.containsKey(name) && !name.startsWith("influx.")) {
+                usage(arg);
+                return;
+            }
+            options.put(name, arg.substring(eq + 1));
+        }
+        System.exit(new SoakTest(options).run() ? 0 : 1);
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown option " + arg + ", options are:");
+        for (String[] option : OPTIONS) {
+            System.err.printf("  --%s=%s  %s%n", option[0], option[1], option[2]);
+        }
+        System.err.println("  --influx.<key>=<value>  registry options, but the uri and the step");
+        System.exit(2);
+    }
+
+    private boolean run() throws InterruptedException {
+        final long stepMillis = config.step().toMillis();
+        final long durationMillis = Duration.parse(options.get("duration")).toMillis();
+        System.out.printf("soak: %d destinations, %s events/s in batches of %d, %d producers, %d consumers, %s, step %s%n",
+                lanes.length(), options.get("eventsPerSecond"), intOption("batchSize"), intOption("producers"),
+                intOption("consumers"), options.get("duration"), config.step());
+
+        final ThreadTimes before = ThreadTimes.plugin();
+        final long started = System.nanoTime();
+        final int producers = intOption("producers");
+        final int consumers = intOption("consumers");
+        for (int p = 0; p < producers; p++) {
+            workers.add(new Producer(p, producers));
+        }
+        for (int c = 0; c < consumers; c++) {
+            workers.add(new Consumer(c, consumers));
+        }
+        workers.forEach(Thread::start);
+
+        final PublishTimes publishes = new PublishTimes();
+        final long end = System.currentTimeMillis() + durationMillis;
+        long nextChurn = System.currentTimeMillis() + stepMillis;
+        long nextReport = System.currentTimeMillis() + stepMillis;
+        long reportedEvents = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+            publishes.poll(registry);
+            final long now = System.currentTimeMillis();
+            if (now >= nextChurn) {
+                churn(intOption("churn"));
+                nextChurn += stepMillis;
+            }
+            if (now >= nextReport) {
+                final long events = events();
+                System.out.printf("  %,d events/s, %,d lines received, last publish %.1f ms%n",
+                        (events - reportedEvents) * 1000 / stepMillis, stub.getLines(), publishes.last);
+                reportedEvents = events;
+                nextReport += stepMillis;
+            }
+        }
+        running = false;
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        final double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        final ThreadTimes plugin = ThreadTimes.plugin().minus(before);
+
+        // the step counters publish the step after, the function counters the step after the one they are read in
+        System.out.println("load stopped, waiting for the last steps to be published");
+        final long settle = System.currentTimeMillis() + 4 * stepMillis;
+        while (System.currentTimeMillis() < settle) {
+            Thread.sleep(100);
+            publishes.poll(registry);
+        }
+
+        report(elapsedSeconds, plugin, publishes);
+        registry.close();
+        cachedGauges.close();
+        stub.close();
+        return failures.isEmpty();
+    }
+
+    /**
+     * Replaces destinations by new ones under a new name, unbinding their meters as canal does when an instance
+     * stops. The workers skip a retired lane, given a moment to leave it before its meters are removed.
+     */
+    private void churn(int count) throws InterruptedException {
+        if (count <= 0) {
+            return;
+        }
+        final Random random = new Random();
+        final List<Lane> replaced = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int slot = random.nextInt(lanes.length());
+            final Lane old = lanes.get(slot);
+            if (old.retired) {
+                continue;
+            }
+            old.retired = true;
+            replaced.add(old);
+            lanes.set(slot, new Lane("destination-" + slot + "-" + (old.generation + 1), old.generation + 1));
+        }
+        Thread.sleep(50);
+        for (Lane lane : replaced) {
+            lane.metrics.unbind();
+        }
+        retired.addAll(replaced);
+    }
+
+    private void report(double elapsedSeconds, ThreadTimes plugin, PublishTimes publishes) {
+        long hookNanos = 0, loadAllocated = 0;
+        for (Worker worker : workers) {
+            hookNanos += Math.max(0L, worker.hookNanos);
+            loadAllocated += worker.allocated;
+        }
+        final long events = events();
+        final long pluginNanos = hookNanos + plugin.cpuNanos;
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final double share = pluginNanos / (elapsedSeconds * 1e9 * cores);
+        final double maxShare = Double.parseDouble(options.get("maxCpuShare"));
+        final double maxPublish = Double.parseDouble(options.get("maxPublishMillis"));
+
+        System.out.println();
+        System.out.printf("events        %,d in %.1f s, %,.0f events/s%n", events, elapsedSeconds, events / elapsedSeconds);
+        System.out.printf("plugin cpu    %.2f%% of %d cores, %.1f%% of the process, %.0f ns/event, hooks %.1f ms, "
+                        + "background %.1f ms%n", share * 100, cores, 100d * pluginNanos / plugin.processCpuNanos,
+                events == 0 ? 0d : (double) pluginNanos / events, hookNanos / 1e6, plugin.cpuNanos / 1e6);
+        System.out.printf("allocation    load threads %.1f B/event, plugin threads %.2f MB/s%n",
+                events == 0 ? 0d : (double) loadAllocated / events, plugin.allocated / elapsedSeconds / 1e6);
+        System.out.printf("publish       %d publishes, mean %.1f ms, max %.1f ms, %,d lines in %d writes%n",
+                publishes.count, publishes.mean(), publishes.max, stub.getLines(), stub.getWrites());
+
+        check(share <= maxShare, String.format("plugin cpu share %.4f above %.4f", share, maxShare));
+        check(publishes.count > 0, "nothing published");
+        check(publishes.max <= maxPublish, String.format("publish took %.1f ms, above %.1f ms", publishes.max, maxPublish));
+        check(stub.getMalformed() == 0, stub.getMalformed() + " malformed lines");
+        for (int i = 0; i < lanes.length(); i++) {
+            final Lane lane = lanes.get(i);
+            counter(lane, "canal_instance_transactions", lane.transactions);
+            counter(lane, "canal_instance_store_produce_seq", lane.events - 1);
+            counter(lane, "canal_instance_client_bytes", lane.bytes);
+            final double results = stub.counter("canal_instance_client_packets", lane.destination)
+                    + stub.counter("canal_instance_client_empty_batches", lane.destination);
+            check(results == lane.results, String.format("%s: %.0f client packets and empty batches, %d generated",
+                    lane.destination, results, lane.results));
+        }
+        for (Lane lane : retired) {
+            int left = 0;
+            for (Meter meter : registry.getMeters()) {
+                if (lane.destination.equals(meter.getId().getTag(CanalInstanceMetrics.DESTINATION))) {
+                    left++;
+                }
+            }
+            check(left == 0, lane.destination + " was unregistered, " + left + " meters left");
+        }
+        System.out.printf("counters      %d destinations checked, %d unregistered%n", lanes.length(), retired.size());
+
+        System.out.println();
+        if (failures.isEmpty()) {
+            System.out.println("PASS");
+        } else {
+            failures.forEach((failure) -> System.out.println("  " + failure));
+            System.out.println("FAIL");
+        }
+    }
+
+    private void counter(Lane lane, String measurement, long generated) {
+        final double published = stub.counter(measurement, lane.destination);
+        check(published == generated, String.format("%s: %s is %.0f, %d generated",
+                lane.destination, measurement, published, generated));
+    }
+
+    private void check(boolean passed, String failure) {
+        if (!passed) {
+            failures.add(failure);
+        }
+    }
+
+    private long events() {
+        long events = 0;
+        for (int i = 0; i < lanes.length(); i++) {
+            events += lanes.get(i).events;
+        }
+        for (Lane lane : retired) {
+            events += lane.events;
+        }
+        return events;
+    }
+
+    private static long cpuTimeCost() {
+        long total = 0;
+        for (int i = 0; i < 100000; i++) {
+            final long before = THREADS.getCurrentThreadCpuTime();
+            total += THREADS.getCurrentThreadCpuTime() - before;
+        }
+        return total / 100000;
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    /**
+     * A destination, with the totals of what was generated for it. The producer side is only written by the
+     * producer owning the lane, the consumer side by its consumer, and read once they are joined.
+     */
+    private final class Lane {
+        final String                     destination;
+        final int                        generation;
+        final MemoryEventStoreWithBuffer store;
+        final EntryEventSink             sink;
+        final CanalInstanceMetrics       metrics;
+        final CanalPacket.Get            get;
+        final CanalPacket.ClientAck      ack;
+        volatile boolean                 retired;
+
+        List<Event>   pending;
+        long          blockedSince;
+        int           next;
+        volatile long events;
+        long          transactions;
+
+        long nextGet;
+        long bytes;
+        long results;
+
+        Lane(String destination) {
+            this(destination, 0);
+        }
+
+        Lane(String destination, int generation) {
+            this.destination = destination;
+            this.generation = generation;
+            final CanalInstance instance = BenchmarkInstances.of(destination);
+            this.store = (MemoryEventStoreWithBuffer) instance.getEventStore();
+            this.sink = (EntryEventSink) instance.getEventSink();
+            this.metrics = new CanalInstanceMetrics(instance, profiler, config, cachedGauges);
+            this.metrics.bindTo(registry);
+            this.get = CanalPacket.Get.newBuilder()
+                    .setDestination(destination)
+                    .setClientId(CLIENT_ID)
+                    .setFetchSize(intOption("fetchSize"))
+                    .build();
+            this.ack = CanalPacket.ClientAck.newBuilder()
+                    .setDestination(destination)
+                    .setClientId(CLIENT_ID)
+                    .build();
+            this.next = Math.floorMod(destination.hashCode(), BATCHES);
+        }
+    }
+
+    /**
+     * Thread working on every n-th lane, timing the plugin hooks it calls and counting its allocations.
+     */
+    private abstract class Worker extends Thread {
+        private final int index;
+        private final int count;
+
+        long hookNanos;
+        long allocated;
+
+        Worker(String name, int index, int count) {
+            super(name + "-" + index);
+            this.index = index;
+            this.count = count;
+        }
+
+        @Override
+        public final void run() {
+            final long allocatedBefore = THREADS.getThreadAllocatedBytes(getId());
+            while (running) {
+                boolean idle = true;
+                for (int i = index; i < lanes.length(); i += count) {
+                    final Lane lane = lanes.get(i);
+                    if (!lane.retired && work(lane)) {
+                        idle = false;
+                    }
+                }
+                pace(idle);
+            }
+            allocated = THREADS.getThreadAllocatedBytes(getId()) - allocatedBefore;
+        }
+
+        /**
+         * @param entered Cpu time of the thread when it called into the plugin.
+         */
+        final void hooked(long entered) {
+            hookNanos += THREADS.getCurrentThreadCpuTime() - entered - CPU_TIME_COST;
+        }
+
+        /**
+         * @return Whether something was done on the lane.
+         */
+        abstract boolean work(Lane lane);
+
+        abstract void pace(boolean idle);
+    }
+
+    private final class Producer extends Worker {
+        private final double nanosPerEvent;
+        private long         deadline = System.nanoTime();
+
+        Producer(int index, int count) {
+            super("soak-producer", index, count);
+            final double rate = Double.parseDouble(options.get("eventsPerSecond")) / count;
+            this.nanosPerEvent = rate > 0 ? 1e9 / rate : 0;
+        }
+
+        /**
+         * Puts the next batch as {@link EntryEventSink} does, the handlers before the put and after it succeeded. A
+         * full store is counted as sink blocking time and left for the next round.
+         */
+        @Override
+        boolean work(Lane lane) {
+            if (lane.pending == null) {
+                lane.pending = batches.get(lane.next);
+                // the handler counts the transactions before the put
+                lane.transactions += transactions[lane.next];
+                lane.next = (lane.next + 1) % BATCHES;
+                final long entered = THREADS.getCurrentThreadCpuTime();
+                for (CanalEventDownStreamHandler<List<Event>> handler : handlers(lane)) {
+                    handler.before(lane.pending);
+                }
+                hooked(entered);
+            }
+            if (!lane.store.tryPut(lane.pending)) {
+                if (lane.blockedSince == 0) {
+                    lane.blockedSince = System.nanoTime();
+                }
+                return false;
+            }
+            if (lane.blockedSince != 0) {
+                lane.sink.getEventsSinkBlockingTime().addAndGet(System.nanoTime() - lane.blockedSince);
+                lane.blockedSince = 0;
+            }
+            final long entered = THREADS.getCurrentThreadCpuTime();
+            for (CanalEventDownStreamHandler<List<Event>> handler : handlers(lane)) {
+                handler.after(lane.pending);
+            }
+            hooked(entered);
+            lane.events += lane.pending.size();
+            deadline += (long) (lane.pending.size() * nanosPerEvent);
+            lane.pending = null;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<CanalEventDownStreamHandler<List<Event>>> handlers(Lane lane) {
+            return (List<CanalEventDownStreamHandler<List<Event>>>) (List<?>) lane.sink.getHandlers();
+        }
+
+        /**
+         * Sleeps when ahead of the rate, and does not catch up more than a second it fell behind.
+         */
+        @Override
+        void pace(boolean idle) {
+            final long now = System.nanoTime();
+            if (deadline - now > 50000L) {
+                LockSupport.parkNanos(deadline - now);
+            } else if (now - deadline > TimeUnit.SECONDS.toNanos(1)) {
+                deadline = now - TimeUnit.SECONDS.toNanos(1);
+            } else if (idle) {
+                LockSupport.parkNanos(20000L);
+            }
+        }
+    }
+
+    private final class Consumer extends Worker {
+        /**
+         * How long a client waits after an empty batch, as one getting with a timeout would.
+         */
+        private static final long EMPTY_BACKOFF = 10000000L;
+
+        private final int fetchSize = intOption("fetchSize");
+
+        Consumer(int index, int count) {
+            super("soak-consumer", index, count);
+        }
+
+        /**
+         * Gets and acks a batch as the netty server does for a client, reporting both requests to the profiler.
+         */
+        @Override
+        boolean work(Lane lane) {
+            final long started = System.nanoTime();
+            if (started - lane.nextGet < 0) {
+                return false;
+            }
+            final Events<Event> got = lane.store.tryGet(null, fetchSize);
+            final List<Event> events = got.getEvents();
+            if (events.isEmpty()) {
+                profiling(lane, CanalPacket.PacketType.GET, 16, System.nanoTime() - started, true, lane.get);
+                lane.nextGet = started + EMPTY_BACKOFF;
+                return false;
+            }
+            int amount = 16;
+            for (Event event : events) {
+                amount += (int) event.getRawLength();
+            }
+            profiling(lane, CanalPacket.PacketType.GET, amount, System.nanoTime() - started, false, lane.get);
+            final long acking = System.nanoTime();
+            lane.store.ack(got.getPositionRange().getEnd(), got.getPositionRange().getEndSeq());
+            profiling(lane, CanalPacket.PacketType.CLIENTACK, 16, System.nanoTime() - acking, false, lane.ack);
+            return true;
+        }
+
+        private void profiling(Lane lane, CanalPacket.PacketType type, int amount, long latency, boolean empty,
+                               com.google.protobuf.GeneratedMessageV3 request) {
+            final long entered = THREADS.getCurrentThreadCpuTime();
+            profiler.profiling(ClientRequestResults.of(lane.destination, type, amount, latency, (short) 0, empty, request));
+            hooked(entered);
+            lane.bytes += amount;
+            lane.results++;
+        }
+
+        @Override
+        void pace(boolean idle) {
+            if (idle) {
+                LockSupport.parkNanos(100000L);
+            }
+        }
+    }
+
+    /**
+     * Cpu time and allocations of the threads of the plugin, the publisher, the gauge cache and the shards, and the
+     * cpu time of the whole process.
+     */
+    private static final class ThreadTimes {
+        final long cpuNanos;
+        final long allocated;
+        final long processCpuNanos;
+
+        private ThreadTimes(long cpuNanos, long allocated, long processCpuNanos) {
+            this.cpuNanos = cpuNanos;
+            this.allocated = allocated;
+            this.processCpuNanos = processCpuNanos;
+        }
+
+        static ThreadTimes plugin() {
+            long cpu = 0, allocated = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().startsWith(PLUGIN)) {
+                    cpu += Math.max(0L, THREADS.getThreadCpuTime(thread.getId()));
+                    allocated += Math.max(0L, THREADS.getThreadAllocatedBytes(thread.getId()));
+                }
+            }
+            return new ThreadTimes(cpu, allocated, ((com.sun.management.OperatingSystemMXBean)
+                    ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime());
+        }
+
+        ThreadTimes minus(ThreadTimes before) {
+            return new ThreadTimes(cpuNanos - before.cpuNanos, allocated - before.allocated,
+                    processCpuNanos - before.processCpuNanos);
+        }
+    }
+
+    /**
+     * Durations of the publishes, read from {@code canal.metrics.exporter.publish} as it goes, its step values
+     * only cover the last step.
+     */
+    private static final class PublishTimes {
+        long   count;
+        double totalMillis;
+        double max;
+        double last;
+        private double seen = -1;
+
+        void poll(CanalInfluxMeterRegistry registry) {
+            final Timer timer = registry.find("canal.metrics.exporter.publish").timer();
+            if (timer == null) {
+                return;
+            }
+            max = Math.max(max, timer.max(TimeUnit.MILLISECONDS));
+            final double total = timer.totalTime(TimeUnit.MILLISECONDS);
+            if (timer.count() > 0 && total != seen) {
+                count += timer.count();
+                totalMillis += total;
+                last = timer.mean(TimeUnit.MILLISECONDS);
+                seen = total;
+            }
+        }
+
+        double mean() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.micrometer.influx;
+
+/**
+ * {@link InfluxMeterRegistry#publish()} is protected, benchmarks run micrometer's own line protocol path
+ * through here.
+ */
+public final class InfluxLineProtocol {
+
+    private InfluxLineProtocol() {
+    }
+
+    public static void publish(InfluxMeterRegistry registry) {
+        registry.publish();
+    }
+}
@@ -0,0 +1,227 @@
+package com.pfroad.canal.influxdb;
+
+import io.micrometer.influx.InfluxConfig;
+
+import java.time.Duration;
+
+/**
+ * {@link InfluxConfig} plus the options of this plugin, read from the same {@code metrics.influx.*} keys.
+ */
+public interface CanalInfluxConfig extends InfluxConfig {
+
+    /**
+     * @return Time allowed to connect to influx, read from the key of the deprecated {@link #connectTimeout()}.
+     */
+    default Duration httpConnectTimeout() {
+        String v = get(prefix() + ".connectTimeout");
+        return v == null ? Duration.ofSeconds(1) : Duration.parse(v);
+    }
+
+    /**
+     * @return Time allowed for influx to answer a request, read from the key of the deprecated {@link #readTimeout()}.
+     */
+    default Duration httpReadTimeout() {
+        String v = get(prefix() + ".readTimeout");
+        return v == null ? Duration.ofSeconds(10) : Duration.parse(v);
+    }
+
+    /**
+     * @return Directory of the spool every batch goes through on its way to influx, so that the publishing thread
+     * never waits on influx and nothing is lost while it is down, {@code null} disables it.
+     */
+    default String spoolDirectory() {
+        return get(prefix() + ".spoolDirectory");
+    }
+
+    /**
+     * @return Size cap of the spool, the oldest segments are evicted beyond it.
+     */
+    default long spoolMaxBytes() {
+        String v = get(prefix() + ".spoolMaxBytes");
+        return v == null ? 256L * 1024 * 1024 : Long.parseLong(v);
+    }
+
+    /**
+     * @return Size of one memory mapped spool segment file.
+     */
+    default int spoolSegmentBytes() {
+        String v = get(prefix() + ".spoolSegmentBytes");
+        return v == null ? 8 * 1024 * 1024 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Maximum number of spooled batches delivered per second, above the batches of a step over the step,
+     * so that the spool drains after an outage.
+     */
+    default int spoolReplayRate() {
+        String v = get(prefix() + ".spoolReplayRate");
+        return v == null ? 10 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Number of tables of an instance getting their own row and byte counters, {@code 0} disables them.
+     */
+    default int tableTopK() {
+        String v = get(prefix() + ".tableTopK");
+        return v == null ? 20 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Rows from which a transaction is counted and logged as large, {@code 0} disables it.
+     */
+    default long largeTransactionRows() {
+        String v = get(prefix() + ".largeTransactionRows");
+        return v == null ? 100000L : Long.parseLong(v);
+    }
+
+    /**
+     * @return Nanoseconds per second the downstream handler of an instance, and the client profiler, may spend
+     * recording latencies, lags and table counters before they start sampling. {@code 0} records everything.
+     */
+    default long samplingBudget() {
+        String v = get(prefix() + ".samplingBudget");
+        return v == null ? 0L : Long.parseLong(v);
+    }
+
+    /**
+     * @return Number of clients of a destination getting their own traffic meters, the traffic of the others is
+     * tagged {@code clientId=_other}.
+     */
+    default int maxClients() {
+        String v = get(prefix() + ".maxClients");
+        return v == null ? 16 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Number of destinations without a bound instance, asked for by the clients, getting their own client
+     * meters, the traffic of the others is tagged {@code destination=_other}.
+     */
+    default int maxDestinations() {
+        String v = get(prefix() + ".maxDestinations");
+        return v == null ? 32 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Number of error codes of a destination getting their own counter, the others are tagged
+     * {@code errorCode=_other}.
+     */
+    default int maxErrorCodes() {
+        String v = get(prefix() + ".maxErrorCodes");
+        return v == null ? 16 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Time after which the meters of an unused client, error code or unbound destination are removed,
+     * {@code PT0S} keeps them.
+     */
+    default Duration meterIdleTimeout() {
+        String v = get(prefix() + ".meterIdleTimeout");
+        return v == null ? Duration.ofHours(1) : Duration.parse(v);
+    }
+
+    /**
+     * @return Latency from which a client request is recorded as a flight recorder event, when such a recording
+     * enables it.
+     */
+    default Duration slowRequestThreshold() {
+        String v = get(prefix() + ".slowRequestThreshold");
+        return v == null ? Duration.ofMillis(50) : Duration.parse(v);
+    }
+
+    /**
+     * @return How long a snapshot of the scrape endpoint is served before the meters are read again.
+     */
+    default Duration scrapeInterval() {
+        String v = get(prefix() + ".scrapeInterval");
+        return v == null ? Duration.ofSeconds(10) : Duration.parse(v);
+    }
+
+    /**
+     * @return How often the cached gauges, like the subscriptions, are read again in the background.
+     */
+    default Duration gaugeCacheTtl() {
+        String v = get(prefix() + ".gaugeCacheTtl");
+        return v == null ? Duration.ofSeconds(30) : Duration.parse(v);
+    }
+
+    /**
+     * @return Fraction of the ttl each background read is moved by at random, so destinations do not line up.
+     */
+    default double gaugeCacheJitter() {
+        String v = get(prefix() + ".gaugeCacheJitter");
+        return v == null ? 0.1 : Double.parseDouble(v);
+    }
+
+    /**
+     * @return Number of threads reading the cached gauges of all destinations.
+     */
+    default int gaugeCacheParallelism() {
+        String v = get(prefix() + ".gaugeCacheParallelism");
+        return v == null ? 2 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Time after which a background read counts as failed, the last value is served meanwhile.
+     */
+    default Duration gaugeCacheTimeout() {
+        String v = get(prefix() + ".gaugeCacheTimeout");
+        return v == null ? Duration.ofSeconds(10) : Duration.parse(v);
+    }
+
+    /**
+     * @return Comma separated influx endpoints the series are spread over by destination, each {@code uri} or
+     * {@code db@uri}, the database defaulting to {@link #db()}. {@code null} writes everything to {@link #uri()}.
+     */
+    default String shards() {
+        return get(prefix() + ".shards");
+    }
+
+    /**
+     * @return Comma separated {@code destination=index} pairs pinning destinations to a shard, the others are
+     * spread by hash. Series without destination go to the first shard.
+     */
+    default String shardMapping() {
+        return get(prefix() + ".shardMapping");
+    }
+
+    /**
+     * @return Number of batches sent to one shard at the same time.
+     */
+    default int shardInFlight() {
+        String v = get(prefix() + ".shardInFlight");
+        return v == null ? 2 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Number of batches waiting for a shard beyond which new ones are dropped.
+     */
+    default int shardQueueSize() {
+        String v = get(prefix() + ".shardQueueSize");
+        return v == null ? 16 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Whether to publish through a single non-blocking event loop instead of blocking http calls, plain
+     * http endpoints only. The spool is not used then.
+     */
+    default boolean asyncPublish() {
+        String v = get(prefix() + ".asyncPublish");
+        return v != null && Boolean.parseBoolean(v);
+    }
+
+    /**
+     * @return Number of requests sent on the connection to an endpoint before their responses arrive.
+     */
+    default int asyncPipelining() {
+        String v = get(prefix() + ".asyncPipelining");
+        return v == null ? 4 : Integer.parseInt(v);
+    }
+
+    /**
+     * @return Number of batches waiting for an endpoint beyond which new ones are dropped.
+     */
+    default int asyncQueueSize() {
+        String v = get(prefix() + ".asyncQueueSize");
+        return v == null ? 64 : Integer.parseInt(v);
+    }
+}
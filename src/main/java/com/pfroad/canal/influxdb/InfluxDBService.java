@@ -1,9 +1,15 @@
 package com.pfroad.canal.influxdb;
 
 import com.alibaba.otter.canal.instance.core.CanalInstance;
-import com.alibaba.otter.canal.server.netty.ClientInstanceProfiler;
 import com.alibaba.otter.canal.spi.CanalMetricsService;
 import com.pfroad.canal.influxdb.binder.*;
+import com.pfroad.canal.influxdb.publish.AsyncHttpSender;
+import com.pfroad.canal.influxdb.publish.CanalInfluxMeterRegistry;
+import com.pfroad.canal.influxdb.publish.ExporterMetrics;
+import com.pfroad.canal.influxdb.publish.MetricsSpool;
+import com.pfroad.canal.influxdb.publish.SpoolReplayer;
+import com.pfroad.canal.influxdb.publish.SpoolingHttpSender;
+import com.pfroad.canal.influxdb.scrape.ScrapeServer;
 import io.micrometer.core.instrument.Clock;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tags;
@@ -13,13 +19,17 @@ import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
 import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
 import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
 import io.micrometer.core.instrument.binder.system.UptimeMetrics;
-import io.micrometer.influx.InfluxConfig;
-import io.micrometer.influx.InfluxMeterRegistry;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.alibaba.otter.canal.server.netty.CanalServerWithNettyProfiler.NOP;
 import static com.alibaba.otter.canal.server.netty.CanalServerWithNettyProfiler.profiler;
@@ -29,7 +39,16 @@ public class InfluxDBService implements CanalMetricsService {
 //    private static final int STEP = 60 * 1000;
     private volatile boolean running = false;
     private MeterRegistry registry;
-    private final ClientInstanceProfiler clientProfiler;
+    private final CanalInfluxConfig config;
+    private final InfluxClientInstanceProfiler clientProfiler;
+    private final CachedGauges cachedGauges;
+    private final DestinationThreads destinationThreads;
+    private final ConcurrentMap<String, CanalInstanceMetrics> instances = new ConcurrentHashMap<>();
+    private MetricsSpool spool;
+    private SpoolReplayer spoolReplayer;
+    private AsyncHttpSender asyncSender;
+    private int serverPort;
+    private ScrapeServer scrapeServer;
 //    private final ScheduledExecutorService scheduledExecutorService;
 
     public InfluxDBService() {
@@ -50,9 +69,33 @@ public class InfluxDBService implements CanalMetricsService {
          *  numThreads:
          *  connectTimeout:
          *  readTimeout:
-         *  batchSize
+         *  batchSize:
+         *  spoolDirectory:
+         *  spoolMaxBytes:
+         *  spoolSegmentBytes:
+         *  spoolReplayRate:
+         *  tableTopK:
+         *  largeTransactionRows:
+         *  samplingBudget:
+         *  maxClients:
+         *  maxDestinations:
+         *  maxErrorCodes:
+         *  meterIdleTimeout:
+         *  slowRequestThreshold:
+         *  scrapeInterval:
+         *  gaugeCacheTtl:
+         *  gaugeCacheJitter:
+         *  gaugeCacheParallelism:
+         *  gaugeCacheTimeout:
+         *  shards:
+         *  shardMapping:
+         *  shardInFlight:
+         *  shardQueueSize:
+         *  asyncPublish:
+         *  asyncPipelining:
+         *  asyncQueueSize:
          */
-        InfluxConfig config = new InfluxConfig() {
+        CanalInfluxConfig config = new CanalInfluxConfig() {
             @Override
             public String prefix() {
                 return "metrics.influx";
@@ -64,8 +107,73 @@ public class InfluxDBService implements CanalMetricsService {
             }
         };
 
-        this.registry = new InfluxMeterRegistry(config, Clock.SYSTEM);
-        this.clientProfiler = new InfluxClientInstanceProfiler(registry);
+        this.config = config;
+        this.registry = new CanalInfluxMeterRegistry(config, Clock.SYSTEM, httpSender(config));
+        this.registry.config().commonTags(Tags.of("app", "canal").and("host", hostName()));
+        if (spool != null) {
+            ExporterMetrics.bindSpool(registry, spool);
+        }
+        this.clientProfiler = new InfluxClientInstanceProfiler(registry, new AdaptiveSampler(config.samplingBudget()),
+                config);
+        this.cachedGauges = new CachedGauges(config.gaugeCacheTtl().toMillis(), config.gaugeCacheJitter(),
+                config.gaugeCacheParallelism(), config.gaugeCacheTimeout().toMillis());
+        this.cachedGauges.every(config.step().toMillis(), clientProfiler::sweepIdle);
+        this.destinationThreads = new DestinationThreads(config.step().toMillis());
+        registerDefaultMetrics(registry);
+    }
+
+    private HttpSender httpSender(CanalInfluxConfig config) {
+        if (config.asyncPublish()) {
+            final HttpSender sender = asyncSender(config);
+            if (sender != null) {
+                return sender;
+            }
+        }
+        final HttpSender sender = new HttpUrlConnectionSender(config.httpConnectTimeout(), config.httpReadTimeout());
+        final String spoolDirectory = config.spoolDirectory();
+        if (spoolDirectory == null) {
+            return sender;
+        }
+        try {
+            this.spool = new MetricsSpool(new File(spoolDirectory), config.spoolMaxBytes(), config.spoolSegmentBytes());
+        } catch (IOException e) {
+            LOGGER.warn("Unable to open metrics spool at " + spoolDirectory + ", undelivered batches will be lost.", e);
+            return sender;
+        }
+        this.spoolReplayer = new SpoolReplayer(spool, sender, config.userName(), config.password(), config.spoolReplayRate());
+        return new SpoolingHttpSender(sender, spool);
+    }
+
+    /**
+     * @return {@code null} when some endpoint is not plain http, or the event loop cannot be opened.
+     */
+    private HttpSender asyncSender(CanalInfluxConfig config) {
+        final String endpoints = config.shards() == null ? config.uri() : config.shards();
+        for (String endpoint : endpoints.split(",")) {
+            if (!endpoint.trim().startsWith("http://") && !endpoint.contains("@http://")) {
+                LOGGER.warn("Async publishing only supports http endpoints, publishing blocking to {}.", endpoints);
+                return null;
+            }
+        }
+        if (config.spoolDirectory() != null) {
+            LOGGER.warn("The metrics spool is not used when publishing asynchronously.");
+        }
+        try {
+            asyncSender = new AsyncHttpSender(config.httpConnectTimeout().toMillis(), config.httpReadTimeout().toMillis(),
+                    config.asyncPipelining(), config.asyncQueueSize());
+            return asyncSender;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to open the async sender, publishing blocking.", e);
+            return null;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "canal";
+        }
     }
 
     private static class SingletonHolder {
@@ -85,6 +193,10 @@ public class InfluxDBService implements CanalMetricsService {
                 clientProfiler.start();
             }
             profiler().setInstanceProfiler(clientProfiler);
+            if (spoolReplayer != null) {
+                spoolReplayer.start();
+            }
+            startScrapeServer();
         } catch (Throwable e) {
             LOGGER.warn("Unable to initialize influx service.", e);
         }
@@ -102,9 +214,20 @@ public class InfluxDBService implements CanalMetricsService {
 
             profiler().setInstanceProfiler(NOP);
 
+            stopScrapeServer();
+
             if (!this.registry.isClosed()) {
                 this.registry.close();
             }
+            if (asyncSender != null) {
+                asyncSender.close();
+            }
+            cachedGauges.close();
+
+            if (spoolReplayer != null) {
+                spoolReplayer.stop();
+                spool.close();
+            }
         } catch (Throwable e) {
             LOGGER.warn("Something happened while terminating.", e);
         }
@@ -117,26 +240,18 @@ public class InfluxDBService implements CanalMetricsService {
 
     @Override
     public void register(CanalInstance instance) {
-        InetAddress inetAddress = null;
+        final CanalInstanceMetrics metrics = new CanalInstanceMetrics(instance, clientProfiler, config, cachedGauges);
+        final CanalInstanceMetrics previous = instances.put(instance.getDestination(), metrics);
+        if (previous != null) {
+            previous.unbind();
+        }
         try {
-            inetAddress = InetAddress.getLocalHost();
-        } catch (UnknownHostException e) {
+            metrics.bindTo(registry);
+        } catch (RuntimeException e) {
+            instances.remove(instance.getDestination(), metrics);
+            throw e;
         }
-        this.registry.config()
-                .commonTags(Tags.of("app", "canal")
-                .and(Tags.of("destination", instance.getDestination()))
-                .and(Tags.of("host", inetAddress == null ? "canal" : inetAddress.getHostName())));
-
-        registerDefaultMetrics(registry);
-        registerCanalMetrics(registry, instance);
-    }
-
-    private void registerCanalMetrics(MeterRegistry registry, CanalInstance instance) {
-        new EntryMetrics(instance).bindTo(registry);
-        new MetaMetrics(instance).bindTo(registry);
-        new ParserMetrics(instance).bindTo(registry);
-        new SinkMetrics(instance).bindTo(registry);
-        new StoreMetrics(instance).bindTo(registry);
+        destinationThreads.register(registry, instance.getDestination());
     }
 
     private void registerDefaultMetrics(MeterRegistry registry) {
@@ -145,17 +260,49 @@ public class InfluxDBService implements CanalMetricsService {
         new JvmGcMetrics().bindTo(registry);
         new ProcessorMetrics().bindTo(registry);
         new JvmThreadMetrics().bindTo(registry);
-        new ProcessorMetrics().bindTo(registry);
         new UptimeMetrics().bindTo(registry);
     }
 
     @Override
     public void unregister(CanalInstance instance) {
-
+        final CanalInstanceMetrics metrics = instances.remove(instance.getDestination());
+        destinationThreads.unregister(instance.getDestination());
+        if (metrics != null) {
+            metrics.unbind();
+        }
     }
 
+    /**
+     * Serves the meters on this port, see {@link ScrapeServer}. {@code 0} or less disables it.
+     */
     @Override
-    public void setServerPort(int port) {
+    public synchronized void setServerPort(int port) {
+        if (port == serverPort) {
+            return;
+        }
+        serverPort = port;
+        if (running) {
+            stopScrapeServer();
+            startScrapeServer();
+        }
+    }
 
+    private synchronized void startScrapeServer() {
+        if (serverPort <= 0 || scrapeServer != null) {
+            return;
+        }
+        try {
+            scrapeServer = new ScrapeServer(registry, serverPort, config.scrapeInterval().toMillis());
+            scrapeServer.start();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to serve metrics on port " + serverPort + ".", e);
+        }
+    }
+
+    private synchronized void stopScrapeServer() {
+        if (scrapeServer != null) {
+            scrapeServer.close();
+            scrapeServer = null;
+        }
     }
 }
@@ -0,0 +1,78 @@
+package com.pfroad.canal.influxdb.binder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which batches or requests are fully recorded, so that the time spent recording them stays within
+ * a budget of nanoseconds per second.
+ * <p>
+ * One in {@code 2^shift} calls is sampled, picked at random so that concurrent callers share no state. Once
+ * per second the measured cost is compared to the budget: the rate is halved when over it, and doubled when
+ * twice the cost still fits. Sampled values are meant to be scaled up by the weight {@link #sample()} returns.
+ */
+public class AdaptiveSampler {
+    private static final long PERIOD    = TimeUnit.SECONDS.toNanos(1);
+    private static final int  MAX_SHIFT = 10;
+
+    private final long       budgetNanos;
+    private final LongAdder  spent       = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile int     shift;
+
+    /**
+     * @param budgetNanos Nanoseconds of recording allowed per second, {@code 0} records everything.
+     */
+    public AdaptiveSampler(long budgetNanos) {
+        this.budgetNanos = budgetNanos;
+    }
+
+    /**
+     * @return Whether the cost has to be measured and reported through {@link #spent(long, long)}.
+     */
+    public boolean isAdaptive() {
+        return budgetNanos > 0;
+    }
+
+    /**
+     * @return {@code 0} to skip this call, otherwise the number of calls the recorded one stands for.
+     */
+    public int sample() {
+        final int s = shift;
+        if (s == 0) {
+            return 1;
+        }
+        return (ThreadLocalRandom.current().nextInt() & ((1 << s) - 1)) == 0 ? 1 << s : 0;
+    }
+
+    /**
+     * Reports the cost of a sampled call.
+     *
+     * @param nanos Time spent recording.
+     * @param now   Current {@link System#nanoTime()}.
+     */
+    public void spent(long nanos, long now) {
+        spent.add(nanos);
+        final long start = windowStart.get();
+        final long elapsed = now - start;
+        if (elapsed < PERIOD || !windowStart.compareAndSet(start, now)) {
+            return;
+        }
+        final double perSecond = (double) spent.sumThenReset() * PERIOD / elapsed;
+        final int s = shift;
+        if (perSecond > budgetNanos && s < MAX_SHIFT) {
+            shift = s + 1;
+        } else if (perSecond * 2 < budgetNanos && s > 0) {
+            shift = s - 1;
+        }
+    }
+
+    /**
+     * @return Fraction of the calls currently recorded.
+     */
+    public double getRate() {
+        return 1.0 / (1 << shift);
+    }
+}
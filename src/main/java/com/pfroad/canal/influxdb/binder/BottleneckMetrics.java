@@ -0,0 +1,74 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.store.CanalEventStore;
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+public class BottleneckMetrics implements MeterBinder {
+    private static final String BOTTLENECK      = "canal.instance.bottleneck";
+    private static final String SCORE           = "canal.instance.bottleneck.score";
+    private static final String CONFIDENCE      = "canal.instance.bottleneck.confidence";
+    private static final String BLOCKED         = "canal.instance.stage.blocked";
+    private static final String BOTTLENECK_HELP = "1 for the stage holding the instance up in the last step";
+    private static final String SCORE_HELP      = "How much the stage held the instance up in the last step";
+    private static final String CONFIDENCE_HELP = "Share of the bottleneck in the scores of all stages";
+    private static final String BLOCKED_HELP    = "Fraction of the last step the stage was blocked";
+
+    private final CanalInstance                instance;
+    private final Tags                         tags;
+    private final InstanceSampler              sampler;
+    private final InfluxClientInstanceProfiler clientProfiler;
+    private final long                         stepMillis;
+
+    public BottleneckMetrics(CanalInstance instance, Tags tags, InstanceSampler sampler,
+                             InfluxClientInstanceProfiler clientProfiler, long stepMillis) {
+        this.instance = instance;
+        this.tags = tags;
+        this.sampler = sampler;
+        this.clientProfiler = clientProfiler;
+        this.stepMillis = stepMillis;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        final CanalEventStore store = instance.getEventStore();
+        if (!(store instanceof MemoryEventStoreWithBuffer)) {
+            throw new IllegalArgumentException("EventStore must be MemoryEventStoreWithBuffer");
+        }
+        final PipelineBottleneck bottleneck = new PipelineBottleneck(sampler, clientProfiler,
+                instance.getDestination(), ((MemoryEventStoreWithBuffer) store).getBufferSize(), stepMillis);
+
+        for (PipelineBottleneck.Stage stage : PipelineBottleneck.Stage.values()) {
+            Gauge.builder(BOTTLENECK, bottleneck, (b) -> b.isBottleneck(stage))
+                    .description(BOTTLENECK_HELP)
+                    .tags(tags)
+                    .tag("stage", stage.tag())
+                    .strongReference(true)
+                    .register(registry);
+            Gauge.builder(SCORE, bottleneck, (b) -> b.getScore(stage))
+                    .description(SCORE_HELP)
+                    .tags(tags)
+                    .tag("stage", stage.tag())
+                    .strongReference(true)
+                    .register(registry);
+        }
+        Gauge.builder(CONFIDENCE, bottleneck, PipelineBottleneck::getConfidence)
+                .description(CONFIDENCE_HELP)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+        for (PipelineBottleneck.Stage stage : new PipelineBottleneck.Stage[]{PipelineBottleneck.Stage.PARSER,
+                PipelineBottleneck.Stage.SINK}) {
+            Gauge.builder(BLOCKED, bottleneck, (b) -> b.getBlocked(stage))
+                    .description(BLOCKED_HELP)
+                    .tags(tags)
+                    .tag("stage", stage.tag())
+                    .strongReference(true)
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.pfroad.canal.influxdb.binder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Gauges whose value is expensive to read, a remote call to the meta manager for instance. The value is read
+ * in the background every {@code ttl}, give or take {@code jitter}, by at most {@code parallelism} threads
+ * shared by all destinations, and publishing or scraping only reads the cached value.
+ * <p>
+ * A read that fails, or is still running after {@code timeout}, leaves the last good value in place and is
+ * counted in {@code canal.metrics.cache.failures}. {@code canal.metrics.cache.age} tells how old the value is.
+ */
+public class CachedGauges implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedGauges.class);
+
+    private static final String AGE           = "canal.metrics.cache.age";
+    private static final String FAILURES      = "canal.metrics.cache.failures";
+    private static final String AGE_HELP      = "Time since the cached gauge was last read successfully";
+    private static final String FAILURES_HELP = "Failed or timed out reads of the cached gauge";
+
+    private final long                     ttlMillis;
+    private final double                   jitter;
+    private final long                     timeoutMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ThreadPoolExecutor       readers;
+
+    private final ConcurrentMap<String, Queue<Entry<?>>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param jitter Fraction of the ttl each refresh is moved by at random, {@code 0} for none.
+     */
+    public CachedGauges(long ttlMillis, double jitter, int parallelism, long timeoutMillis) {
+        this.ttlMillis = ttlMillis;
+        this.jitter = Math.max(0d, Math.min(1d, jitter));
+        this.timeoutMillis = timeoutMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("influx-gauge-cache"));
+        this.readers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("influx-gauge-reader"));
+    }
+
+    /**
+     * Registers a gauge of the destination served from the cache. Its first value is read right away.
+     */
+    public <T> void gauge(String destination, MeterRegistry registry, String name, String description,
+                          String baseUnit, Tags tags, T obj, ToDoubleFunction<T> f) {
+        final Tags cacheTags = tags.and("gauge", name);
+        final Entry<T> entry = new Entry<>(name, obj, f,
+                Counter.builder(FAILURES)
+                        .description(FAILURES_HELP)
+                        .tags(cacheTags)
+                        .register(registry));
+        Gauge.builder(name, entry, (e) -> e.value)
+                .description(description)
+                .baseUnit(baseUnit)
+                .tags(tags)
+                .register(registry);
+        Gauge.builder(AGE, entry, Entry::age)
+                .description(AGE_HELP)
+                .baseUnit("ms")
+                .tags(cacheTags)
+                .register(registry);
+        entries.computeIfAbsent(destination, (d) -> new ConcurrentLinkedQueue<>()).add(entry);
+        schedule(entry, 0L);
+    }
+
+    /**
+     * Stops refreshing the gauges of the destination, the meters are removed with the others of the destination.
+     */
+    public void cancel(String destination) {
+        final Queue<Entry<?>> removed = entries.remove(destination);
+        if (removed != null) {
+            for (Entry<?> entry : removed) {
+                entry.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Runs a short housekeeping task of the meters every period on the thread scheduling the refreshes, until
+     * {@link #close()}.
+     */
+    public void every(long periodMillis, Runnable task) {
+        try {
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Metrics housekeeping failed.", e);
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        readers.shutdownNow();
+    }
+
+    private void schedule(Entry<?> entry, long delayMillis) {
+        try {
+            scheduler.schedule(() -> refresh(entry), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private long nextDelay() {
+        if (jitter == 0d) {
+            return ttlMillis;
+        }
+        final double offset = (ThreadLocalRandom.current().nextDouble() * 2 - 1) * jitter;
+        return Math.max(1L, (long) (ttlMillis * (1 + offset)));
+    }
+
+    /**
+     * Runs on the scheduler thread, hands the read over to the readers unless the previous one is still running.
+     */
+    private void refresh(Entry<?> entry) {
+        if (entry.cancelled) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long started = entry.started;
+        if (started == 0L) {
+            entry.started = now;
+            try {
+                readers.execute(entry::read);
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        } else if (!entry.timedOut && now - started >= timeoutMillis) {
+            entry.timedOut = true;
+            entry.failures.increment();
+            LOGGER.warn("Reading cached gauge {} takes more than {} ms, serving its last value.", entry.name, timeoutMillis);
+        }
+        schedule(entry, started == 0L ? nextDelay() : Math.min(nextDelay(), timeoutMillis));
+    }
+
+    private static final class Entry<T> {
+        private final String              name;
+        private final T                   obj;
+        private final ToDoubleFunction<T> f;
+        private final Counter             failures;
+        private volatile double           value     = Double.NaN;
+        private volatile long             refreshed = 0L;
+        private volatile long             started   = 0L;
+        private volatile boolean          timedOut;
+        private volatile boolean          cancelled;
+
+        Entry(String name, T obj, ToDoubleFunction<T> f, Counter failures) {
+            this.name = name;
+            this.obj = obj;
+            this.f = f;
+            this.failures = failures;
+        }
+
+        void read() {
+            try {
+                value = f.applyAsDouble(obj);
+                refreshed = System.currentTimeMillis();
+            } catch (Throwable e) {
+                failures.increment();
+                LOGGER.warn("Unable to read cached gauge {}, serving its last value.", name, e);
+            } finally {
+                timedOut = false;
+                started = 0L;
+            }
+        }
+
+        double age() {
+            final long r = refreshed;
+            return r == 0L ? Double.NaN : System.currentTimeMillis() - r;
+        }
+    }
+}
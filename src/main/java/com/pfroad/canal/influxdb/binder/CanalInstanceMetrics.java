@@ -0,0 +1,84 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All meters of one canal instance. Every meter is tagged with the destination of the instance, which is
+ * what {@link #unbind()} relies on to remove them again, together with the client meters of the destination.
+ */
+public class CanalInstanceMetrics implements MeterBinder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CanalInstanceMetrics.class);
+
+    public static final String DESTINATION = "destination";
+
+    private final CanalInstance                instance;
+    private final InfluxClientInstanceProfiler clientProfiler;
+    private final Tags                         tags;
+    private final CanalInfluxConfig            config;
+    private final CachedGauges                 cachedGauges;
+    private final InstanceSampler              sampler;
+    private volatile MeterRegistry             registry;
+
+    public CanalInstanceMetrics(CanalInstance instance, InfluxClientInstanceProfiler clientProfiler,
+                                CanalInfluxConfig config, CachedGauges cachedGauges) {
+        this.instance = instance;
+        this.clientProfiler = clientProfiler;
+        this.config = config;
+        this.cachedGauges = cachedGauges;
+        this.tags = Tags.of(DESTINATION, instance.getDestination());
+        // the meters only hold it weakly
+        this.sampler = new InstanceSampler(instance, config.step().toMillis(), StoreOccupancy.FIVE_MINUTES);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        // fail before anything is registered, an instance already bound keeps what it has
+        EntryMetrics.checkSink(instance);
+        this.registry = registry;
+        final StoreResidence residence = instance.getEventStore() instanceof MemoryEventStoreWithBuffer
+                ? new StoreResidence((MemoryEventStoreWithBuffer) instance.getEventStore(), registry, tags) : null;
+        clientProfiler.register(instance.getDestination(), residence);
+        new EntryMetrics(instance, tags, config, sampler, residence).bindTo(registry);
+        new MetaMetrics(instance, tags, cachedGauges).bindTo(registry);
+        new ParserMetrics(instance, tags, sampler, config.step().toMillis()).bindTo(registry);
+        new SinkMetrics(instance, tags, sampler).bindTo(registry);
+        new StoreMetrics(instance, tags, sampler).bindTo(registry);
+        new BottleneckMetrics(instance, tags, sampler, clientProfiler, config.step().toMillis()).bindTo(registry);
+    }
+
+    /**
+     * Removes every meter of the destination from the registry and detaches the downstream handler, so
+     * nothing keeps a reference to the stopped instance.
+     */
+    public void unbind() {
+        final String destination = instance.getDestination();
+        EntryMetrics.disassembleHandler(instance);
+        clientProfiler.unregister(destination);
+        cachedGauges.cancel(destination);
+
+        final MeterRegistry registry = this.registry;
+        if (registry == null) {
+            return;
+        }
+        int removed = 0;
+        for (Meter meter : registry.getMeters()) {
+            if (destination.equals(meter.getId().getTag(DESTINATION))) {
+                registry.remove(meter);
+                removed++;
+            }
+        }
+        LOGGER.info("Removed {} meters of destination {}.", removed, destination);
+    }
+
+    public String getDestination() {
+        return instance.getDestination();
+    }
+}
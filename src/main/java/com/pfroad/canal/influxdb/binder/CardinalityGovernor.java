@@ -0,0 +1,317 @@
+package com.pfroad.canal.influxdb.binder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Bounds the meters created on demand for a tag whose values come from the outside, like the client ids or the
+ * destinations the clients ask for.
+ * <p>
+ * Each {@link Guard} keeps the meters of up to {@code limit} values of its tag, the values beyond share the meters
+ * of {@link #OTHER}. Values whose meters were not used for {@code idleMillis} are evicted, their meters removed
+ * from the registry, which makes room for new values. Pinned values, like the destinations of the running
+ * instances, count against no limit and are never evicted.
+ * <p>
+ * The guards of a tag publish how many values they keep, and count the requests folded into {@link #OTHER} and
+ * the evicted values. The idle values are swept by {@link #sweep(long)}, which the owner of the governor runs on a
+ * schedule, and when a new value finds a guard full. Reading the meters never removes any.
+ */
+public class CardinalityGovernor {
+    private static final String SIZE           = "canal.metrics.cardinality.size";
+    private static final String OVERFLOWS      = "canal.metrics.cardinality.overflows";
+    private static final String EVICTIONS      = "canal.metrics.cardinality.evictions";
+    private static final String SIZE_HELP      = "Values of the tag having their own meters";
+    private static final String OVERFLOWS_HELP = "Requests counted under the other value because the tag was full";
+    private static final String EVICTIONS_HELP = "Values of the tag whose meters were removed after being idle";
+    private static final long   SWEEP_MILLIS   = 1000L;
+
+    /**
+     * Tag value of the meters shared by the values beyond the limit.
+     */
+    public static final String OTHER = "_other";
+
+    private final MeterRegistry registry;
+    private final long          idleMillis;
+
+    /**
+     * The overflows and evictions of each tag, shared by its guards.
+     */
+    private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<>(4);
+
+    /**
+     * @param idleMillis Time after which the meters of an unused value are removed, {@code 0} keeps them.
+     */
+    public CardinalityGovernor(MeterRegistry registry, long idleMillis) {
+        this.registry = registry;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Evicts the idle values of every guard.
+     *
+     * @return Values evicted.
+     */
+    public int sweep(long now) {
+        int evicted = 0;
+        for (Metric metric : metrics.values()) {
+            for (Guard<?> guard : metric.guards) {
+                evicted += guard.evictIdle(now);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @param tag    Key of the tag the values are for.
+     * @param limit  Values getting their own meters, pinned ones aside.
+     * @param create Registers the meters of a value.
+     * @param remove Removes the meters of an evicted value from the registry.
+     */
+    public <V> Guard<V> guard(String tag, int limit, Function<String, V> create, Consumer<V> remove) {
+        final Metric metric = metrics.computeIfAbsent(tag, (t) -> new Metric(registry, t));
+        final Guard<V> guard = new Guard<>(metric, limit, idleMillis, create, remove);
+        metric.guards.add(guard);
+        return guard;
+    }
+
+    private static final class Metric {
+        private final Counter       overflows;
+        private final Counter       evictions;
+        private final Set<Guard<?>> guards = ConcurrentHashMap.newKeySet();
+
+        Metric(MeterRegistry registry, String tag) {
+            this.overflows = Counter.builder(OVERFLOWS)
+                    .description(OVERFLOWS_HELP)
+                    .baseUnit("requests")
+                    .tag("tag", tag)
+                    .register(registry);
+            this.evictions = Counter.builder(EVICTIONS)
+                    .description(EVICTIONS_HELP)
+                    .baseUnit("values")
+                    .tag("tag", tag)
+                    .register(registry);
+            Gauge.builder(SIZE, this, Metric::size)
+                    .description(SIZE_HELP)
+                    .baseUnit("values")
+                    .tag("tag", tag)
+                    .register(registry);
+        }
+
+        private double size() {
+            long size = 0;
+            for (Guard<?> guard : guards) {
+                size += guard.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * The values of one tag under one parent, e.g. the clients of a destination.
+     */
+    public static final class Guard<V> {
+        private final Metric              metric;
+        private final int                 limit;
+        private final long                idleMillis;
+        private final Function<String, V> create;
+        private final Consumer<V>         remove;
+
+        private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<>(8);
+        private final Set<String>                     pinned  = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Entries counting against the limit, only written under the lock.
+         */
+        private volatile int  limited;
+        private volatile long swept;
+        private boolean       closed;
+
+        private Guard(Metric metric, int limit, long idleMillis, Function<String, V> create, Consumer<V> remove) {
+            this.metric = metric;
+            this.limit = limit;
+            this.idleMillis = idleMillis;
+            this.create = create;
+            this.remove = remove;
+            this.swept = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The meters of the value, or of {@link #OTHER} when the guard is full.
+         */
+        public V get(String key) {
+            final Entry<V> e = entries.get(key);
+            if (e != null) {
+                e.touch();
+                return e.value;
+            }
+            if (limited >= limit && !pinned.contains(key)
+                    && System.currentTimeMillis() - swept < SWEEP_MILLIS) {
+                // full and swept a moment ago, no need to lock
+                final Entry<V> other = entries.get(OTHER);
+                if (other != null) {
+                    metric.overflows.increment();
+                    other.touch();
+                    return other.value;
+                }
+            }
+            return create(key);
+        }
+
+        /**
+         * @return The meters of the value without counting it as used, {@code null} if it has none.
+         */
+        public V peek(String key) {
+            final Entry<V> e = entries.get(key);
+            return e == null ? null : e.value;
+        }
+
+        private synchronized V create(String key) {
+            Entry<V> e = entries.get(key);
+            if (e == null) {
+                final boolean counted = !OTHER.equals(key) && !pinned.contains(key);
+                if (counted && limited >= limit) {
+                    final long now = System.currentTimeMillis();
+                    if (now - swept >= SWEEP_MILLIS) {
+                        evictIdle(now);
+                    }
+                    if (limited >= limit) {
+                        metric.overflows.increment();
+                        e = entry(OTHER, false);
+                        e.touch();
+                        return e.value;
+                    }
+                }
+                e = entry(key, counted);
+            }
+            e.touch();
+            return e.value;
+        }
+
+        private Entry<V> entry(String key, boolean counted) {
+            Entry<V> e = entries.get(key);
+            if (e == null) {
+                e = new Entry<>(create.apply(key), counted, System.currentTimeMillis());
+                if (closed) {
+                    // the parent went away meanwhile, hand out meters no longer registered
+                    remove.accept(e.value);
+                    return e;
+                }
+                entries.put(key, e);
+                if (counted) {
+                    limited++;
+                }
+            }
+            return e;
+        }
+
+        /**
+         * Keeps the value out of the limit and the eviction, until {@link #unpin(String)}.
+         */
+        public synchronized void pin(String key) {
+            pinned.add(key);
+            final Entry<V> e = entries.get(key);
+            if (e != null && e.counted) {
+                e.counted = false;
+                limited--;
+            }
+        }
+
+        public void unpin(String key) {
+            pinned.remove(key);
+        }
+
+        /**
+         * Removes the meters of the value.
+         */
+        public synchronized void remove(String key) {
+            final Entry<V> e = entries.remove(key);
+            if (e != null) {
+                if (e.counted) {
+                    limited--;
+                }
+                remove.accept(e.value);
+            }
+        }
+
+        /**
+         * Removes the meters of every value, the values asked for afterwards get meters no longer registered.
+         */
+        public synchronized void clear() {
+            closed = true;
+            metric.guards.remove(this);
+            for (Entry<V> e : entries.values()) {
+                remove.accept(e.value);
+            }
+            entries.clear();
+            limited = 0;
+        }
+
+        /**
+         * Removes the meters of the values not used since the sweep that came at least {@code idleMillis} before.
+         *
+         * @return Values evicted.
+         */
+        public synchronized int evictIdle(long now) {
+            swept = now;
+            if (idleMillis <= 0) {
+                return 0;
+            }
+            int evicted = 0;
+            for (Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<String, Entry<V>> me = it.next();
+                final Entry<V> e = me.getValue();
+                if (e.touched) {
+                    e.touched = false;
+                    e.seen = now;
+                } else if (now - e.seen >= idleMillis && !pinned.contains(me.getKey())) {
+                    it.remove();
+                    if (e.counted) {
+                        limited--;
+                    }
+                    remove.accept(e.value);
+                    evicted++;
+                }
+            }
+            if (evicted > 0) {
+                metric.evictions.increment(evicted);
+            }
+            return evicted;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private boolean counted;
+        private long    seen;
+
+        /**
+         * Set on every use, cleared by the sweeps, so the request path does not read the clock.
+         */
+        private volatile boolean touched;
+
+        Entry(V value, boolean counted, long seen) {
+            this.value = value;
+            this.counted = counted;
+            this.seen = seen;
+        }
+
+        void touch() {
+            if (!touched) {
+                touched = true;
+            }
+        }
+    }
+}
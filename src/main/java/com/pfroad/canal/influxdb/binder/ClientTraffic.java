@@ -0,0 +1,158 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What one client of a destination pulls: the size of every packet sent to it by type, the fetch size it asks
+ * for, and its byte, batch and empty batch rates over the last step.
+ * <p>
+ * The rates are computed here rather than in influx: the totals are rolled over when a gauge is read in a new
+ * step, so every gauge of the step reports the same interval, however many registries or scrapers read them.
+ */
+public class ClientTraffic {
+    private static final String BATCH_BYTES       = "canal.instance.client.batch.bytes";
+    private static final String FETCH_SIZE        = "canal.instance.client.fetch.size";
+    private static final String BYTES_RATE        = "canal.instance.client.bytes.rate";
+    private static final String BATCHES_RATE      = "canal.instance.client.batches.rate";
+    private static final String EMPTY_RATIO       = "canal.instance.client.empty.ratio";
+    private static final String BATCH_BYTES_HELP  = "Bytes of each packet sent to the client";
+    private static final String FETCH_SIZE_HELP   = "Batch size the client asks for in its get requests";
+    private static final String BYTES_RATE_HELP   = "Bytes per second sent to the client over the last step";
+    private static final String BATCHES_RATE_HELP = "Get batches per second sent to the client over the last step";
+    private static final String EMPTY_RATIO_HELP  = "Empty batches over all get batches of the client in the last step";
+
+    private static final CanalPacket.PacketType[] PACKET_TYPES = CanalPacket.PacketType.values();
+
+    private final MeterRegistry       registry;
+    private final Tags                tags;
+    private final long                stepMillis;
+    private final DistributionSummary fetchSize;
+    private final List<Meter>         meters = new CopyOnWriteArrayList<>();
+    private volatile boolean          removed;
+
+    /**
+     * Packet size summaries indexed by {@link CanalPacket.PacketType#ordinal()}, created on first use.
+     */
+    private final AtomicReferenceArray<DistributionSummary> batchBytes =
+            new AtomicReferenceArray<>(PACKET_TYPES.length);
+
+    private final LongAdder bytes   = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder empty   = new LongAdder();
+
+    private long   rolled;
+    private long   rolledBytes;
+    private long   rolledBatches;
+    private long   rolledEmpty;
+    private double bytesRate   = Double.NaN;
+    private double batchesRate = Double.NaN;
+    private double emptyRatio  = Double.NaN;
+
+    public ClientTraffic(MeterRegistry registry, String destination, String clientId, long stepMillis) {
+        this.registry = registry;
+        this.tags = Tags.of(CanalInstanceMetrics.DESTINATION, destination, "clientId", clientId);
+        this.stepMillis = stepMillis;
+        this.rolled = System.currentTimeMillis();
+        this.fetchSize = DistributionSummary.builder(FETCH_SIZE)
+                .description(FETCH_SIZE_HELP)
+                .baseUnit("entries")
+                .tags(tags)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(registry);
+        meters.add(fetchSize);
+        meters.add(Gauge.builder(BYTES_RATE, this, (t) -> t.roll().bytesRate)
+                .description(BYTES_RATE_HELP)
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry));
+        meters.add(Gauge.builder(BATCHES_RATE, this, (t) -> t.roll().batchesRate)
+                .description(BATCHES_RATE_HELP)
+                .baseUnit("batches")
+                .tags(tags)
+                .register(registry));
+        meters.add(Gauge.builder(EMPTY_RATIO, this, (t) -> t.roll().emptyRatio)
+                .description(EMPTY_RATIO_HELP)
+                .tags(tags)
+                .register(registry));
+    }
+
+    /**
+     * @param fetchSize Batch size asked for by a get request, {@code 0} for the other packets.
+     */
+    public void record(CanalPacket.PacketType type, int amount, boolean isEmpty, int fetchSize) {
+        bytes.add(amount);
+        batchBytes(type).record(amount);
+        if (type == CanalPacket.PacketType.GET) {
+            batches.increment();
+            if (isEmpty) {
+                empty.increment();
+            }
+            if (fetchSize > 0) {
+                this.fetchSize.record(fetchSize);
+            }
+        }
+    }
+
+    /**
+     * Removes the meters of the client from the registry.
+     */
+    public void remove() {
+        removed = true;
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+    }
+
+    private DistributionSummary batchBytes(CanalPacket.PacketType type) {
+        final int i = type.ordinal();
+        final DistributionSummary s = batchBytes.get(i);
+        if (s != null) {
+            return s;
+        }
+        final DistributionSummary created = DistributionSummary.builder(BATCH_BYTES)
+                .description(BATCH_BYTES_HELP)
+                .baseUnit("bytes")
+                .tags(tags)
+                .tag("packetType", type.name())
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(registry);
+        if (batchBytes.compareAndSet(i, null, created)) {
+            meters.add(created);
+        }
+        // a request racing remove() must not bring the meter back for good
+        if (removed) {
+            registry.remove(created);
+        }
+        return batchBytes.get(i);
+    }
+
+    /**
+     * Computes the rates since the previous roll, once per step.
+     */
+    private synchronized ClientTraffic roll() {
+        final long now = System.currentTimeMillis();
+        if (now / stepMillis == rolled / stepMillis || now <= rolled) {
+            return this;
+        }
+        final long b = bytes.sum(), n = batches.sum(), e = empty.sum();
+        final double seconds = (now - rolled) / 1000d;
+        bytesRate = (b - rolledBytes) / seconds;
+        batchesRate = (n - rolledBatches) / seconds;
+        emptyRatio = n == rolledBatches ? Double.NaN : (double) (e - rolledEmpty) / (n - rolledBatches);
+        rolled = now;
+        rolledBytes = b;
+        rolledBatches = n;
+        rolledEmpty = e;
+        return this;
+    }
+}
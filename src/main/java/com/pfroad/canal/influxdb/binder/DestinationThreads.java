@@ -0,0 +1,221 @@
+package com.pfroad.canal.influxdb.binder;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The cpu and the allocations of the threads canal runs for each destination, published as
+ * {@code canal.instance.threads.cpu}, {@code canal.instance.threads.allocation} and {@code canal.instance.threads}.
+ * <p>
+ * The threads are told by their names: the parser and its heartbeat timer are named
+ * {@code destination = <destination> , address = ...}, the pools of the parallel parser
+ * {@code MultiStageCoprocessor-Parser-<destination>-<n>} and {@code MultiStageCoprocessor-other-<destination>-<n>}.
+ * The netty threads serving the clients are shared by all destinations and not attributed.
+ * <p>
+ * All destinations are sampled in one pass over the threads once per step, when the first gauge is read in it: the
+ * thread ids are listed, the names are only read for the threads not seen yet, and the cpu time and the allocated
+ * bytes are read for the attributed threads in a single call each. A thread started during the step counts all it
+ * used since its start, a thread that ended during the step counts nothing of its last step.
+ */
+public class DestinationThreads {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DestinationThreads.class);
+
+    private static final String CPU             = "canal.instance.threads.cpu";
+    private static final String ALLOCATION      = "canal.instance.threads.allocation";
+    private static final String THREADS         = "canal.instance.threads";
+    private static final String CPU_HELP        = "Cpu of the threads of the destination in the last step, 100 a core";
+    private static final String ALLOCATION_HELP = "Bytes per second allocated by the threads of the destination";
+    private static final String THREADS_HELP    = "Live threads of the destination";
+
+    private static final String   PARSER      = "destination = ";
+    private static final String   PARSER_END  = " , ";
+    private static final String   COPROCESSOR = "MultiStageCoprocessor-";
+    private static final String[] STAGES      = {COPROCESSOR + "Parser-", COPROCESSOR + "other-"};
+
+    private final long                            stepMillis;
+    private final ThreadMXBean                    threads      = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.ThreadMXBean hotspot;
+    private final ConcurrentMap<String, Usage>    destinations = new ConcurrentHashMap<>(16);
+
+    /**
+     * Destination of every thread seen, {@code ""} for the threads of none, only used by the sampling pass.
+     */
+    private final Map<Long, String> owners    = new HashMap<>();
+    private final Map<Long, long[]> lastUsage = new HashMap<>();
+    private long rolled;
+
+    public DestinationThreads(long stepMillis) {
+        this.stepMillis = stepMillis;
+        this.hotspot = threads instanceof com.sun.management.ThreadMXBean && supported(threads)
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        if (hotspot == null) {
+            LOGGER.info("Thread cpu time or allocated bytes not available, the destination threads are only counted.");
+        }
+    }
+
+    private static boolean supported(ThreadMXBean threads) {
+        final com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+        return t.isThreadCpuTimeSupported() && t.isThreadCpuTimeEnabled()
+                && t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Publishes the threads of the destination, its meters are removed by {@link CanalInstanceMetrics#unbind()}.
+     */
+    public void register(MeterRegistry registry, String destination) {
+        final Usage usage = new Usage();
+        destinations.put(destination, usage);
+        final Tags tags = Tags.of(CanalInstanceMetrics.DESTINATION, destination);
+        Gauge.builder(CPU, usage, (u) -> roll(u).cpu)
+                .description(CPU_HELP)
+                .baseUnit("percent")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder(ALLOCATION, usage, (u) -> roll(u).allocation)
+                .description(ALLOCATION_HELP)
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder(THREADS, usage, (u) -> roll(u).threads)
+                .description(THREADS_HELP)
+                .baseUnit("threads")
+                .tags(tags)
+                .register(registry);
+    }
+
+    public void unregister(String destination) {
+        destinations.remove(destination);
+    }
+
+    private Usage roll(Usage usage) {
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now / stepMillis != rolled / stepMillis && now > rolled) {
+                sample(now);
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * The one pass over the threads of a step.
+     */
+    private void sample(long now) {
+        final long[] ids = threads.getAllThreadIds();
+        resolve(ids);
+
+        int attributed = 0;
+        final long[] canal = new long[ids.length];
+        for (long id : ids) {
+            if (!owners.get(id).isEmpty()) {
+                canal[attributed++] = id;
+            }
+        }
+        final long[] ownIds = new long[attributed];
+        System.arraycopy(canal, 0, ownIds, 0, attributed);
+        final long[] cpu = hotspot == null ? null : hotspot.getThreadCpuTime(ownIds);
+        final long[] allocated = hotspot == null ? null : hotspot.getThreadAllocatedBytes(ownIds);
+
+        final Map<String, long[]> sums = new HashMap<>();
+        final Map<Long, long[]> usages = new HashMap<>(ownIds.length * 2);
+        for (int i = 0; i < ownIds.length; i++) {
+            final long[] sum = sums.computeIfAbsent(owners.get(ownIds[i]), (d) -> new long[3]);
+            sum[2]++;
+            if (cpu == null || cpu[i] < 0 || allocated[i] < 0) {
+                // ended meanwhile
+                continue;
+            }
+            final long[] last = lastUsage.get(ownIds[i]);
+            sum[0] += cpu[i] - (last == null ? 0 : last[0]);
+            sum[1] += allocated[i] - (last == null ? 0 : last[1]);
+            usages.put(ownIds[i], new long[]{cpu[i], allocated[i]});
+        }
+
+        final boolean first = rolled == 0;
+        final double seconds = (now - rolled) / 1000d;
+        for (Map.Entry<String, Usage> e : destinations.entrySet()) {
+            final long[] sum = sums.get(e.getKey());
+            final Usage usage = e.getValue();
+            usage.threads = sum == null ? 0 : sum[2];
+            if (first || hotspot == null) {
+                continue;
+            }
+            usage.cpu = sum == null ? 0 : sum[0] / 1e7 / seconds;
+            usage.allocation = sum == null ? 0 : sum[1] / seconds;
+        }
+
+        lastUsage.clear();
+        lastUsage.putAll(usages);
+        owners.keySet().retainAll(live(ids));
+        rolled = now;
+    }
+
+    /**
+     * Finds the destination of the threads not seen yet, reading only their names.
+     */
+    private void resolve(long[] ids) {
+        int unknown = 0;
+        final long[] newIds = new long[ids.length];
+        for (long id : ids) {
+            if (!owners.containsKey(id)) {
+                newIds[unknown++] = id;
+            }
+        }
+        if (unknown == 0) {
+            return;
+        }
+        final long[] toRead = new long[unknown];
+        System.arraycopy(newIds, 0, toRead, 0, unknown);
+        final ThreadInfo[] infos = threads.getThreadInfo(toRead, 0);
+        for (int i = 0; i < toRead.length; i++) {
+            owners.put(toRead[i], infos[i] == null ? "" : destinationOf(infos[i].getThreadName()));
+        }
+    }
+
+    private static Set<Long> live(long[] ids) {
+        final Set<Long> live = new HashSet<>(ids.length * 2);
+        for (long id : ids) {
+            live.add(id);
+        }
+        return live;
+    }
+
+    /**
+     * @return The destination in the name of a canal thread, {@code ""} for the other threads.
+     */
+    static String destinationOf(String name) {
+        if (name.startsWith(PARSER)) {
+            final int end = name.indexOf(PARSER_END, PARSER.length());
+            return end < 0 ? name.substring(PARSER.length()) : name.substring(PARSER.length(), end);
+        }
+        if (name.startsWith(COPROCESSOR)) {
+            for (String stage : STAGES) {
+                if (name.startsWith(stage)) {
+                    // the thread factory appends -<n>
+                    final int end = name.lastIndexOf('-');
+                    return end > stage.length() ? name.substring(stage.length(), end) : "";
+                }
+            }
+        }
+        return "";
+    }
+
+    private static final class Usage {
+        private volatile double cpu        = Double.NaN;
+        private volatile double allocation = Double.NaN;
+        private volatile double threads;
+    }
+}
@@ -4,9 +4,13 @@ import com.alibaba.otter.canal.instance.core.CanalInstance;
 import com.alibaba.otter.canal.sink.CanalEventDownStreamHandler;
 import com.alibaba.otter.canal.sink.CanalEventSink;
 import com.alibaba.otter.canal.sink.entry.EntryEventSink;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,49 +21,111 @@ public class EntryMetrics implements MeterBinder {
     private static final Logger LOGGER = LoggerFactory.getLogger(EntryMetrics.class);
     private static final String DELAY = "canal.instance.traffic.delay";
     private static final String TRANSACTION = "canal.instance.transactions";
+    private static final String LAG = "canal.instance.traffic.lag";
+    private static final String LAG_EVENTS = "canal.instance.traffic.lag.events";
+    private static final String SAMPLING = "canal.instance.sampling.rate";
     private static final String DELAY_HELP = "Traffic delay of canal instance in milliseconds";
+    private static final String LAG_HELP = "Delay between execution and sink of the sampled row events";
+    private static final String LAG_EVENTS_HELP = "Row events with an execute time, sampled or not";
+    private static final String SAMPLING_HELP = "Fraction of the sunk batches recorded in detail";
     private static final String TRANSACTION_HELP = "Transactions counter of canal instance";
 
-    private final CanalInstance instance;
+    private final CanalInstance     instance;
+    private final Tags              tags;
+    private final CanalInfluxConfig config;
+    private final InstanceSampler   sampler;
+    private final StoreResidence    residence;
 
-    public EntryMetrics(CanalInstance instance) {
+    /**
+     * @param residence Stamped after each put, {@code null} without a memory store.
+     */
+    public EntryMetrics(CanalInstance instance, Tags tags, CanalInfluxConfig config, InstanceSampler sampler,
+                        StoreResidence residence) {
         this.instance = instance;
+        this.tags = tags;
+        this.config = config;
+        this.sampler = sampler;
+        this.residence = residence;
     }
 
     @Override
     public void bindTo(MeterRegistry registry) {
-        final CanalEventSink sink = instance.getEventSink();
-        if (!(sink instanceof EntryEventSink)) {
-            throw new IllegalArgumentException("CanalEventSink must be EntryEventSink");
-        }
-        final EntryEventSink entrySink = (EntryEventSink) sink;
-        final InfluxCanalEventDownStreamHandler influxHandler = assembleHandler(entrySink);
-        final long now = System.currentTimeMillis();
-        Gauge.builder(DELAY, influxHandler, (handler) -> {
-            final long latest = handler.getLatestExecuteTime().get();
-            if (now >= latest) {
-                return now - latest;
-            }
-            return 0;
+        final EntryEventSink entrySink = checkSink(instance);
+        sampler.attach(assembleHandler(entrySink, registry));
+        Gauge.builder(DELAY, sampler, (s) -> {
+            final InstanceSnapshot snapshot = s.snapshot();
+            return snapshot.delay(snapshot.getLatestExecuteTime());
         }).description(DELAY_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
 
-        FunctionCounter.builder(TRANSACTION, influxHandler, (handler) -> handler.getTransactionCounter().doubleValue())
+        FunctionCounter.builder(TRANSACTION, sampler, (s) -> s.snapshot().getTransactions())
                 .description(TRANSACTION_HELP)
+                .tags(tags)
                 .register(registry);
 
     }
 
-    private InfluxCanalEventDownStreamHandler assembleHandler(EntryEventSink entrySink) {
-        InfluxCanalEventDownStreamHandler ih = new InfluxCanalEventDownStreamHandler();
+    private InfluxCanalEventDownStreamHandler assembleHandler(EntryEventSink entrySink, MeterRegistry registry) {
+        final int topK = config.tableTopK();
+        final TableTraffic tableTraffic = topK > 0
+                ? new TableTraffic(registry, tags, topK, config.step().toMillis())
+                : null;
+        final Timer lag = Timer.builder(LAG)
+                .description(LAG_HELP)
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .tags(tags)
+                .register(registry);
+        final Counter lagged = Counter.builder(LAG_EVENTS)
+                .description(LAG_EVENTS_HELP)
+                .baseUnit("events")
+                .tags(tags)
+                .register(registry);
+        final TransactionTracker transactions = new TransactionTracker(registry, tags, instance.getDestination(),
+                config.largeTransactionRows());
+        final AdaptiveSampler sampler = new AdaptiveSampler(config.samplingBudget());
+        Gauge.builder(SAMPLING, sampler, AdaptiveSampler::getRate)
+                .description(SAMPLING_HELP)
+                .tags(tags)
+                .register(registry);
+        InfluxCanalEventDownStreamHandler ih = new InfluxCanalEventDownStreamHandler(instance.getDestination(), lag,
+                lagged, transactions, tableTraffic, sampler, new HookTime(registry, tags, "before"), residence);
+        entrySink.addHandler(ih, 0);
+        return ih;
+    }
+
+    /**
+     * Checks the instance can take the downstream handler, before any meter of it is registered.
+     *
+     * @return The sink of the instance.
+     */
+    static EntryEventSink checkSink(CanalInstance instance) {
+        final CanalEventSink sink = instance.getEventSink();
+        if (!(sink instanceof EntryEventSink)) {
+            throw new IllegalArgumentException("CanalEventSink must be EntryEventSink");
+        }
+        final EntryEventSink entrySink = (EntryEventSink) sink;
         List<CanalEventDownStreamHandler> handlers = entrySink.getHandlers();
         for (CanalEventDownStreamHandler handler : handlers) {
             if (handler instanceof InfluxCanalEventDownStreamHandler) {
                 throw new IllegalStateException("InfluxCanalEventDownStreamHandler already exists in handlers.");
             }
         }
-        entrySink.addHandler(ih, 0);
-        return ih;
+        return entrySink;
+    }
+
+    static void disassembleHandler(CanalInstance instance) {
+        final CanalEventSink sink = instance.getEventSink();
+        if (!(sink instanceof EntryEventSink)) {
+            return;
+        }
+        final EntryEventSink entrySink = (EntryEventSink) sink;
+        for (CanalEventDownStreamHandler handler : entrySink.getHandlers()) {
+            if (handler instanceof InfluxCanalEventDownStreamHandler) {
+                entrySink.removeHandler(handler);
+                return;
+            }
+        }
     }
 }
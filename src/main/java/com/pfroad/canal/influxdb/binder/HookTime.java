@@ -0,0 +1,40 @@
+package com.pfroad.canal.influxdb.binder;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in one of the hooks canal calls on its own threads, published as
+ * {@code canal.metrics.exporter.hook}. Only a count and a sum are kept, a timer histogram would cost more than
+ * most of the hooks it measures.
+ */
+public class HookTime {
+    private static final String HOOK      = "canal.metrics.exporter.hook";
+    private static final String HOOK_HELP = "Time spent in the canal hooks of the exporter";
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    /**
+     * @param hook Name of the hook, the {@code hook} tag.
+     */
+    public HookTime(MeterRegistry registry, Tags tags, String hook) {
+        FunctionTimer.builder(HOOK, this, (h) -> h.calls.sum(), (h) -> h.nanos.sum(), TimeUnit.NANOSECONDS)
+                .description(HOOK_HELP)
+                .tags(tags)
+                .tag("hook", hook)
+                .register(registry);
+    }
+
+    /**
+     * @param started {@link System#nanoTime()} when the hook was entered.
+     */
+    public void record(long started) {
+        calls.increment();
+        nanos.add(System.nanoTime() - started);
+    }
+}
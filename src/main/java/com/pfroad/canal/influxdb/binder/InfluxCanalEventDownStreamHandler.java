@@ -4,8 +4,12 @@ import com.alibaba.otter.canal.protocol.CanalEntry;
 import com.alibaba.otter.canal.protocol.CanalEntry.EntryType;
 import com.alibaba.otter.canal.sink.AbstractCanalEventDownStreamHandler;
 import com.alibaba.otter.canal.store.model.Event;
+import com.pfroad.canal.influxdb.jfr.FlightEvents;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -15,11 +19,53 @@ public class InfluxCanalEventDownStreamHandler extends AbstractCanalEventDownStr
 
     private final AtomicLong latestExecuteTime  = new AtomicLong(System.currentTimeMillis());
     private final AtomicLong transactionCounter = new AtomicLong(0L);
+    private final String             destination;
+    private final Timer              lag;
+    private final Counter            lagged;
+    private final TransactionTracker transactions;
+    private final TableTraffic       tableTraffic;
+    private final AdaptiveSampler    sampler;
+    private final HookTime           hookTime;
+    private final StoreResidence     residence;
+
+    /**
+     * The lag and the table counters are only recorded for the batches picked by the sampler, the transactions,
+     * the count of the row events the lag is taken of and the latest execute time always are. The table counters
+     * are scaled by the sampling weight, the lag timer is not: its distribution holds, its count and total
+     * only cover the sampled batches.
+     *
+     * @param destination  Carried by the flight recorder events of the batches.
+     * @param lag          Receives the delay between the execution of each row event and its sink.
+     * @param lagged       Counts every row event with an execute time, sampled or not.
+     * @param transactions Follows the transactions across batches.
+     * @param tableTraffic Per table counters, {@code null} to skip them.
+     * @param sampler      Picks the batches to record.
+     * @param hookTime     Receives the time spent in {@link #before(List)}.
+     * @param residence    Stamps each batch put into the store, {@code null} to skip it.
+     */
+    public InfluxCanalEventDownStreamHandler(String destination, Timer lag, Counter lagged,
+                                             TransactionTracker transactions, TableTraffic tableTraffic,
+                                             AdaptiveSampler sampler, HookTime hookTime, StoreResidence residence) {
+        this.destination = destination;
+        this.lag = lag;
+        this.lagged = lagged;
+        this.transactions = transactions;
+        this.tableTraffic = tableTraffic;
+        this.sampler = sampler;
+        this.hookTime = hookTime;
+        this.residence = residence;
+    }
 
     @Override
     public List<Event> before(List<Event> events) {
         long localExecTime = 0L;
         if (events != null && !events.isEmpty()) {
+            final long entered = System.nanoTime();
+            final Object trace = FlightEvents.beginBatch();
+            final long now = System.currentTimeMillis();
+            final int weight = sampler.sample();
+            final long started = weight > 0 && sampler.isAdaptive() ? System.nanoTime() : 0L;
+            int rows = 0;
             for (Event e : events) {
                 EntryType type = e.getEntryType();
                 if (type == null) continue;
@@ -27,23 +73,31 @@ public class InfluxCanalEventDownStreamHandler extends AbstractCanalEventDownStr
                     case TRANSACTIONBEGIN: {
                         long exec = e.getExecuteTime();
                         if (exec > 0) localExecTime = exec;
+                        transactions.begin(e);
                         break;
                     }
                     case ROWDATA: {
                         long exec = e.getExecuteTime();
-                        if (exec > 0) localExecTime = exec;
+                        if (exec > 0) {
+                            localExecTime = exec;
+                            rows++;
+                            if (weight > 0) lag.record(Math.max(0L, now - exec), TimeUnit.MILLISECONDS);
+                        }
+                        transactions.row(e);
+                        if (weight > 0 && tableTraffic != null) tableTraffic.record(e, weight);
                         break;
                     }
                     case TRANSACTIONEND: {
                         long exec = e.getExecuteTime();
                         if (exec > 0) localExecTime = exec;
                         transactionCounter.incrementAndGet();
+                        transactions.end(e);
                         break;
                     }
                     case HEARTBEAT:
                         CanalEntry.EventType eventType = e.getEventType();
                         if (eventType == CanalEntry.EventType.MHEARTBEAT) {
-                            localExecTime = System.currentTimeMillis();
+                            localExecTime = now;
                         }
                         break;
                     default:
@@ -53,6 +107,28 @@ public class InfluxCanalEventDownStreamHandler extends AbstractCanalEventDownStr
             if (localExecTime > 0) {
                 latestExecuteTime.lazySet(localExecTime);
             }
+            if (rows > 0) {
+                lagged.increment(rows);
+            }
+            if (tableTraffic != null) {
+                tableTraffic.refresh(now);
+            }
+            if (started != 0L) {
+                final long finished = System.nanoTime();
+                sampler.spent(finished - started, finished);
+            }
+            hookTime.record(entered);
+            if (trace != null) {
+                FlightEvents.commitBatch(trace, destination, events);
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public List<Event> after(List<Event> events) {
+        if (residence != null && events != null && !events.isEmpty()) {
+            residence.put();
         }
         return events;
     }
@@ -76,4 +152,8 @@ public class InfluxCanalEventDownStreamHandler extends AbstractCanalEventDownStr
         return transactionCounter;
     }
 
+    public AdaptiveSampler getSampler() {
+        return sampler;
+    }
+
 }
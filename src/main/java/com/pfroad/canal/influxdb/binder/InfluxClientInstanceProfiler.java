@@ -3,14 +3,20 @@ package com.pfroad.canal.influxdb.binder;
 import com.alibaba.otter.canal.protocol.CanalPacket;
 import com.alibaba.otter.canal.server.netty.ClientInstanceProfiler;
 import com.alibaba.otter.canal.server.netty.listener.ChannelFutureAggregator;
+import com.google.protobuf.GeneratedMessageV3;
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import com.pfroad.canal.influxdb.jfr.FlightEvents;
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Gauge;
-import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class InfluxClientInstanceProfiler implements ClientInstanceProfiler {
 
@@ -19,158 +25,200 @@ public class InfluxClientInstanceProfiler implements ClientInstanceProfiler {
     private static final String EMPTY_BATCHES  = "canal.instance.client.empty.batches";
     private static final String ERRORS         = "canal.instance.client.request.error";
     private static final String LATENCY        = "canal.instance.client.request.latency";
-    private static final String OUTBOUND_COUNTER = "outbound_counter";
-    private static final String PACKETS_COUNTER = "packets_counter";
-    private static final String EMPTY_COUNTER = "empty_counter";
-    private static final String ERROR_COUNTER = "errors_counter";
-    private static final String LATENCY_GAUGE = "latency_gauge";
-
-//    private Counter outboundCounter;
-//    private Counter packetsCounter;
-//    private Counter emptyBatchCounter;
-//    private Counter errorsCounter;
-//    private Gauge responseLatency;
-    private final MeterRegistry registry;
-    private final AtomicLong latency = new AtomicLong(0);
+    private static final String REQUESTS       = "canal.instance.client.requests";
+    private static final String SAMPLING       = "canal.instance.client.sampling.rate";
+
+    /**
+     * Client id of the traffic of the clients beyond {@code maxClients}.
+     */
+    public static final String OTHER_CLIENTS = CardinalityGovernor.OTHER;
+
+    private static final CanalPacket.PacketType[] PACKET_TYPES = CanalPacket.PacketType.values();
+
+    private final MeterRegistry       registry;
+    private final AdaptiveSampler     sampler;
+    private final HookTime            hookTime;
+    private final CardinalityGovernor governor;
+    private final long                stepMillis;
+    private final int                 maxClients;
+    private final int                 maxErrorCodes;
+    private final long                slowRequestNanos;
     private boolean running = false;
 
-    private final ConcurrentMap<String, AtomicLong> latencyMap = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Meter> meters = new ConcurrentHashMap<>(16);
+    /**
+     * Meters of each destination, resolved once so that the request path only does a single lookup. The
+     * destinations of the bound instances are pinned, the others are whatever the clients ask for and are bounded.
+     */
+    private final CardinalityGovernor.Guard<DestinationMeters> meters;
 
-    public InfluxClientInstanceProfiler(MeterRegistry registry) {
+    /**
+     * Residence of the events in the store of each destination, told when the clients ack.
+     */
+    private final ConcurrentMap<String, StoreResidence> residences = new ConcurrentHashMap<>(16);
+
+    /**
+     * @param sampler Picks the requests whose latency is recorded, the counters always are. The latency timers
+     *                are not scaled by the sampling weight, their count and total only cover the sampled
+     *                requests, {@code canal.instance.client.requests} counts all of them.
+     * @param config  Step of the client rates, and the limits of the destinations, clients and error codes
+     *                getting their own meters, the others share {@link CardinalityGovernor#OTHER}.
+     */
+    public InfluxClientInstanceProfiler(MeterRegistry registry, AdaptiveSampler sampler, CanalInfluxConfig config) {
         this.registry = registry;
+        this.sampler = sampler;
+        this.stepMillis = config.step().toMillis();
+        this.maxClients = config.maxClients();
+        this.maxErrorCodes = config.maxErrorCodes();
+        this.slowRequestNanos = config.slowRequestThreshold().toNanos();
+        this.hookTime = new HookTime(registry, Tags.empty(), "profiling");
+        this.governor = new CardinalityGovernor(registry, config.meterIdleTimeout().toMillis());
+        this.meters = governor.guard(CanalInstanceMetrics.DESTINATION, config.maxDestinations(),
+                DestinationMeters::new, DestinationMeters::remove);
+        Gauge.builder(SAMPLING, sampler, AdaptiveSampler::getRate)
+                .description("Fraction of the client requests whose latency is recorded.")
+                .register(registry);
     }
 
     @Override
     public void profiling(ChannelFutureAggregator.ClientRequestResult result) {
-        final String destination = result.getDestination();
+        final long entered = System.nanoTime();
+        final DestinationMeters dm = meters.get(result.getDestination());
         final CanalPacket.PacketType type = result.getType();
 
-        countOutbound(destination, result.getAmount());
+        dm.outbound.increment(result.getAmount());
+
+        final GeneratedMessageV3 request = result.getRequest();
+        final String clientId = clientId(request);
+        if (clientId != null) {
+            final int fetchSize = request instanceof CanalPacket.Get ? ((CanalPacket.Get) request).getFetchSize() : 0;
+            dm.clients.get(clientId).record(type, result.getAmount(), result.getEmpty(), fetchSize);
+            if (type == CanalPacket.PacketType.UNSUBSCRIPTION && result.getErrorCode() <= 0) {
+                dm.clients.remove(clientId);
+            }
+        }
 
         final short errorCode = result.getErrorCode();
         if (errorCode > 0) {
-            countErrors(destination, errorCode);
+            dm.errors.get(String.valueOf(errorCode)).increment();
         }
 
-        latencyGauge(destination, result.getLatency() / 1000 * 1000L);
+        dm.requests(type).increment();
+        if (sampler.sample() > 0) {
+            if (sampler.isAdaptive()) {
+                final long started = System.nanoTime();
+                dm.latency(type).record(result.getLatency(), TimeUnit.NANOSECONDS);
+                final long finished = System.nanoTime();
+                sampler.spent(finished - started, finished);
+            } else {
+                dm.latency(type).record(result.getLatency(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        if (result.getLatency() >= slowRequestNanos) {
+            FlightEvents.clientRequest(result.getDestination(), type.name(), result.getAmount(), result.getLatency(),
+                    errorCode, result.getEmpty());
+        }
 
         switch (type) {
+            case CLIENTACK:
+                acked(result.getDestination());
+                dm.packets.increment();
+                break;
             case GET:
+                // a get may ack too
+                acked(result.getDestination());
+                dm.gets.increment();
                 final boolean empty = result.getEmpty();
                 if (empty) {
-                    incEmptyBatches(destination);
-//                    emptyBatchCounter.increment();
+                    dm.empties.increment();
+                    dm.emptyBatches.increment();
                 } else {
-                    incPackets(destination);
-//                    packetsCounter.increment();
+                    dm.packets.increment();
                 }
                 break;
             default:
-                incPackets(destination);
+                dm.packets.increment();
                 break;
         }
+        hookTime.record(entered);
     }
 
-    private void countOutbound(String destination, int amount) {
-        final String mKey = destination + "_" + OUTBOUND_COUNTER;
-        if (!meters.containsKey(mKey)) {
-            final Counter outboundCounter = Counter.builder(OUTBOUND_BYTES)
-                    .tag("destination", destination)
-                    .description("Total bytes sent to client.")
-                    .baseUnit("bytes")
-                    .register(this.registry);
-            meters.putIfAbsent(mKey, outboundCounter);
+    /**
+     * @return The client id of the requests that carry one, {@code null} for the others.
+     */
+    private static String clientId(GeneratedMessageV3 request) {
+        final String clientId;
+        if (request instanceof CanalPacket.Get) {
+            clientId = ((CanalPacket.Get) request).getClientId();
+        } else if (request instanceof CanalPacket.ClientAck) {
+            clientId = ((CanalPacket.ClientAck) request).getClientId();
+        } else if (request instanceof CanalPacket.ClientRollback) {
+            clientId = ((CanalPacket.ClientRollback) request).getClientId();
+        } else if (request instanceof CanalPacket.Sub) {
+            clientId = ((CanalPacket.Sub) request).getClientId();
+        } else if (request instanceof CanalPacket.Unsub) {
+            clientId = ((CanalPacket.Unsub) request).getClientId();
+        } else {
+            return null;
         }
-
-        ((Counter) meters.get(mKey)).increment(amount);
+        return clientId.isEmpty() ? null : clientId;
     }
 
-    private void countErrors(String destination, short errorCode) {
-        final String mKey = destination + "_" + ERROR_COUNTER;
-        if (!meters.containsKey(mKey)) {
-            final Counter errorsCounter = Counter.builder(ERRORS)
-                    .tag("destination", destination)
-                    .tag("errorCode", String.valueOf(errorCode))
-                    .description("Total client request errors.")
-                    .baseUnit("errors")
-                    .register(registry);
-
-            meters.putIfAbsent(mKey, errorsCounter);
+    private void acked(String destination) {
+        final StoreResidence residence = residences.get(destination);
+        if (residence != null) {
+            residence.acked();
         }
-
-        ((Counter) meters.get(mKey)).increment();
     }
 
-    private void incPackets(String destination) {
-        final String mKey = destination + "_" + PACKETS_COUNTER;
-        if (!meters.containsKey(mKey)) {
-            final Counter packetsCounter = Counter.builder(PACKET_TYPE)
-                    .tag("destination", destination)
-                    .description("Total packets sent to client.")
-                    .baseUnit("packets")
-                    .register(registry);
-
-            meters.putIfAbsent(mKey, packetsCounter);
+    /**
+     * Keeps the meters of the destination of a bound instance until {@link #unregister(String)}, and tells its
+     * residence when its clients ack.
+     *
+     * @param residence {@code null} without a memory store.
+     */
+    public void register(String destination, StoreResidence residence) {
+        meters.pin(destination);
+        if (residence != null) {
+            residences.put(destination, residence);
         }
-
-        ((Counter) meters.get(mKey)).increment();
     }
 
-    private void incEmptyBatches(String destination) {
-        final String mKey = destination + "_" + EMPTY_COUNTER;
-        if (!meters.containsKey(mKey)) {
-            final Counter emptyBatchCounter = Counter.builder(EMPTY_BATCHES)
-                    .tag("destination", destination)
-                    .description("Total empty batches sent to client.")
-                    .baseUnit("batches")
-                    .register(registry);
-            meters.putIfAbsent(mKey, emptyBatchCounter);
-        }
-
-        ((Counter) meters.get(mKey)).increment();
+    /**
+     * @return Get batches sent to the clients of the destination so far.
+     */
+    public long getGetBatches(String destination) {
+        final DestinationMeters dm = meters.peek(destination);
+        return dm == null ? 0L : dm.gets.sum();
     }
 
-    private void latencyGauge(String destination, long latency) {
-        final String mKey = destination + "_" + LATENCY_GAUGE;
-        if (!latencyMap.containsKey(destination)) {
-            latencyMap.putIfAbsent(destination, new AtomicLong(0));
-        }
+    /**
+     * @return Empty get batches sent to the clients of the destination so far.
+     */
+    public long getEmptyBatches(String destination) {
+        final DestinationMeters dm = meters.peek(destination);
+        return dm == null ? 0L : dm.empties.sum();
+    }
 
-        if (!meters.containsKey(mKey)) {
-            final Gauge responseLatency = Gauge.builder(LATENCY, latencyMap.get(destination), (l) -> l.doubleValue())
-                    .tag("destination", destination)
-                    .description("Client request latency.")
-                    .baseUnit("ms")
-                    .register(registry);
-            meters.putIfAbsent(mKey, responseLatency);
-        }
+    /**
+     * Removes the meters of the destinations, clients and error codes not used for {@code meterIdleTimeout}, to be
+     * run about every step.
+     */
+    public void sweepIdle() {
+        governor.sweep(System.currentTimeMillis());
+    }
 
-        latencyMap.get(destination).getAndSet(latency);
+    /**
+     * Removes the meters of the destination from the registry, {@link CanalInstanceMetrics} sweeps the rest.
+     */
+    public void unregister(String destination) {
+        residences.remove(destination);
+        meters.unpin(destination);
+        meters.remove(destination);
     }
 
     @Override
     public void start() {
-//        outboundCounter = Counter.builder(OUTBOUND_BYTES)
-//                .description("Total bytes sent to client.")
-//                .baseUnit("bytes")
-//                .register(this.registry);
-//        packetsCounter = Counter.builder(PACKET_TYPE)
-//                .description("Total packets sent to client.")
-//                .baseUnit("packets")
-//                .register(registry);
-//        emptyBatchCounter = Counter.builder(EMPTY_BATCHES)
-//                .description("Total empty batches sent to client.")
-//                .baseUnit("batches")
-//                .register(registry);
-//        errorsCounter = Counter.builder(ERRORS)
-//                .description("Total client request errors.")
-//                .baseUnit("errors")
-//                .register(registry);
-//        responseLatency = Gauge.builder(LATENCY, latency, (l) -> l.doubleValue())
-//                .description("Client request latency.")
-//                .baseUnit("ms")
-//                .register(registry);
         running = true;
     }
 
@@ -183,4 +231,117 @@ public class InfluxClientInstanceProfiler implements ClientInstanceProfiler {
     public boolean isStart() {
         return running;
     }
+
+    private final class DestinationMeters {
+        private final String    destination;
+        private final Counter   outbound;
+        private final Counter   packets;
+        private final Counter   emptyBatches;
+        private final LongAdder gets = new LongAdder();
+        // the step counter only tells the last step
+        private final LongAdder empties = new LongAdder();
+        private volatile boolean removed;
+
+        /**
+         * Traffic of the subscribed clients, a client is forgotten when it unsubscribes or stays idle.
+         */
+        private final CardinalityGovernor.Guard<ClientTraffic> clients;
+
+        /**
+         * Error counters by error code.
+         */
+        private final CardinalityGovernor.Guard<Counter> errors;
+
+        /**
+         * Latency timers indexed by {@link CanalPacket.PacketType#ordinal()}, created on first use.
+         */
+        private final AtomicReferenceArray<Timer> latencies = new AtomicReferenceArray<>(PACKET_TYPES.length);
+
+        /**
+         * Request counters indexed by {@link CanalPacket.PacketType#ordinal()}, created on first use.
+         */
+        private final AtomicReferenceArray<Counter> requests = new AtomicReferenceArray<>(PACKET_TYPES.length);
+
+        DestinationMeters(String destination) {
+            this.destination = destination;
+            this.outbound = Counter.builder(OUTBOUND_BYTES)
+                    .tag("destination", destination)
+                    .description("Total bytes sent to client.")
+                    .baseUnit("bytes")
+                    .register(registry);
+            this.packets = Counter.builder(PACKET_TYPE)
+                    .tag("destination", destination)
+                    .description("Total packets sent to client.")
+                    .baseUnit("packets")
+                    .register(registry);
+            this.emptyBatches = Counter.builder(EMPTY_BATCHES)
+                    .tag("destination", destination)
+                    .description("Total empty batches sent to client.")
+                    .baseUnit("batches")
+                    .register(registry);
+            this.clients = governor.guard("clientId", maxClients,
+                    (id) -> new ClientTraffic(registry, destination, id, stepMillis), ClientTraffic::remove);
+            this.errors = governor.guard("errorCode", maxErrorCodes, (code) -> Counter.builder(ERRORS)
+                    .tag("destination", destination)
+                    .tag("errorCode", code)
+                    .description("Total client request errors.")
+                    .baseUnit("errors")
+                    .register(registry), registry::remove);
+        }
+
+        Timer latency(CanalPacket.PacketType type) {
+            final int i = type.ordinal();
+            final Timer t = latencies.get(i);
+            if (t != null) {
+                return t;
+            }
+            latencies.compareAndSet(i, null, Timer.builder(LATENCY)
+                    .tag("destination", destination)
+                    .tag("packetType", type.name())
+                    .description("Client request latency.")
+                    .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                    .register(registry));
+            if (removed) {
+                registry.remove(latencies.get(i));
+            }
+            return latencies.get(i);
+        }
+
+        Counter requests(CanalPacket.PacketType type) {
+            final int i = type.ordinal();
+            final Counter c = requests.get(i);
+            if (c != null) {
+                return c;
+            }
+            requests.compareAndSet(i, null, Counter.builder(REQUESTS)
+                    .tag("destination", destination)
+                    .tag("packetType", type.name())
+                    .description("Total client requests, sampled or not.")
+                    .baseUnit("requests")
+                    .register(registry));
+            if (removed) {
+                registry.remove(requests.get(i));
+            }
+            return requests.get(i);
+        }
+
+        void remove() {
+            removed = true;
+            clients.clear();
+            errors.clear();
+            registry.remove(outbound);
+            registry.remove(packets);
+            registry.remove(emptyBatches);
+            for (int i = 0; i < latencies.length(); i++) {
+                final Timer t = latencies.get(i);
+                if (t != null) {
+                    registry.remove(t);
+                }
+                final Counter c = requests.get(i);
+                if (c != null) {
+                    registry.remove(c);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,120 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.parse.inbound.mysql.MysqlEventParser;
+import com.alibaba.otter.canal.sink.entry.EntryEventSink;
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+
+/**
+ * Reads every counter of an instance in one pass, at most once per step, and hands the same
+ * {@link InstanceSnapshot} to all the meters of the instance until the next step, however many registries or
+ * scrapers read them.
+ * <p>
+ * The counters are read from the end of the pipeline back to its start, ack, get, put, then the handler in front
+ * of the store, so that within a snapshot every stage is at least as far as the one after it, which the delay
+ * and occupancy meters rely on.
+ */
+public class InstanceSampler {
+    private static final int MAX_HISTORY = 512;
+
+    private final MemoryEventStoreWithBuffer store;
+    private final EntryEventSink             sink;
+    private final MysqlEventParser           parser;
+    private final long                       stepMillis;
+    private volatile InfluxCanalEventDownStreamHandler handler;
+
+    private final InstanceSnapshot[] history;
+    private int                      last = -1;
+    private int                      count;
+    private volatile InstanceSnapshot current;
+
+    /**
+     * @param historyMillis How far back {@link #before(InstanceSnapshot, long)} must reach.
+     */
+    public InstanceSampler(CanalInstance instance, long stepMillis, long historyMillis) {
+        this.store = instance.getEventStore() instanceof MemoryEventStoreWithBuffer
+                ? (MemoryEventStoreWithBuffer) instance.getEventStore() : null;
+        this.sink = instance.getEventSink() instanceof EntryEventSink ? (EntryEventSink) instance.getEventSink() : null;
+        this.parser = instance.getEventParser() instanceof MysqlEventParser
+                ? (MysqlEventParser) instance.getEventParser() : null;
+        this.stepMillis = stepMillis;
+        this.history = new InstanceSnapshot[(int) Math.max(4L, Math.min(MAX_HISTORY, historyMillis / stepMillis + 2))];
+    }
+
+    /**
+     * Adds the counters of the downstream handler once it is assembled.
+     */
+    public void attach(InfluxCanalEventDownStreamHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @return The snapshot of the current step, taken now if there is none yet.
+     */
+    public InstanceSnapshot snapshot() {
+        final InstanceSnapshot s = current;
+        final long now = System.currentTimeMillis();
+        if (s != null && now / stepMillis == s.getTime() / stepMillis) {
+            return s;
+        }
+        return sample(now);
+    }
+
+    /**
+     * @return The oldest snapshot at most a window, give or take half a step, before {@code latest}, {@code null}
+     * until there is one at least half a window old.
+     */
+    public synchronized InstanceSnapshot before(InstanceSnapshot latest, long windowMillis) {
+        for (int n = count - 1; n > 0; n--) {
+            final InstanceSnapshot s = history[(last - n + history.length) % history.length];
+            final long age = latest.getTime() - s.getTime();
+            if (age <= windowMillis + stepMillis / 2) {
+                return age >= windowMillis / 2 && age > 0 ? s : null;
+            }
+        }
+        return null;
+    }
+
+    private synchronized InstanceSnapshot sample(long now) {
+        final InstanceSnapshot s = current;
+        if (s != null && now / stepMillis == s.getTime() / stepMillis) {
+            return s;
+        }
+
+        long ackSequence = 0, ackMemSize = 0, ackExecTime = 0, ackTableRows = 0, getExecTime = 0, getTableRows = 0;
+        long putSequence = 0, putMemSize = 0, putExecTime = 0, putTableRows = 0;
+        if (store != null) {
+            ackExecTime = store.getAckExecTime().get();
+            ackSequence = store.getAckSequence().get();
+            ackMemSize = store.getAckMemSize().get();
+            ackTableRows = store.getAckTableRows().get();
+            getExecTime = store.getGetExecTime().get();
+            getTableRows = store.getGetTableRows().get();
+            putExecTime = store.getPutExecTime().get();
+            putSequence = store.getPutSequence().get();
+            putMemSize = store.getPutMemSize().get();
+            putTableRows = store.getPutTableRows().get();
+        }
+        long latestExecuteTime = 0, transactions = 0;
+        final InfluxCanalEventDownStreamHandler h = handler;
+        if (h != null) {
+            latestExecuteTime = h.getLatestExecuteTime().get();
+            transactions = h.getTransactionCounter().get();
+        }
+        final long sinkBlockingTime = sink == null ? 0 : sink.getEventsSinkBlockingTime().get();
+        long publishBlockingTime = 0, receivedBinlogBytes = 0;
+        if (parser != null) {
+            publishBlockingTime = parser.getEventsPublishBlockingTime().get();
+            receivedBinlogBytes = parser.getReceivedBinlogBytes().get();
+        }
+
+        final InstanceSnapshot snapshot = new InstanceSnapshot(now, ackSequence, ackMemSize, ackExecTime,
+                ackTableRows, getExecTime, getTableRows, putSequence, putMemSize, putExecTime, putTableRows,
+                latestExecuteTime, transactions, sinkBlockingTime, publishBlockingTime, receivedBinlogBytes);
+        last = (last + 1) % history.length;
+        count = Math.min(count + 1, history.length);
+        history[last] = snapshot;
+        current = snapshot;
+        return snapshot;
+    }
+}
@@ -0,0 +1,119 @@
+package com.pfroad.canal.influxdb.binder;
+
+/**
+ * Counters of one canal instance read in a single pass by {@link InstanceSampler}.
+ */
+public final class InstanceSnapshot {
+    private final long time;
+    private final long ackSequence;
+    private final long ackMemSize;
+    private final long ackExecTime;
+    private final long ackTableRows;
+    private final long getExecTime;
+    private final long getTableRows;
+    private final long putSequence;
+    private final long putMemSize;
+    private final long putExecTime;
+    private final long putTableRows;
+    private final long latestExecuteTime;
+    private final long transactions;
+    private final long sinkBlockingTime;
+    private final long publishBlockingTime;
+    private final long receivedBinlogBytes;
+
+    InstanceSnapshot(long time, long ackSequence, long ackMemSize, long ackExecTime, long ackTableRows,
+                     long getExecTime, long getTableRows, long putSequence, long putMemSize, long putExecTime,
+                     long putTableRows, long latestExecuteTime, long transactions, long sinkBlockingTime,
+                     long publishBlockingTime, long receivedBinlogBytes) {
+        this.time = time;
+        this.ackSequence = ackSequence;
+        this.ackMemSize = ackMemSize;
+        this.ackExecTime = ackExecTime;
+        this.ackTableRows = ackTableRows;
+        this.getExecTime = getExecTime;
+        this.getTableRows = getTableRows;
+        this.putSequence = putSequence;
+        this.putMemSize = putMemSize;
+        this.putExecTime = putExecTime;
+        this.putTableRows = putTableRows;
+        this.latestExecuteTime = latestExecuteTime;
+        this.transactions = transactions;
+        this.sinkBlockingTime = sinkBlockingTime;
+        this.publishBlockingTime = publishBlockingTime;
+        this.receivedBinlogBytes = receivedBinlogBytes;
+    }
+
+    /**
+     * @return Wall time of the snapshot, the delays are measured against it.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public long getAckSequence() {
+        return ackSequence;
+    }
+
+    public long getAckMemSize() {
+        return ackMemSize;
+    }
+
+    public long getAckExecTime() {
+        return ackExecTime;
+    }
+
+    public long getAckTableRows() {
+        return ackTableRows;
+    }
+
+    public long getGetExecTime() {
+        return getExecTime;
+    }
+
+    public long getGetTableRows() {
+        return getTableRows;
+    }
+
+    public long getPutSequence() {
+        return putSequence;
+    }
+
+    public long getPutMemSize() {
+        return putMemSize;
+    }
+
+    public long getPutExecTime() {
+        return putExecTime;
+    }
+
+    public long getPutTableRows() {
+        return putTableRows;
+    }
+
+    public long getLatestExecuteTime() {
+        return latestExecuteTime;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public long getSinkBlockingTime() {
+        return sinkBlockingTime;
+    }
+
+    public long getPublishBlockingTime() {
+        return publishBlockingTime;
+    }
+
+    public long getReceivedBinlogBytes() {
+        return receivedBinlogBytes;
+    }
+
+    /**
+     * @return Milliseconds between the snapshot and an execute time, never negative.
+     */
+    public long delay(long executeTime) {
+        return Math.max(0L, time - executeTime);
+    }
+}
@@ -7,6 +7,7 @@ import com.alibaba.otter.canal.protocol.ClientIdentity;
 import com.google.common.base.Preconditions;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,9 +24,13 @@ public class MetaMetrics implements MeterBinder {
     private static final String SUBSCRIPTION_HELP = "Canal instance subscriptions";
 
     private final CanalInstance instance;
+    private final Tags          tags;
+    private final CachedGauges  cachedGauges;
 
-    public MetaMetrics(CanalInstance instance) {
+    public MetaMetrics(CanalInstance instance, Tags tags, CachedGauges cachedGauges) {
         this.instance = instance;
+        this.tags = tags;
+        this.cachedGauges = cachedGauges;
     }
 
     @Override
@@ -35,15 +40,14 @@ public class MetaMetrics implements MeterBinder {
         final String destination = instance.getDestination();
 
         Gauge.builder(INSTANCE, new AtomicInteger(0), (ai) -> 1)
-//                .tag("destination", destination)
                 .tag("mode", (instance instanceof CanalInstanceWithSpring) ? "spring" : "manager")
                 .description(INSTANCE_HELP)
+                .tags(tags)
                 .register(registry);
-        Gauge.builder(SUBSCRIPTION, metaManager, (meta) -> {
+        // a remote call with zookeeper backed meta managers, read in the background
+        cachedGauges.gauge(destination, registry, SUBSCRIPTION, SUBSCRIPTION_HELP, "subs", tags, metaManager, (meta) -> {
             final List<ClientIdentity> subs = meta.listAllSubscribeInfo(destination);
             return subs == null ? 0 : ((List) subs).size();
-        }).description(SUBSCRIPTION_HELP)
-                .baseUnit("subs")
-                .register(registry);
+        });
     }
 }
@@ -6,6 +6,7 @@ import com.alibaba.otter.canal.parse.inbound.mysql.MysqlEventParser;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,15 +19,27 @@ public class ParserMetrics implements MeterBinder {
     private static final String PUBLISH_BLOCKING = "canal.instance.publish.blocking.time";
     private static final String RECEIVED_BINLOG  = "canal.instance.received.binlog.bytes";
     private static final String PARSER_MODE      = "canal.instance.parser.mode";
+    private static final String STAGE_QUEUED     = "canal.instance.parser.stage.queued";
+    private static final String STAGE_OCCUPANCY  = "canal.instance.parser.stage.occupancy";
+    private static final String STAGE_RATE       = "canal.instance.parser.stage.rate";
     private static final String MODE_LABEL            = "parallel";
     private static final String PUBLISH_BLOCKING_HELP = "Publish blocking time of dump thread in milliseconds";
     private static final String RECEIVED_BINLOG_HELP  = "Received binlog bytes";
     private static final String MODE_HELP             = "Parser mode(parallel/serial) of instance";
+    private static final String STAGE_QUEUED_HELP     = "Events waiting for the parallel parser stage";
+    private static final String STAGE_OCC_HELP        = "Events waiting for the stage over the ring buffer size";
+    private static final String STAGE_RATE_HELP       = "Events per second through the parser stage over the last step";
 
-    private final CanalInstance instance;
+    private final CanalInstance   instance;
+    private final Tags            tags;
+    private final InstanceSampler sampler;
+    private final long            stepMillis;
 
-    public ParserMetrics(CanalInstance instance) {
+    public ParserMetrics(CanalInstance instance, Tags tags, InstanceSampler sampler, long stepMillis) {
         this.instance = instance;
+        this.tags = tags;
+        this.sampler = sampler;
+        this.stepMillis = stepMillis;
     }
 
     @Override
@@ -37,19 +50,52 @@ public class ParserMetrics implements MeterBinder {
         }
         final MysqlEventParser mysqlEventParser = (MysqlEventParser) parser;
 
-        FunctionCounter.builder(PUBLISH_BLOCKING, mysqlEventParser,
-                (mep) -> mep.getEventsPublishBlockingTime().doubleValue() / 1000 * 1000L)
+        FunctionCounter.builder(PUBLISH_BLOCKING, sampler,
+                (s) -> (double) s.snapshot().getPublishBlockingTime() / 1000 * 1000L)
                 .description(PUBLISH_BLOCKING_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
-        FunctionCounter.builder(RECEIVED_BINLOG, mysqlEventParser, (mep) -> mep.getReceivedBinlogBytes().doubleValue())
+        FunctionCounter.builder(RECEIVED_BINLOG, sampler, (s) -> s.snapshot().getReceivedBinlogBytes())
                 .description(RECEIVED_BINLOG_HELP)
                 .baseUnit("bytes")
+                .tags(tags)
                 .register(registry);
         Gauge.builder(PARSER_MODE, new AtomicInteger(), (ai) -> 1)
-//                .tag("destination", instance.getDestination())
                 .tag("parallel", mysqlEventParser.isParallel() ? "true" : "false")
                 .description(MODE_HELP)
+                .tags(tags)
                 .register(registry);
+
+        if (mysqlEventParser.isParallel()) {
+            bindStages(new ParserStages(mysqlEventParser, stepMillis), registry);
+        }
+    }
+
+    private void bindStages(ParserStages stages, MeterRegistry registry) {
+        for (ParserStages.Stage stage : ParserStages.Stage.values()) {
+            if (stage != ParserStages.Stage.FETCH) {
+                Gauge.builder(STAGE_QUEUED, stages, (s) -> s.getQueued(stage))
+                        .description(STAGE_QUEUED_HELP)
+                        .baseUnit("events")
+                        .tags(tags)
+                        .tag("stage", stage.tag())
+                        .strongReference(true)
+                        .register(registry);
+            }
+            Gauge.builder(STAGE_OCCUPANCY, stages, (s) -> s.getOccupancy(stage))
+                    .description(STAGE_OCC_HELP)
+                    .tags(tags)
+                    .tag("stage", stage.tag())
+                    .strongReference(true)
+                    .register(registry);
+            Gauge.builder(STAGE_RATE, stages, (s) -> s.getRate(stage))
+                    .description(STAGE_RATE_HELP)
+                    .baseUnit("events")
+                    .tags(tags)
+                    .tag("stage", stage.tag())
+                    .strongReference(true)
+                    .register(registry);
+        }
     }
 }
@@ -0,0 +1,169 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.parse.inbound.AbstractEventParser;
+import com.alibaba.otter.canal.parse.inbound.mysql.MysqlMultiStageCoprocessor;
+import com.lmax.disruptor.BatchEventProcessor;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.WorkerPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+
+/**
+ * Positions of the stages of a parser in parallel mode on the ring buffer of its {@link MysqlMultiStageCoprocessor}:
+ * the dump thread publishing the fetched binlog events, the simple parser, the pool of DML parsers and the stage
+ * sinking into the store. None of it is exposed by canal, the fields are read by reflection.
+ * <p>
+ * What sits between two stages is the queue of the later one. The positions are read once per step, from the
+ * last stage back to the first so that no queue shows negative, and the rates are taken between two reads of
+ * the same coprocessor: the parser builds a new one, starting from scratch, each time it reconnects.
+ * <p>
+ * Canal only measures how long the two ends of the ring wait: the dump thread for room in the ring,
+ * {@code canal.instance.publish.blocking.time}, and the sink stage for room in the store,
+ * {@code canal.instance.sink.blocking.time}, both also published as a fraction of the step by
+ * {@link BottleneckMetrics}. A parse stage that cannot keep up shows as its queue filling instead.
+ */
+public class ParserStages {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParserStages.class);
+
+    public enum Stage {
+        FETCH, SIMPLE, DML, SINK;
+
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final Field COPROCESSOR = field(AbstractEventParser.class, "multiStageCoprocessor");
+    private static final Field RING        = field(MysqlMultiStageCoprocessor.class, "disruptorMsgBuffer");
+    private static final Field SIMPLE      = field(MysqlMultiStageCoprocessor.class, "simpleParserStage");
+    private static final Field DML         = field(MysqlMultiStageCoprocessor.class, "workerPool");
+    private static final Field SINK        = field(MysqlMultiStageCoprocessor.class, "sinkStoreStage");
+
+    private final AbstractEventParser parser;
+    private final long                stepMillis;
+
+    private Object   coprocessor;
+    private long     time;
+    private long[]   positions;
+    private int      bufferSize;
+    private double[] rates = rates(null, null, 0L);
+
+    public ParserStages(AbstractEventParser parser, long stepMillis) {
+        this.parser = parser;
+        this.stepMillis = stepMillis;
+    }
+
+    /**
+     * @return Events waiting in front of the stage, {@code NaN} for the fetch stage, which reads from the network,
+     * and while the parser is not running.
+     */
+    public synchronized double getQueued(Stage stage) {
+        sample();
+        if (positions == null || stage == Stage.FETCH) {
+            return Double.NaN;
+        }
+        return positions[stage.ordinal() - 1] - positions[stage.ordinal()];
+    }
+
+    /**
+     * @return Queue of the stage over the size of the ring buffer, for the fetch stage all the events in the ring:
+     * the dump thread waits when it is full.
+     */
+    public synchronized double getOccupancy(Stage stage) {
+        sample();
+        if (positions == null) {
+            return Double.NaN;
+        }
+        final long queued = stage == Stage.FETCH
+                ? positions[Stage.FETCH.ordinal()] - positions[Stage.SINK.ordinal()]
+                : positions[stage.ordinal() - 1] - positions[stage.ordinal()];
+        return (double) queued / bufferSize;
+    }
+
+    /**
+     * @return Events per second through the stage over the last step.
+     */
+    public synchronized double getRate(Stage stage) {
+        sample();
+        return rates[stage.ordinal()];
+    }
+
+    private void sample() {
+        final long now = System.currentTimeMillis();
+        if (now / stepMillis == time / stepMillis) {
+            return;
+        }
+        final Object current = coprocessor();
+        long[] read = null;
+        if (current != null) {
+            try {
+                read = positions(current);
+                bufferSize = ((RingBuffer<?>) RING.get(current)).getBufferSize();
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.debug("Unable to read the stages of parser {}.", parser, e);
+            }
+        }
+        rates = current == coprocessor ? rates(positions, read, now - time) : rates(null, null, 0L);
+        coprocessor = current;
+        positions = read;
+        time = now;
+    }
+
+    private Object coprocessor() {
+        if (COPROCESSOR == null || RING == null || SIMPLE == null || DML == null || SINK == null) {
+            return null;
+        }
+        try {
+            final Object c = COPROCESSOR.get(parser);
+            return c instanceof MysqlMultiStageCoprocessor ? c : null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the last stage first, the slowest DML parser stands for the pool.
+     */
+    private static long[] positions(Object coprocessor) throws ReflectiveOperationException {
+        final BatchEventProcessor<?> sink = (BatchEventProcessor<?>) SINK.get(coprocessor);
+        final WorkerPool<?> dml = (WorkerPool<?>) DML.get(coprocessor);
+        final BatchEventProcessor<?> simple = (BatchEventProcessor<?>) SIMPLE.get(coprocessor);
+        final RingBuffer<?> ring = (RingBuffer<?>) RING.get(coprocessor);
+        if (sink == null || dml == null || simple == null || ring == null) {
+            return null;
+        }
+        final long[] positions = new long[Stage.values().length];
+        positions[Stage.SINK.ordinal()] = sink.getSequence().get();
+        long slowest = Long.MAX_VALUE;
+        for (Sequence sequence : dml.getWorkerSequences()) {
+            slowest = Math.min(slowest, sequence.get());
+        }
+        positions[Stage.DML.ordinal()] = slowest;
+        positions[Stage.SIMPLE.ordinal()] = simple.getSequence().get();
+        positions[Stage.FETCH.ordinal()] = ring.getCursor();
+        return positions;
+    }
+
+    private static double[] rates(long[] before, long[] after, long elapsedMillis) {
+        final double[] rates = new double[Stage.values().length];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = before == null || after == null || elapsedMillis <= 0
+                    ? Double.NaN : (after[i] - before[i]) * 1000d / elapsedMillis;
+        }
+        return rates;
+    }
+
+    private static Field field(Class<?> type, String name) {
+        try {
+            final Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("No field {} in {}, the parser stages are not measured.", name, type.getName());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.pfroad.canal.influxdb.binder;
+
+import java.util.Arrays;
+
+/**
+ * Which stage of an instance holds the others up, worked out once per step from two consecutive snapshots of the
+ * {@link InstanceSampler} and the get batches counted by the {@link InfluxClientInstanceProfiler}.
+ * <p>
+ * Each stage gets a score between 0 and 1:
+ * <ul>
+ * <li>{@link Stage#SINK}: the fraction of the step the sink waited for room in the store.</li>
+ * <li>{@link Stage#CONSUMER}: the store occupancy, discounted by the time the sink already blocked on it and by
+ * the empty batches the clients got, a client getting empty batches is waiting for events, not behind.</li>
+ * <li>{@link Stage#PARSER}: the fraction of the step the dump thread waited for the parsers, beyond what the sink
+ * explains, or, while events flow into a store with room, how far the puts lag behind the binlog, a step of lag
+ * scoring one half.</li>
+ * <li>{@link Stage#IDLE}: 1 when nothing was put and nothing waits for ack, otherwise what the busiest stage
+ * leaves.</li>
+ * </ul>
+ * The stage with the highest score is the bottleneck, its share of all scores the confidence.
+ */
+public class PipelineBottleneck {
+
+    public enum Stage {
+        PARSER, SINK, CONSUMER, IDLE;
+
+        public String tag() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final InstanceSampler              sampler;
+    private final InfluxClientInstanceProfiler clientProfiler;
+    private final String                       destination;
+    private final int                          bufferSize;
+    private final long                         stepMillis;
+
+    private InstanceSnapshot previous;
+    private long             previousGets;
+    private long             previousEmpty;
+    private double           sinkBlocked   = Double.NaN;
+    private double           parserBlocked = Double.NaN;
+    private final double[]   scores        = new double[STAGES.length];
+    private Stage            stage;
+    private double           confidence    = Double.NaN;
+
+    public PipelineBottleneck(InstanceSampler sampler, InfluxClientInstanceProfiler clientProfiler,
+                              String destination, int bufferSize, long stepMillis) {
+        this.sampler = sampler;
+        this.clientProfiler = clientProfiler;
+        this.destination = destination;
+        this.bufferSize = bufferSize;
+        this.stepMillis = stepMillis;
+        Arrays.fill(scores, Double.NaN);
+    }
+
+    /**
+     * @return 1 if the stage is the bottleneck of the last step, 0 if not, {@code NaN} until there are two steps.
+     */
+    public synchronized double isBottleneck(Stage stage) {
+        analyse();
+        return this.stage == null ? Double.NaN : this.stage == stage ? 1 : 0;
+    }
+
+    public synchronized double getScore(Stage stage) {
+        analyse();
+        return scores[stage.ordinal()];
+    }
+
+    public synchronized double getConfidence() {
+        analyse();
+        return confidence;
+    }
+
+    /**
+     * @return Fraction of the last step the stage was blocked, only the parser and the sink measure it.
+     */
+    public synchronized double getBlocked(Stage stage) {
+        analyse();
+        return stage == Stage.SINK ? sinkBlocked : stage == Stage.PARSER ? parserBlocked : Double.NaN;
+    }
+
+    private void analyse() {
+        final InstanceSnapshot s = sampler.snapshot();
+        if (s == previous) {
+            return;
+        }
+        final long gets = clientProfiler.getGetBatches(destination);
+        final long empty = clientProfiler.getEmptyBatches(destination);
+        final InstanceSnapshot before = previous;
+        final long beforeGets = previousGets;
+        final long beforeEmpty = previousEmpty;
+        previous = s;
+        previousGets = gets;
+        previousEmpty = empty;
+        if (before == null || s.getTime() <= before.getTime()) {
+            return;
+        }
+
+        final double wallNanos = (s.getTime() - before.getTime()) * 1000000d;
+        sinkBlocked = fraction((s.getSinkBlockingTime() - before.getSinkBlockingTime()) / wallNanos);
+        parserBlocked = fraction((s.getPublishBlockingTime() - before.getPublishBlockingTime()) / wallNanos);
+        final long backlog = s.getPutSequence() - s.getAckSequence();
+        final long put = s.getPutSequence() - before.getPutSequence();
+        final double occupancy = fraction((double) backlog / bufferSize);
+        final double emptyRatio = gets == beforeGets
+                ? 0 : fraction((double) (empty - beforeEmpty) / (gets - beforeGets));
+
+        double parser = parserBlocked * (1 - sinkBlocked);
+        if (put > 0) {
+            final long lag = s.delay(s.getPutExecTime());
+            parser = Math.max(parser, (1 - occupancy) * lag / (lag + stepMillis));
+        }
+        final double sink = sinkBlocked;
+        final double consumer = occupancy * (1 - sinkBlocked) * (1 - emptyRatio);
+        final double idle = put == 0 && backlog == 0 ? 1 : 1 - Math.max(parser, Math.max(sink, consumer));
+        scores[Stage.PARSER.ordinal()] = parser;
+        scores[Stage.SINK.ordinal()] = sink;
+        scores[Stage.CONSUMER.ordinal()] = consumer;
+        scores[Stage.IDLE.ordinal()] = idle;
+
+        Stage top = Stage.IDLE;
+        double sum = 0;
+        for (Stage candidate : STAGES) {
+            sum += scores[candidate.ordinal()];
+            if (scores[candidate.ordinal()] > scores[top.ordinal()]) {
+                top = candidate;
+            }
+        }
+        stage = top;
+        confidence = sum > 0 ? scores[top.ordinal()] / sum : Double.NaN;
+    }
+
+    private static double fraction(double v) {
+        return Double.isNaN(v) ? 0 : Math.max(0, Math.min(1, v));
+    }
+}
@@ -5,6 +5,7 @@ import com.alibaba.otter.canal.sink.CanalEventSink;
 import com.alibaba.otter.canal.sink.entry.EntryEventSink;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,10 +15,14 @@ public class SinkMetrics implements MeterBinder {
 
     private static final String SINK_BLOCKING_TIME   = "canal.instance.sink.blocking.time";
     private static final String SINK_BLOCK_TIME_HELP = "Total sink blocking time in milliseconds";
-    private final CanalInstance instance;
+    private final CanalInstance   instance;
+    private final Tags            tags;
+    private final InstanceSampler sampler;
 
-    public SinkMetrics(CanalInstance instance) {
+    public SinkMetrics(CanalInstance instance, Tags tags, InstanceSampler sampler) {
         this.instance = instance;
+        this.tags = tags;
+        this.sampler = sampler;
     }
 
     @Override
@@ -26,10 +31,10 @@ public class SinkMetrics implements MeterBinder {
         if (!(sink instanceof EntryEventSink)) {
             throw new IllegalArgumentException("CanalEventSink must be EntryEventSink");
         }
-        EntryEventSink entryEventSink = (EntryEventSink) sink;
-        FunctionCounter.builder(SINK_BLOCKING_TIME, entryEventSink, (eventSink) -> eventSink.getEventsSinkBlockingTime().doubleValue() / 1000 * 1000L)
+        FunctionCounter.builder(SINK_BLOCKING_TIME, sampler, (s) -> (double) s.snapshot().getSinkBlockingTime() / 1000 * 1000L)
                 .description(SINK_BLOCK_TIME_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
     }
 }
@@ -6,6 +6,7 @@ import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
 import io.micrometer.core.instrument.FunctionCounter;
 import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.binder.MeterBinder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,10 @@ public class StoreMetrics implements MeterBinder {
     private static final String PUT_ROWS         = "canal.instance.put.rows";
     private static final String GET_ROWS         = "canal.instance.get.rows";
     private static final String ACK_ROWS         = "canal.instance.ack.rows";
+    private static final String OCCUPANCY        = "canal.instance.store.occupancy";
+    private static final String MEM_OCCUPANCY    = "canal.instance.store.mem.occupancy";
+    private static final String RATE             = "canal.instance.store.rate";
+    private static final String TIME_TO_FULL     = "canal.instance.store.time.to.full";
     private static final String PRODUCE_HELP     = "Produced events counter of canal instance";
     private static final String CONSUME_HELP     = "Consumed events counter of canal instance";
     private static final String STORE_HELP       = "Canal instance info";
@@ -35,11 +40,19 @@ public class StoreMetrics implements MeterBinder {
     private static final String PUT_ROWS_HELP    = "Put table rows of canal instance";
     private static final String GET_ROWS_HELP    = "Got table rows of canal instance";
     private static final String ACK_ROWS_HELP    = "Acked table rows of canal instance";
+    private static final String OCCUPANCY_HELP   = "Unacked events over the ring buffer size";
+    private static final String MEM_OCC_HELP     = "Unacked bytes over the memory the store may hold";
+    private static final String RATE_HELP        = "Table rows per second through the store";
+    private static final String TIME_TO_FULL_HELP = "Seconds until the store is full at the rate of the last minute";
 
-    private final CanalInstance instance;
+    private final CanalInstance   instance;
+    private final Tags            tags;
+    private final InstanceSampler sampler;
 
-    public StoreMetrics(CanalInstance instance) {
+    public StoreMetrics(CanalInstance instance, Tags tags, InstanceSampler sampler) {
         this.instance = instance;
+        this.tags = tags;
+        this.sampler = sampler;
     }
 
     @Override
@@ -50,16 +63,18 @@ public class StoreMetrics implements MeterBinder {
         }
         final MemoryEventStoreWithBuffer memStore = (MemoryEventStoreWithBuffer) store;
 
-        FunctionCounter.builder(PRODUCE, memStore, (mem) -> mem.getPutSequence().doubleValue())
+        FunctionCounter.builder(PRODUCE, sampler, (s) -> s.snapshot().getPutSequence())
                 .description(PRODUCE_HELP)
 //                .baseUnit("seq")
+                .tags(tags)
                 .register(registry);
 //        final Counter produceEvents = Counter.builder(PRODUCE)
 //                .description(PRODUCE_HELP)
 //                .register(registry);
-        FunctionCounter.builder(CONSUME, memStore, (mem) -> mem.getAckSequence().doubleValue())
+        FunctionCounter.builder(CONSUME, sampler, (s) -> s.snapshot().getAckSequence())
                 .description(CONSUME_HELP)
 //                .baseUnit("seq")
+                .tags(tags)
                 .register(registry);
 //        final Counter consumerEvents = Counter.builder(CONSUME)
 //                .description(CONSUME_HELP)
@@ -68,17 +83,20 @@ public class StoreMetrics implements MeterBinder {
         Gauge.builder(STORE, memStore, MemoryEventStoreWithBuffer::getBufferSize)
                 .tag("batchMode", memStore.getBatchMode().name())
                 .description(STORE_HELP)
+                .tags(tags)
                 .register(registry);
 
         final boolean isMem = memStore.getBatchMode().isMemSize();
         if (isMem) {
-            FunctionCounter.builder(PRODUCE_MEM, memStore, (mem) -> mem.getPutMemSize().doubleValue())
+            FunctionCounter.builder(PRODUCE_MEM, sampler, (s) -> s.snapshot().getPutMemSize())
                     .description(PRODUCE_MEM_HELP)
                     .baseUnit("bytes")
+                    .tags(tags)
                     .register(registry);
-            FunctionCounter.builder(CONSUME_MEM, memStore, (mem) -> mem.getAckMemSize().doubleValue())
+            FunctionCounter.builder(CONSUME_MEM, sampler, (s) -> s.snapshot().getAckMemSize())
                     .description(CONSUME_MEM_HELP)
                     .baseUnit("bytes")
+                    .tags(tags)
                     .register(registry);
         }
 //        final Counter produceMem = Counter.builder(PRODUCE_MEM)
@@ -88,48 +106,81 @@ public class StoreMetrics implements MeterBinder {
 //                .description(CONSUME_MEM_HELP)
 //                .register(registry);
 
-        final long now = System.currentTimeMillis();
-        Gauge.builder(PUT_DELAY, memStore, (mem) -> {
-            final long put = mem.getPutExecTime().get();
-            if (now >= put) {
-                return now - put;
-            }
-            return 0;
+        // the sampler reads ack, get and put in that order, so get never shows ahead of put nor ack of get
+        Gauge.builder(PUT_DELAY, sampler, (s) -> {
+            final InstanceSnapshot snapshot = s.snapshot();
+            return snapshot.delay(snapshot.getPutExecTime());
         }).description(PUT_DELAY_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
-        Gauge.builder(GET_DELAY, memStore, (mem) -> {
-            final long put = mem.getPutExecTime().get();
-            final long get = Math.min(mem.getGetExecTime().get(), put);
-            if (now >= get) {
-                return now - get;
-            }
-            return 0;
+        Gauge.builder(GET_DELAY, sampler, (s) -> {
+            final InstanceSnapshot snapshot = s.snapshot();
+            return snapshot.delay(snapshot.getGetExecTime());
         }).description(GET_DELAY_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
-        Gauge.builder(ACK_DELAY, memStore, (mem) -> {
-            final long get = mem.getGetExecTime().get();
-            final long ack = Math.min(mem.getAckExecTime().get(), get);
-            if (now >= ack) {
-                return now - ack;
-            }
-            return 0;
+        Gauge.builder(ACK_DELAY, sampler, (s) -> {
+            final InstanceSnapshot snapshot = s.snapshot();
+            return snapshot.delay(snapshot.getAckExecTime());
         }).description(ACK_DELAY_HELP)
                 .baseUnit("ms")
+                .tags(tags)
                 .register(registry);
 
-        FunctionCounter.builder(PUT_ROWS, memStore, (mem) -> mem.getPutTableRows().doubleValue())
+        FunctionCounter.builder(PUT_ROWS, sampler, (s) -> s.snapshot().getPutTableRows())
                 .description(PUT_ROWS_HELP)
                 .baseUnit("rows")
+                .tags(tags)
                 .register(registry);
-        FunctionCounter.builder(GET_ROWS, memStore, (mem) -> mem.getGetTableRows().doubleValue())
+        FunctionCounter.builder(GET_ROWS, sampler, (s) -> s.snapshot().getGetTableRows())
                 .baseUnit("rows")
                 .description(GET_ROWS_HELP)
+                .tags(tags)
                 .register(registry);
-        FunctionCounter.builder(ACK_ROWS, memStore, (mem) -> mem.getAckTableRows().doubleValue())
+        FunctionCounter.builder(ACK_ROWS, sampler, (s) -> s.snapshot().getAckTableRows())
                 .description(ACK_ROWS_HELP)
                 .baseUnit("rows")
+                .tags(tags)
+                .register(registry);
+
+        final StoreOccupancy occupancy = new StoreOccupancy(memStore, sampler);
+        Gauge.builder(OCCUPANCY, occupancy, StoreOccupancy::getOccupancy)
+                .description(OCCUPANCY_HELP)
+                .tags(tags)
+                .strongReference(true)
+                .register(registry);
+        if (isMem) {
+            Gauge.builder(MEM_OCCUPANCY, occupancy, StoreOccupancy::getMemOccupancy)
+                    .description(MEM_OCC_HELP)
+                    .tags(tags)
+                    .strongReference(true)
+                    .register(registry);
+        }
+        for (StoreOccupancy.Op op : StoreOccupancy.Op.values()) {
+            Gauge.builder(RATE, occupancy, (o) -> o.getRate(op, StoreOccupancy.ONE_MINUTE))
+                    .description(RATE_HELP)
+                    .baseUnit("rows")
+                    .tags(tags)
+                    .strongReference(true)
+                    .tag("op", op.name().toLowerCase())
+                    .tag("window", "1m")
+                    .register(registry);
+            Gauge.builder(RATE, occupancy, (o) -> o.getRate(op, StoreOccupancy.FIVE_MINUTES))
+                    .description(RATE_HELP)
+                    .baseUnit("rows")
+                    .tags(tags)
+                    .strongReference(true)
+                    .tag("op", op.name().toLowerCase())
+                    .tag("window", "5m")
+                    .register(registry);
+        }
+        Gauge.builder(TIME_TO_FULL, occupancy, StoreOccupancy::getTimeToFull)
+                .description(TIME_TO_FULL_HELP)
+                .baseUnit("seconds")
+                .tags(tags)
+                .strongReference(true)
                 .register(registry);
 //        final Counter putRows = Counter.builder(PUT_ROWS)
 //                .description(PUT_ROWS_HELP)
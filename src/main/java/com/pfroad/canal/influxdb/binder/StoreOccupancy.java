@@ -0,0 +1,112 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Occupancy, rates and time to full of a {@link MemoryEventStoreWithBuffer}, derived from the counters the store
+ * keeps anyway. Nothing is added to the put and get path: everything is computed from the snapshots of the
+ * {@link InstanceSampler}, the windowed rates from the snapshot about a window before the current one.
+ */
+public class StoreOccupancy {
+    public static final long ONE_MINUTE   = TimeUnit.MINUTES.toMillis(1);
+    public static final long FIVE_MINUTES = TimeUnit.MINUTES.toMillis(5);
+
+    public enum Op {
+        PUT(InstanceSnapshot::getPutTableRows),
+        GET(InstanceSnapshot::getGetTableRows),
+        ACK(InstanceSnapshot::getAckTableRows);
+
+        private final ToLongFunction<InstanceSnapshot> rows;
+
+        Op(ToLongFunction<InstanceSnapshot> rows) {
+            this.rows = rows;
+        }
+    }
+
+    private final InstanceSampler sampler;
+    private final int             bufferSize;
+    private final boolean         memSize;
+    private final long            memCapacity;
+
+    public StoreOccupancy(MemoryEventStoreWithBuffer store, InstanceSampler sampler) {
+        this.sampler = sampler;
+        this.bufferSize = store.getBufferSize();
+        this.memSize = store.getBatchMode().isMemSize();
+        this.memCapacity = (long) bufferSize * bufferMemUnit(store);
+    }
+
+    /**
+     * @return Events waiting for ack over the size of the ring buffer.
+     */
+    public double getOccupancy() {
+        final InstanceSnapshot s = sampler.snapshot();
+        return (double) (s.getPutSequence() - s.getAckSequence()) / bufferSize;
+    }
+
+    /**
+     * @return Bytes waiting for ack over the memory the store may hold, {@code NaN} unless in MEMSIZE mode.
+     */
+    public double getMemOccupancy() {
+        if (!memSize) {
+            return Double.NaN;
+        }
+        final InstanceSnapshot s = sampler.snapshot();
+        return (double) (s.getPutMemSize() - s.getAckMemSize()) / memCapacity;
+    }
+
+    /**
+     * @return Rows per second over the window, {@code NaN} until there are snapshots that far apart.
+     */
+    public double getRate(Op op, long windowMillis) {
+        final InstanceSnapshot s = sampler.snapshot();
+        return rate(s, sampler.before(s, windowMillis), op.rows);
+    }
+
+    /**
+     * @return Seconds until the store is full at the net rate of the last minute, {@code NaN} if it is not filling.
+     * In MEMSIZE mode the limit reached first counts.
+     */
+    public double getTimeToFull() {
+        final InstanceSnapshot s = sampler.snapshot();
+        final InstanceSnapshot before = sampler.before(s, ONE_MINUTE);
+        double seconds = timeToFull(bufferSize - (s.getPutSequence() - s.getAckSequence()),
+                rate(s, before, InstanceSnapshot::getPutSequence) - rate(s, before, InstanceSnapshot::getAckSequence));
+        if (memSize) {
+            final double mem = timeToFull(memCapacity - (s.getPutMemSize() - s.getAckMemSize()),
+                    rate(s, before, InstanceSnapshot::getPutMemSize) - rate(s, before, InstanceSnapshot::getAckMemSize));
+            seconds = Double.isNaN(seconds) ? mem : Double.isNaN(mem) ? seconds : Math.min(seconds, mem);
+        }
+        return seconds;
+    }
+
+    private static double timeToFull(long free, double fillRate) {
+        if (Double.isNaN(fillRate) || fillRate <= 0) {
+            return Double.NaN;
+        }
+        return Math.max(0L, free) / fillRate;
+    }
+
+    private static double rate(InstanceSnapshot now, InstanceSnapshot before, ToLongFunction<InstanceSnapshot> field) {
+        if (before == null) {
+            return Double.NaN;
+        }
+        return (field.applyAsLong(now) - field.applyAsLong(before)) * 1000d / (now.getTime() - before.getTime());
+    }
+
+    /**
+     * The store has no getter for it, 1024 is canal's default.
+     */
+    private static int bufferMemUnit(MemoryEventStoreWithBuffer store) {
+        try {
+            final Field field = MemoryEventStoreWithBuffer.class.getDeclaredField("bufferMemUnit");
+            field.setAccessible(true);
+            return field.getInt(store);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return 1024;
+        }
+    }
+}
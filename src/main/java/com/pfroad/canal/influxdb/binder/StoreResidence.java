@@ -0,0 +1,114 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.store.memory.MemoryEventStoreWithBuffer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How long events sit in a {@link MemoryEventStoreWithBuffer} between their put and the ack of a client, published
+ * as {@code canal.instance.store.residence}.
+ * <p>
+ * After each put the sink thread appends the sequence of the last event of the batch and the time to a ring of
+ * slots, one per batch, sized to the store buffer up to {@link #MAX_BATCHES}. When the ack sequence
+ * moves, the batches it went past are recorded, one sample per batch. The acks are noticed when a client acks
+ * through the netty server, and at the latest when the meters are read. Batches overwritten before their ack was
+ * noticed are not recorded.
+ */
+public class StoreResidence {
+    private static final String RESIDENCE      = "canal.instance.store.residence";
+    private static final String PENDING        = "canal.instance.store.residence.pending";
+    private static final String RESIDENCE_HELP = "Time from the put of a batch into the store to its ack";
+    private static final String PENDING_HELP   = "Batches put into the store and not acked yet";
+    private static final int    MAX_BATCHES    = 1024;
+
+    private final MemoryEventStoreWithBuffer store;
+    private final int                        mask;
+    private final Timer                      residence;
+    private final ReentrantLock              draining = new ReentrantLock();
+
+    /**
+     * Sequence and put time of each batch at {@code 2 * slot} and {@code 2 * slot + 1}. The reads are volatile so
+     * that they cannot pass the read of {@link #written} telling whether the slot was overwritten meanwhile.
+     */
+    private final AtomicLongArray slots;
+    private final int             size;
+
+    /**
+     * Batches appended by the sink thread, the slots up to it are published by the volatile write.
+     */
+    private volatile long written;
+    private long          read;
+
+    public StoreResidence(MemoryEventStoreWithBuffer store, MeterRegistry registry, Tags tags) {
+        this.store = store;
+        final int size = Math.min(MAX_BATCHES, Integer.highestOneBit(Math.max(1, store.getBufferSize() - 1)) << 1);
+        this.slots = new AtomicLongArray(2 * size);
+        this.size = size;
+        this.mask = size - 1;
+        this.residence = Timer.builder(RESIDENCE)
+                .description(RESIDENCE_HELP)
+                .publishPercentiles(0.5, 0.9, 0.99, 0.999)
+                .tags(tags)
+                .register(registry);
+        Gauge.builder(PENDING, this, (r) -> {
+            r.acked();
+            return Math.min(r.size, r.written - r.read);
+        }).description(PENDING_HELP)
+                .baseUnit("batches")
+                .tags(tags)
+                .register(registry);
+    }
+
+    /**
+     * Stamps the batch just put, only called by the sink thread.
+     */
+    public void put() {
+        final long w = written;
+        final int slot = (int) (w & mask) << 1;
+        slots.set(slot, store.getPutSequence().get());
+        slots.set(slot + 1, System.nanoTime());
+        written = w + 1;
+    }
+
+    /**
+     * Records the batches acked since the last call. Skipped if another thread is at it, it records them anyway.
+     */
+    public void acked() {
+        if (!draining.tryLock()) {
+            return;
+        }
+        try {
+            final long ack = store.getAckSequence().get();
+            final long now = System.nanoTime();
+            long r = Math.max(read, written - size);
+            while (r < written) {
+                final int slot = (int) (r & mask) << 1;
+                final long sequence = slots.get(slot);
+                final long put = slots.get(slot + 1);
+                if (written - r >= size) {
+                    // the sink thread came round to the slot meanwhile
+                    r = written - size + 1;
+                    continue;
+                }
+                if (sequence > ack) {
+                    break;
+                }
+                residence.record(Math.max(0L, now - put), TimeUnit.NANOSECONDS);
+                r++;
+            }
+            read = r;
+        } finally {
+            draining.unlock();
+        }
+    }
+
+    public Timer getResidence() {
+        return residence;
+    }
+}
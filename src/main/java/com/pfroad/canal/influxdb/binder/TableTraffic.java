@@ -0,0 +1,433 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.protocol.CanalEntry;
+import com.alibaba.otter.canal.store.model.Event;
+import com.google.protobuf.ByteString;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rows and bytes of INSERT/UPDATE/DELETE events per table, for the top K tables by volume, everything else
+ * being counted as table {@code other}.
+ * <p>
+ * A table is looked up by hashing the schema and table name bytes where they lie in the event, the raw entry
+ * header or the cached name bytes of a parsed entry, so no name is built except the first time a table is seen.
+ * At most {@code 16 * topK} tables are tracked. Once per step the tracked tables are ranked by the bytes they
+ * produced during the step, the top K get their own counters and the idle ones are forgotten.
+ * <p>
+ * Not thread safe, every method is called by the sink thread of the instance. Only the counters are read by
+ * the publishing thread.
+ */
+public class TableTraffic {
+    private static final String ROWS       = "canal.instance.table.rows";
+    private static final String BYTES      = "canal.instance.table.bytes";
+    private static final String ROWS_HELP  = "Rows of the table by event type";
+    private static final String BYTES_HELP = "Raw bytes of the table by event type";
+
+    static final String OTHER = "other";
+
+    private static final CanalEntry.EventType[] TYPES = {
+            CanalEntry.EventType.INSERT, CanalEntry.EventType.UPDATE, CanalEntry.EventType.DELETE
+    };
+
+    private static final int ENTRY_HEADER = 1 << 3 | 2;
+    private static final int SCHEMA_NAME  = 8 << 3 | 2;
+    private static final int TABLE_NAME   = 9 << 3 | 2;
+
+    private static final int TRACKED_PER_TOP = 16;
+    private static final int DEMOTE_AFTER    = 3;
+    private static final int FORGET_AFTER    = 5;
+
+    private final MeterRegistry registry;
+    private final Tags          tags;
+    private final int           topK;
+    private final int           maxTables;
+    private final long          refreshMillis;
+    private final AtomicLongArray other = new AtomicLongArray(TYPES.length * 2);
+
+    private Table[]           slots;
+    private final List<Table> tables;
+    private int               published;
+    private boolean           overflow;
+    private long              nextRefresh;
+
+    // location of the names of the current event
+    private ByteString schemaSrc;
+    private int        schemaOff;
+    private int        schemaLen;
+    private ByteString tableSrc;
+    private int        tableOff;
+    private int        tableLen;
+    private int        pos;
+
+    public TableTraffic(MeterRegistry registry, Tags tags, int topK, long refreshMillis) {
+        this.registry = registry;
+        this.tags = tags;
+        this.topK = topK;
+        this.maxTables = topK * TRACKED_PER_TOP;
+        this.refreshMillis = refreshMillis;
+        this.slots = new Table[Integer.highestOneBit(maxTables * 2 - 1) << 1];
+        this.tables = new ArrayList<>(maxTables);
+        this.nextRefresh = System.currentTimeMillis() + refreshMillis;
+        for (int i = 0; i < TYPES.length; i++) {
+            register(OTHER, i, other);
+        }
+    }
+
+    /**
+     * Counts a ROWDATA event.
+     *
+     * @param weight Number of events this one stands for when batches are sampled.
+     */
+    public void record(Event e, int weight) {
+        final int type = typeIndex(e.getEventType());
+        if (type < 0) {
+            return;
+        }
+        final long rows = (long) e.getRowsCount() * weight;
+        final long bytes = e.getRawLength() * weight;
+        final Table table = locate(e) ? table() : null;
+        AtomicLongArray counts = other;
+        if (table != null) {
+            table.volume += bytes;
+            if (table.counts != null) {
+                counts = table.counts;
+            }
+        }
+        counts.lazySet(type * 2, counts.get(type * 2) + rows);
+        counts.lazySet(type * 2 + 1, counts.get(type * 2 + 1) + bytes);
+    }
+
+    /**
+     * Re-ranks the tables when a step has passed since the last ranking.
+     */
+    public void refresh(long now) {
+        if (now < nextRefresh) {
+            return;
+        }
+        nextRefresh = now + refreshMillis;
+
+        final Table[] ranked = tables.toArray(new Table[0]);
+        for (Table t : ranked) {
+            t.delta = t.volume - t.lastVolume;
+            t.lastVolume = t.volume;
+        }
+        Arrays.sort(ranked, (a, b) -> Long.compare(b.delta, a.delta));
+
+        for (int i = 0; i < ranked.length; i++) {
+            final Table t = ranked[i];
+            if (t.counts == null) {
+                continue;
+            }
+            if (i < topK && t.delta > 0) {
+                t.outside = 0;
+                registerMissing(t);
+            } else if (++t.outside >= DEMOTE_AFTER) {
+                demote(t);
+            }
+        }
+        for (int i = 0; i < ranked.length && i < topK && published < topK; i++) {
+            final Table t = ranked[i];
+            if (t.counts == null && t.delta > 0) {
+                promote(t);
+            }
+        }
+
+        boolean forget = false;
+        for (int i = ranked.length - 1; i >= 0; i--) {
+            final Table t = ranked[i];
+            if (t.counts != null) {
+                continue;
+            }
+            t.idle = t.delta > 0 ? 0 : t.idle + 1;
+            // when tables were turned away, make room by dropping the quarter with the least traffic
+            if (t.idle >= FORGET_AFTER || (overflow && i >= ranked.length - maxTables / 4)) {
+                t.forgotten = true;
+                forget = true;
+            }
+        }
+        overflow = false;
+        if (forget) {
+            rebuild();
+        }
+    }
+
+    private void promote(Table t) {
+        final AtomicLongArray counts = new AtomicLongArray(TYPES.length * 2);
+        t.meters = new ArrayList<>(TYPES.length * 2);
+        t.registered = 0;
+        t.counts = counts;
+        t.outside = 0;
+        published++;
+        registerMissing(t);
+    }
+
+    private void demote(Table t) {
+        t.counts = null;
+        for (Meter meter : t.meters) {
+            registry.remove(meter);
+        }
+        t.meters = null;
+        published--;
+    }
+
+    /**
+     * Counters of a table are only created for the event types it produced.
+     */
+    private void registerMissing(Table t) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if ((t.registered & 1 << i) == 0 && t.counts.get(i * 2) + t.counts.get(i * 2 + 1) > 0) {
+                t.registered |= 1 << i;
+                t.meters.addAll(register(t.name, i, t.counts));
+            }
+        }
+    }
+
+    private List<Meter> register(String table, int type, AtomicLongArray counts) {
+        final Tags meterTags = tags.and("table", table).and("eventType", TYPES[type].name());
+        final int rows = type * 2;
+        final int bytes = type * 2 + 1;
+        final List<Meter> meters = new ArrayList<>(2);
+        meters.add(FunctionCounter.builder(ROWS, counts, (c) -> c.get(rows))
+                .description(ROWS_HELP)
+                .baseUnit("rows")
+                .tags(meterTags)
+                .register(registry));
+        meters.add(FunctionCounter.builder(BYTES, counts, (c) -> c.get(bytes))
+                .description(BYTES_HELP)
+                .baseUnit("bytes")
+                .tags(meterTags)
+                .register(registry));
+        return meters;
+    }
+
+    private static int typeIndex(CanalEntry.EventType type) {
+        if (type == null) {
+            return -1;
+        }
+        switch (type) {
+            case INSERT:
+                return 0;
+            case UPDATE:
+                return 1;
+            case DELETE:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Finds or adds the table of the located names, {@code null} if it is not tracked and there is no room.
+     */
+    private Table table() {
+        final int hash = hash();
+        final int mask = slots.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            final Table t = slots[i];
+            if (t == null) {
+                if (tables.size() >= maxTables) {
+                    overflow = true;
+                    return null;
+                }
+                final Table added = new Table(hash, copy(schemaSrc, schemaOff, schemaLen), copy(tableSrc, tableOff, tableLen));
+                slots[i] = added;
+                tables.add(added);
+                return added;
+            }
+            if (t.hash == hash && t.schema.length == schemaLen && t.table.length == tableLen
+                    && matches(t.schema, schemaSrc, schemaOff) && matches(t.table, tableSrc, tableOff)) {
+                return t;
+            }
+        }
+    }
+
+    private void rebuild() {
+        final Table[] rebuilt = new Table[slots.length];
+        final int mask = rebuilt.length - 1;
+        tables.removeIf((t) -> t.forgotten);
+        for (Table t : tables) {
+            int i = t.hash & mask;
+            while (rebuilt[i] != null) {
+                i = (i + 1) & mask;
+            }
+            rebuilt[i] = t;
+        }
+        slots = rebuilt;
+    }
+
+    private int hash() {
+        int h = 0x811c9dc5;
+        for (int i = schemaOff, end = schemaOff + schemaLen; i < end; i++) {
+            h = (h ^ schemaSrc.byteAt(i)) * 0x01000193;
+        }
+        h = (h ^ '.') * 0x01000193;
+        for (int i = tableOff, end = tableOff + tableLen; i < end; i++) {
+            h = (h ^ tableSrc.byteAt(i)) * 0x01000193;
+        }
+        return h ^ h >>> 16;
+    }
+
+    private static boolean matches(byte[] name, ByteString src, int off) {
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != src.byteAt(off + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(ByteString src, int off, int len) {
+        final byte[] bytes = new byte[len];
+        src.copyTo(bytes, off, 0, len);
+        return bytes;
+    }
+
+    /**
+     * Locates the schema and table names of the event without materializing them.
+     */
+    private boolean locate(Event e) {
+        final ByteString raw = e.getRawEntry();
+        if (raw != null) {
+            return locateRaw(raw);
+        }
+        final CanalEntry.Entry entry = e.getEntry();
+        if (entry == null) {
+            return false;
+        }
+        final CanalEntry.Header header = entry.getHeader();
+        schemaSrc = header.getSchemaNameBytes();
+        schemaOff = 0;
+        schemaLen = schemaSrc.size();
+        tableSrc = header.getTableNameBytes();
+        tableOff = 0;
+        tableLen = tableSrc.size();
+        return true;
+    }
+
+    /**
+     * Walks the serialized entry up to the header and reads the offsets of its name fields.
+     */
+    private boolean locateRaw(ByteString raw) {
+        final int end = raw.size();
+        pos = 0;
+        while (pos < end) {
+            final int tag = (int) varint(raw, end);
+            if (tag < 0) {
+                return false;
+            }
+            if (tag != ENTRY_HEADER) {
+                if (!skip(raw, end, tag)) {
+                    return false;
+                }
+                continue;
+            }
+            final long length = varint(raw, end);
+            if (length < 0 || pos + length > end) {
+                return false;
+            }
+            final int headerEnd = (int) (pos + length);
+            schemaSrc = raw;
+            schemaOff = 0;
+            schemaLen = 0;
+            tableSrc = raw;
+            tableOff = 0;
+            tableLen = 0;
+            while (pos < headerEnd) {
+                final int field = (int) varint(raw, headerEnd);
+                if (field == SCHEMA_NAME || field == TABLE_NAME) {
+                    final long len = varint(raw, headerEnd);
+                    if (len < 0 || pos + len > headerEnd) {
+                        return false;
+                    }
+                    if (field == SCHEMA_NAME) {
+                        schemaOff = pos;
+                        schemaLen = (int) len;
+                    } else {
+                        tableOff = pos;
+                        tableLen = (int) len;
+                    }
+                    pos += len;
+                } else if (field < 0 || !skip(raw, headerEnd, field)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean skip(ByteString raw, int end, int tag) {
+        final long length;
+        switch (tag & 7) {
+            case 0:
+                return varint(raw, end) >= 0;
+            case 1:
+                length = 8;
+                break;
+            case 2:
+                length = varint(raw, end);
+                break;
+            case 5:
+                length = 4;
+                break;
+            default:
+                return false;
+        }
+        if (length < 0 || pos + length > end) {
+            return false;
+        }
+        pos += length;
+        return true;
+    }
+
+    /**
+     * @return The varint at {@link #pos}, {@code -1} if it is truncated or wider than 63 bits.
+     */
+    private long varint(ByteString raw, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 63 && pos < end; shift += 7) {
+            final byte b = raw.byteAt(pos++);
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Table {
+        private final int    hash;
+        private final byte[] schema;
+        private final byte[] table;
+        private final String name;
+        private long         volume;
+        private long         lastVolume;
+        private long         delta;
+        private int          outside;
+        private int          idle;
+        private boolean      forgotten;
+
+        /**
+         * Counters since the table entered the top K, {@code null} while its traffic goes to {@code other}.
+         */
+        private AtomicLongArray counts;
+        private List<Meter>     meters;
+        private int             registered;
+
+        Table(int hash, byte[] schema, byte[] table) {
+            this.hash = hash;
+            this.schema = schema;
+            this.table = table;
+            this.name = new String(schema, StandardCharsets.UTF_8) + "." + new String(table, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.store.model.Event;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows each transaction from TRANSACTIONBEGIN to TRANSACTIONEND, which may be sunk in different batches,
+ * and records its rows, bytes and execution span once it ends.
+ * <p>
+ * Not thread safe, every method is called by the sink thread of the instance.
+ */
+public class TransactionTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionTracker.class);
+
+    private static final String ROWS       = "canal.instance.transaction.rows";
+    private static final String BYTES      = "canal.instance.transaction.bytes";
+    private static final String SPAN       = "canal.instance.transaction.span";
+    private static final String LARGE      = "canal.instance.transactions.large";
+    private static final String ROWS_HELP  = "Rows per transaction";
+    private static final String BYTES_HELP = "Raw bytes of the row events per transaction";
+    private static final String SPAN_HELP  = "Execute time between the begin and the end of a transaction";
+    private static final String LARGE_HELP = "Transactions over the large transaction threshold";
+
+    private final String              destination;
+    private final long                largeRows;
+    private final DistributionSummary rows;
+    private final DistributionSummary bytes;
+    private final Timer               span;
+    private final Counter             large;
+
+    private boolean open;
+    private long    txRows;
+    private long    txBytes;
+    private long    beginTime;
+    private String  beginJournal;
+    private long    beginPosition;
+
+    /**
+     * @param largeRows Rows from which a transaction is counted and logged as large.
+     */
+    public TransactionTracker(MeterRegistry registry, Tags tags, String destination, long largeRows) {
+        this.destination = destination;
+        this.largeRows = largeRows;
+        this.rows = DistributionSummary.builder(ROWS)
+                .description(ROWS_HELP)
+                .baseUnit("rows")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .tags(tags)
+                .register(registry);
+        this.bytes = DistributionSummary.builder(BYTES)
+                .description(BYTES_HELP)
+                .baseUnit("bytes")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .tags(tags)
+                .register(registry);
+        this.span = Timer.builder(SPAN)
+                .description(SPAN_HELP)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .tags(tags)
+                .register(registry);
+        this.large = Counter.builder(LARGE)
+                .description(LARGE_HELP)
+                .baseUnit("transactions")
+                .tags(tags)
+                .register(registry);
+    }
+
+    public void begin(Event e) {
+        // a begin without an end, after a rollback of the parser, starts over
+        open = true;
+        txRows = 0;
+        txBytes = 0;
+        beginTime = e.getExecuteTime();
+        beginJournal = e.getJournalName();
+        beginPosition = e.getPosition();
+    }
+
+    public void row(Event e) {
+        if (open) {
+            txRows += e.getRowsCount();
+            txBytes += e.getRawLength();
+        }
+    }
+
+    public void end(Event e) {
+        if (!open) {
+            return;
+        }
+        open = false;
+        final long endTime = e.getExecuteTime();
+        final long elapsed = endTime > 0 && beginTime > 0 ? Math.max(0L, endTime - beginTime) : 0L;
+        rows.record(txRows);
+        bytes.record(txBytes);
+        span.record(elapsed, TimeUnit.MILLISECONDS);
+        if (largeRows > 0 && txRows >= largeRows) {
+            large.increment();
+            LOGGER.warn("Large transaction on {}: {} rows, {} bytes, {} ms, from {}:{} to {}:{} (gtid {}).",
+                    destination, txRows, txBytes, elapsed, beginJournal, beginPosition,
+                    e.getJournalName(), e.getPosition(), e.getGtid());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.pfroad.canal.influxdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A client request of a destination whose latency reached the threshold, committed once it is answered.
+ */
+@Name("com.pfroad.canal.ClientRequest")
+@Label("Slow Client Request")
+@Category({"Canal", "Influx"})
+@Description("Client request answered slower than the threshold")
+@Enabled(false)
+@StackTrace(false)
+final class ClientRequestEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(ClientRequestEvent.class);
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Packet Type")
+    String packetType;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+
+    @Label("Error Code")
+    short errorCode;
+
+    @Label("Empty")
+    boolean empty;
+
+    static boolean isOn() {
+        return TYPE.isEnabled();
+    }
+
+    static void emit(String destination, String packetType, long bytes, long latency, short errorCode,
+                     boolean empty) {
+        if (!TYPE.isEnabled()) {
+            return;
+        }
+        final ClientRequestEvent event = new ClientRequestEvent();
+        event.destination = destination;
+        event.packetType = packetType;
+        event.bytes = bytes;
+        event.latency = latency;
+        event.errorCode = errorCode;
+        event.empty = empty;
+        event.commit();
+    }
+}
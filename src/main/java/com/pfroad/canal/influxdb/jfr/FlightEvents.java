@@ -0,0 +1,90 @@
+package com.pfroad.canal.influxdb.jfr;
+
+import com.alibaba.otter.canal.store.model.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Flight recorder events of single batches, requests and publishes, to line them up with the GC pauses and the
+ * blocked threads of the same recording where the meters only tell that a step was slow.
+ * <p>
+ * The events are disabled by default, a recording enables them by name in its settings, e.g. a copy of
+ * {@code default.jfc} with
+ * <pre>
+ *  &lt;event name="com.pfroad.canal.SinkBatch"&gt;&lt;setting name="enabled"&gt;true&lt;/setting&gt;&lt;/event&gt;
+ *  &lt;event name="com.pfroad.canal.ClientRequest"&gt;&lt;setting name="enabled"&gt;true&lt;/setting&gt;&lt;/event&gt;
+ *  &lt;event name="com.pfroad.canal.Publish"&gt;&lt;setting name="enabled"&gt;true&lt;/setting&gt;&lt;/event&gt;
+ * </pre>
+ * Off, a call costs a read of the enabled flag and allocates nothing.
+ * <p>
+ * {@code jdk.jfr} comes with JDK 11, and with JDK 8 from 8u262. On the JVMs without it, or with the flight
+ * recorder unavailable, every call here does nothing and the event classes are never loaded, so callers only ever
+ * see them as {@link Object}.
+ */
+public final class FlightEvents {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightEvents.class);
+
+    private static final boolean AVAILABLE = available();
+
+    private FlightEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            final Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+            if (!(Boolean) recorder.getMethod("isAvailable").invoke(null)) {
+                return false;
+            }
+            // registers the event types, so that a failure shows here rather than on the request path
+            SinkBatchEvent.isOn();
+            ClientRequestEvent.isOn();
+            PublishEvent.isOn();
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (Throwable e) {
+            LOGGER.warn("Flight recorder events disabled", e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The event of a batch entering the sink handler, {@code null} when not recorded.
+     */
+    public static Object beginBatch() {
+        return AVAILABLE ? SinkBatchEvent.start() : null;
+    }
+
+    /**
+     * @param event Returned by {@link #beginBatch()}, not {@code null}.
+     */
+    public static void commitBatch(Object event, String destination, List<Event> events) {
+        ((SinkBatchEvent) event).finish(destination, events);
+    }
+
+    /**
+     * Records a client request answered slower than the threshold of the caller.
+     */
+    public static void clientRequest(String destination, String packetType, long bytes, long latencyNanos,
+                                     short errorCode, boolean empty) {
+        if (AVAILABLE) {
+            ClientRequestEvent.emit(destination, packetType, bytes, latencyNanos, errorCode, empty);
+        }
+    }
+
+    /**
+     * @return The event of a publish starting, {@code null} when not recorded.
+     */
+    public static Object beginPublish() {
+        return AVAILABLE ? PublishEvent.start() : null;
+    }
+
+    /**
+     * @param event Returned by {@link #beginPublish()}, not {@code null}.
+     */
+    public static void commitPublish(Object event, int meters, long lines, long bytes) {
+        ((PublishEvent) event).finish(meters, lines, bytes);
+    }
+}
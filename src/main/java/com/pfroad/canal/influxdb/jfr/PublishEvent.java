@@ -0,0 +1,54 @@
+package com.pfroad.canal.influxdb.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A publish of the registry, lasting from the first meter read to the last batch sent or handed to a shard.
+ */
+@Name("com.pfroad.canal.Publish")
+@Label("Metrics Publish")
+@Category({"Canal", "Influx"})
+@Description("Meters of a step read, encoded and sent to influx")
+@Enabled(false)
+@StackTrace(false)
+final class PublishEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(PublishEvent.class);
+
+    @Label("Meters")
+    int meters;
+
+    @Label("Lines")
+    long lines;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    static boolean isOn() {
+        return TYPE.isEnabled();
+    }
+
+    static PublishEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final PublishEvent event = new PublishEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(int meters, long lines, long bytes) {
+        end();
+        this.meters = meters;
+        this.lines = lines;
+        this.bytes = bytes;
+        commit();
+    }
+}
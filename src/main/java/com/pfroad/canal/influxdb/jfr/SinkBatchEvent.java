@@ -0,0 +1,79 @@
+package com.pfroad.canal.influxdb.jfr;
+
+import com.alibaba.otter.canal.protocol.CanalEntry.EntryType;
+import com.alibaba.otter.canal.store.model.Event;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timestamp;
+
+import java.util.List;
+
+/**
+ * A batch going through the sink handler of a destination, lasting as long as the handler spent on it.
+ */
+@Name("com.pfroad.canal.SinkBatch")
+@Label("Sink Batch")
+@Category({"Canal", "Influx"})
+@Description("Batch of events seen by the sink handler of a destination")
+@Enabled(false)
+@StackTrace(false)
+final class SinkBatchEvent extends jdk.jfr.Event {
+    private static final EventType TYPE = EventType.getEventType(SinkBatchEvent.class);
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Events")
+    int events;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("First Execute Time")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long firstExecuteTime;
+
+    @Label("Last Execute Time")
+    @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+    long lastExecuteTime;
+
+    static boolean isOn() {
+        return TYPE.isEnabled();
+    }
+
+    static SinkBatchEvent start() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        final SinkBatchEvent event = new SinkBatchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Reads the rows and the execute times again, only paid for while recording.
+     */
+    void finish(String destination, List<Event> events) {
+        end();
+        this.destination = destination;
+        this.events = events.size();
+        for (Event e : events) {
+            if (e.getEntryType() == EntryType.ROWDATA) {
+                rows++;
+            }
+            final long exec = e.getExecuteTime();
+            if (exec > 0) {
+                if (firstExecuteTime == 0 || exec < firstExecuteTime) {
+                    firstExecuteTime = exec;
+                }
+                lastExecuteTime = Math.max(lastExecuteTime, exec);
+            }
+        }
+        commit();
+    }
+}
@@ -0,0 +1,587 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.ipc.http.HttpSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP/1.1 client for the influx writes, plain http only.
+ * <p>
+ * A single event loop thread owns one keep-alive connection per endpoint and pipelines up to {@code pipelining}
+ * requests on it, the responses completing the futures of {@link #sendAsync(Request)} in order, on the event
+ * loop. Timeouts are deadlines checked by the loop, so a stalled endpoint parks no thread: a connection that
+ * does not connect in time, or gets no response for the read timeout while requests are in flight, is closed
+ * and its requests fail. At most
+ * {@code queueSize} requests per endpoint wait for the connection, further ones are rejected right away.
+ * <p>
+ * The blocking {@link #send(Request)} is only meant for the odd request outside of publishing, it waits for the
+ * connect and the read timeouts at most.
+ */
+public class AsyncHttpSender implements HttpSender, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncHttpSender.class);
+
+    private static final int  READ_BUFFER_SIZE = 16 * 1024;
+    private static final int  MAX_HEAD_BYTES   = 64 * 1024;
+    private static final long SELECT_MILLIS    = 100L;
+
+    private final long     connectTimeoutMillis;
+    private final long     readTimeoutMillis;
+    private final int      pipelining;
+    private final int      queueSize;
+    private final Selector selector;
+    private final Thread   thread;
+    private volatile boolean running = true;
+
+    private final Queue<Exchange>                 submitted = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public AsyncHttpSender(long connectTimeoutMillis, long readTimeoutMillis, int pipelining, int queueSize)
+            throws IOException {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.pipelining = Math.max(1, pipelining);
+        this.queueSize = queueSize;
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, "influx-async-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public Response send(Request request) throws Throwable {
+        // the loop fails the request by then, unless it is gone
+        final long timeoutMillis = connectTimeoutMillis + readTimeoutMillis;
+        try {
+            return sendAsync(request).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("No response from " + request.getUrl() + " within " + timeoutMillis + "ms");
+        }
+    }
+
+    /**
+     * @return Completed on the event loop, exceptionally with a {@link RejectedExecutionException} if the queue of
+     * the endpoint is full.
+     */
+    public CompletableFuture<Response> sendAsync(Request request) {
+        final byte[] body = request.getEntity() == null ? new byte[0] : request.getEntity();
+        return sendAsync(request, body, body.length);
+    }
+
+    /**
+     * Sends {@code [0, length)} of the body in place of the entity of the request. The body is copied before this
+     * returns, so a pooled buffer can be reused right away.
+     *
+     * @see #sendAsync(Request)
+     */
+    public CompletableFuture<Response> sendAsync(Request request, byte[] body, int length) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final URL url = request.getUrl();
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            future.completeExceptionally(new IllegalArgumentException("Only http is supported, not " + url));
+            return future;
+        }
+        if (!running) {
+            future.completeExceptionally(new RejectedExecutionException("Sender is closed"));
+            return future;
+        }
+        final Endpoint endpoint = endpoint(url);
+        if (endpoint.queued.incrementAndGet() > queueSize) {
+            endpoint.queued.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(queueSize + " requests already queued for " + endpoint));
+            return future;
+        }
+        final Exchange exchange = new Exchange(endpoint, encode(request, url, body, length), future);
+        submitted.add(exchange);
+        if (!running && submitted.remove(exchange)) {
+            // closed meanwhile and the loop may be past its last drain, nothing else would complete the future
+            endpoint.queued.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException("Sender is closed"));
+            return future;
+        }
+        selector.wakeup();
+        return future;
+    }
+
+    /**
+     * @return Requests waiting for the connection to the endpoint of the url.
+     */
+    public int getQueued(String url) {
+        try {
+            final Endpoint endpoint = endpoints.get(key(new URL(url)));
+            return endpoint == null ? 0 : endpoint.queued.get();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Fails whatever is still queued or in flight.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Endpoint endpoint(URL url) {
+        final String key = key(url);
+        final Endpoint endpoint = endpoints.get(key);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        return endpoints.computeIfAbsent(key, (k) -> new Endpoint(url.getHost(), port(url)));
+    }
+
+    private static String key(URL url) {
+        return url.getHost() + ':' + port(url);
+    }
+
+    private static int port(URL url) {
+        return url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+    }
+
+    private static ByteBuffer encode(Request request, URL url, byte[] body, int length) {
+        final String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        final StringBuilder head = new StringBuilder(256)
+                .append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(url.getHost()).append(':').append(port(url)).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        for (Map.Entry<String, String> header : request.getRequestHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        final byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + length);
+        buffer.put(headBytes).put(body, 0, length).flip();
+        return buffer;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_MILLIS);
+                Exchange exchange;
+                while ((exchange = submitted.poll()) != null) {
+                    exchange.endpoint.pending.add(exchange);
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Endpoint endpoint = (Endpoint) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            endpoint.finishConnect();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            endpoint.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            endpoint.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        endpoint.fail(e);
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                for (Endpoint endpoint : endpoints.values()) {
+                    try {
+                        endpoint.pump(now);
+                    } catch (IOException | RuntimeException e) {
+                        endpoint.fail(e);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            LOGGER.error("async influx sender stopped", e);
+        } finally {
+            // from here on the requests submitted are failed by sendAsync
+            running = false;
+            final IOException closed = new IOException("Sender is closed");
+            Exchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                exchange.endpoint.pending.add(exchange);
+            }
+            for (Endpoint endpoint : endpoints.values()) {
+                endpoint.fail(closed);
+                Exchange pending;
+                while ((pending = endpoint.pending.poll()) != null) {
+                    pending.future.completeExceptionally(closed);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    private static final class Exchange {
+        private final Endpoint                    endpoint;
+        private final ByteBuffer                  request;
+        private final CompletableFuture<Response> future;
+        private long                              deadline;
+
+        Exchange(Endpoint endpoint, ByteBuffer request, CompletableFuture<Response> future) {
+            this.endpoint = endpoint;
+            this.request = request;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Connection to one host and port, only touched by the event loop apart from {@link #queued}.
+     */
+    private final class Endpoint {
+        private final String                host;
+        private final int                   port;
+        private final AtomicInteger         queued   = new AtomicInteger();
+        private final ArrayDeque<Exchange>  pending  = new ArrayDeque<>();
+        private final ArrayDeque<Exchange>  inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> out     = new ArrayDeque<>();
+        private final ResponseReader        reader   = new ResponseReader();
+        private SocketChannel               channel;
+        private SelectionKey                key;
+        private boolean                     connected;
+        private long                        connectDeadline;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Connects if there is anything to send, moves pending requests in flight, and enforces the deadlines.
+         */
+        void pump(long now) throws IOException {
+            if (channel == null) {
+                if (!pending.isEmpty()) {
+                    connect(now);
+                }
+                return;
+            }
+            if (!connected) {
+                if (now >= connectDeadline) {
+                    throw new ConnectException("Connecting to " + this + " timed out after " + connectTimeoutMillis + "ms");
+                }
+                return;
+            }
+            final Exchange oldest = inFlight.peek();
+            if (oldest != null && now >= oldest.deadline) {
+                throw new SocketTimeoutException("No response from " + this + " within " + readTimeoutMillis + "ms");
+            }
+            boolean wrote = false;
+            while (inFlight.size() < pipelining && !pending.isEmpty()) {
+                final Exchange exchange = pending.poll();
+                queued.decrementAndGet();
+                if (inFlight.isEmpty()) {
+                    exchange.deadline = now + readTimeoutMillis;
+                }
+                inFlight.add(exchange);
+                out.add(exchange.request);
+                wrote = true;
+            }
+            if (wrote) {
+                write();
+            }
+        }
+
+        private void connect(long now) throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connectDeadline = now + connectTimeoutMillis;
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                finishConnect();
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) {
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                pump(System.currentTimeMillis());
+            }
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                final ByteBuffer buffer = out.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            final int n = reader.readFrom(channel);
+            Response response;
+            while ((response = reader.next(n < 0)) != null) {
+                final Exchange exchange = inFlight.poll();
+                if (exchange == null) {
+                    throw new IOException("Unexpected response from " + this);
+                }
+                exchange.future.complete(response);
+                final Exchange next = inFlight.peek();
+                if (next != null) {
+                    // the deadline is for the next response, however long the pipeline
+                    next.deadline = System.currentTimeMillis() + readTimeoutMillis;
+                }
+                if (reader.closing) {
+                    // the server processes nothing after a response announcing the close, send the rest again
+                    close();
+                    requeueInFlight();
+                    return;
+                }
+            }
+            if (n < 0) {
+                throw new IOException("Connection to " + this + " closed by the server");
+            }
+        }
+
+        /**
+         * Fails the requests in flight and closes the connection, the pending ones go on a new connection.
+         */
+        void fail(Throwable cause) {
+            close();
+            Exchange exchange;
+            while ((exchange = inFlight.poll()) != null) {
+                exchange.future.completeExceptionally(cause);
+            }
+            if (cause instanceof ConnectException) {
+                // no point in trying the queued requests on a new connection right away
+                while ((exchange = pending.poll()) != null) {
+                    queued.decrementAndGet();
+                    exchange.future.completeExceptionally(cause);
+                }
+            }
+        }
+
+        private void requeueInFlight() {
+            Exchange exchange;
+            while ((exchange = inFlight.pollLast()) != null) {
+                exchange.request.rewind();
+                pending.addFirst(exchange);
+                queued.incrementAndGet();
+            }
+        }
+
+        private void close() {
+            if (channel == null) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing left to do
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            out.clear();
+            reader.reset();
+        }
+
+        @Override
+        public String toString() {
+            return host + ':' + port;
+        }
+    }
+
+    /**
+     * Parses the responses of one connection as they arrive: Content-Length, chunked, or up to the close.
+     */
+    private static final class ResponseReader {
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean    closing;
+
+        int readFrom(SocketChannel channel) throws IOException {
+            if (!in.hasRemaining()) {
+                final ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            return channel.read(in);
+        }
+
+        void reset() {
+            in.clear();
+            closing = false;
+        }
+
+        /**
+         * @return The next complete response, {@code null} if more bytes are needed.
+         */
+        Response next(boolean eof) throws IOException {
+            while (true) {
+                final int headEnd = indexOf(0, in.position(), "\r\n\r\n");
+                if (headEnd < 0) {
+                    if (in.position() > MAX_HEAD_BYTES) {
+                        throw new IOException("Response head larger than " + MAX_HEAD_BYTES + " bytes");
+                    }
+                    return null;
+                }
+                final String[] lines = string(0, headEnd).split("\r\n");
+                final String[] status = lines[0].split(" ", 3);
+                if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                    throw new IOException("Malformed status line: " + lines[0]);
+                }
+                final int code = Integer.parseInt(status[1]);
+                long contentLength = -1;
+                boolean chunked = false;
+                boolean close = false;
+                for (int i = 1; i < lines.length; i++) {
+                    final int colon = lines[i].indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    final String name = lines[i].substring(0, colon).trim();
+                    final String value = lines[i].substring(colon + 1).trim();
+                    if ("Content-Length".equalsIgnoreCase(name)) {
+                        contentLength = Long.parseLong(value);
+                    } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                        chunked = value.toLowerCase().contains("chunked");
+                    } else if ("Connection".equalsIgnoreCase(name)) {
+                        close = "close".equalsIgnoreCase(value);
+                    }
+                }
+                final int bodyStart = headEnd + 4;
+                if (code / 100 == 1) {
+                    consume(bodyStart);
+                    continue;
+                }
+
+                final String body;
+                final int end;
+                if (code == 204 || code == 304) {
+                    body = Response.NO_RESPONSE_BODY;
+                    end = bodyStart;
+                } else if (chunked) {
+                    final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                    end = dechunk(bodyStart, decoded);
+                    if (end < 0) {
+                        return null;
+                    }
+                    body = new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+                } else if (contentLength >= 0) {
+                    if (in.position() < bodyStart + contentLength) {
+                        return null;
+                    }
+                    end = (int) (bodyStart + contentLength);
+                    body = string(bodyStart, end);
+                } else {
+                    // delimited by the close of the connection
+                    if (!eof) {
+                        return null;
+                    }
+                    end = in.position();
+                    body = string(bodyStart, end);
+                    close = true;
+                }
+                consume(end);
+                closing = close;
+                return new Response(code, body.isEmpty() ? Response.NO_RESPONSE_BODY : body);
+            }
+        }
+
+        /**
+         * @return End of the chunked body, {@code -1} if it is incomplete.
+         */
+        private int dechunk(int from, ByteArrayOutputStream decoded) {
+            int i = from;
+            while (true) {
+                final int lineEnd = indexOf(i, in.position(), "\r\n");
+                if (lineEnd < 0) {
+                    return -1;
+                }
+                String size = string(i, lineEnd);
+                final int extension = size.indexOf(';');
+                if (extension >= 0) {
+                    size = size.substring(0, extension);
+                }
+                final int length = Integer.parseInt(size.trim(), 16);
+                i = lineEnd + 2;
+                if (length == 0) {
+                    // trailers, if any, end with an empty line
+                    final int trailerEnd = indexOf(i - 2, in.position(), "\r\n\r\n");
+                    return trailerEnd < 0 ? -1 : trailerEnd + 4;
+                }
+                if (in.position() < i + length + 2) {
+                    return -1;
+                }
+                decoded.write(in.array(), i, length);
+                i += length + 2;
+            }
+        }
+
+        private int indexOf(int from, int to, String s) {
+            final byte[] array = in.array();
+            outer:
+            for (int i = from; i <= to - s.length(); i++) {
+                for (int j = 0; j < s.length(); j++) {
+                    if (array[i + j] != s.charAt(j)) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private String string(int from, int to) {
+            return new String(in.array(), from, to - from, StandardCharsets.UTF_8);
+        }
+
+        private void consume(int n) {
+            in.flip();
+            in.position(n);
+            in.compact();
+        }
+    }
+}
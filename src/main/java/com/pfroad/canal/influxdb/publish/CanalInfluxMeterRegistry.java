@@ -0,0 +1,357 @@
+package com.pfroad.canal.influxdb.publish;
+
+import com.pfroad.canal.influxdb.CanalInfluxConfig;
+import com.pfroad.canal.influxdb.binder.CanalInstanceMetrics;
+import com.pfroad.canal.influxdb.jfr.FlightEvents;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.step.StepMeterRegistry;
+import io.micrometer.core.instrument.util.MeterPartition;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.influx.InfluxNamingConvention;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Influx registry publishing through {@link LineProtocolEncoder} instead of building a String per meter.
+ * Configuration, database creation and the written series are the same as {@code InfluxMeterRegistry}.
+ * <p>
+ * With {@link CanalInfluxConfig#shards()} set, the series are spread by destination over several endpoints
+ * and databases, each an {@link InfluxShard} sending its batches in parallel with the others, so the publishing
+ * thread only encodes and a slow endpoint no longer holds up the whole step.
+ * <p>
+ * Given an {@link AsyncHttpSender}, every endpoint is sent to through a shard, a single one without
+ * {@link CanalInfluxConfig#shards()}, and no thread waits on influx.
+ * <p>
+ * A step meter hands out what it counted when it is first read in a new step, so every read of a publish has to
+ * fall within one step: read again in the same step it repeats the last value, not read for a whole step it drops
+ * it. Publishing every step from whenever the registry was created, a publish running over a step boundary
+ * duplicates or loses part of the counters; the publishes are aligned a twentieth into each step instead.
+ */
+public class CanalInfluxMeterRegistry extends StepMeterRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CanalInfluxMeterRegistry.class);
+
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = new NamedThreadFactory("influx-metrics-publisher");
+    private static final int           INITIAL_BUFFER_SIZE    = 64 * 1024;
+
+    private final CanalInfluxConfig   config;
+    private final HttpSender          httpClient;
+    private final LineProtocolEncoder encoder;
+    private final String[]            shardEndpoints;
+    private final Map<String, Integer> shardMapping;
+    private boolean                   databaseExists = false;
+    private ScheduledExecutorService  publisher;
+
+    // created on the first publish, once the common tags are configured
+    private ExporterMetrics            exporter;
+    private List<InfluxShard>          shards;
+
+    // encoded by the publish running, told to its flight recorder event
+    private long                       publishedLines;
+    private long                       publishedBytes;
+
+    public CanalInfluxMeterRegistry(CanalInfluxConfig config, Clock clock, HttpSender httpClient) {
+        super(config, clock);
+        this.config = config;
+        this.httpClient = httpClient;
+        this.encoder = new LineProtocolEncoder(getBaseTimeUnit(), INITIAL_BUFFER_SIZE);
+        this.shardEndpoints = isNotBlank(config.shards()) ? config.shards().split(",") : new String[0];
+        this.shardMapping = shardMapping(config.shardMapping(), shardEndpoints.length);
+        config().namingConvention(new InfluxNamingConvention());
+        start(DEFAULT_THREAD_FACTORY);
+    }
+
+    private synchronized void initialize() {
+        if (exporter != null) {
+            return;
+        }
+        exporter = new ExporterMetrics(this);
+        if (shardEndpoints.length == 0 && httpClient instanceof AsyncHttpSender) {
+            // the async sender only goes through shards, a single one here
+            shards = Collections.singletonList(new InfluxShard(this, config.uri(), config.db(), writeParameters(),
+                    httpClient, config.userName(), config.password(), 1, 1, exporter));
+            return;
+        }
+        final List<InfluxShard> result = new ArrayList<>();
+        for (String shard : shardEndpoints) {
+            shard = shard.trim();
+            final int at = shard.indexOf('@');
+            final boolean hasDb = at > 0 && at < shard.indexOf("://");
+            final String uri = hasDb ? shard.substring(at + 1) : shard;
+            final String db = hasDb ? shard.substring(0, at) : config.db();
+            result.add(new InfluxShard(this, uri, db, writeParameters(), httpClient, config.userName(),
+                    config.password(), config.shardInFlight(), config.shardQueueSize(), exporter));
+        }
+        shards = result;
+    }
+
+    private static Map<String, Integer> shardMapping(String mapping, int shards) {
+        final Map<String, Integer> result = new HashMap<>();
+        if (!isNotBlank(mapping)) {
+            return result;
+        }
+        for (String pair : mapping.split(",")) {
+            final int eq = pair.indexOf('=');
+            final int shard = eq < 0 ? -1 : Integer.parseInt(pair.substring(eq + 1).trim());
+            if (shard < 0 || shard >= shards) {
+                throw new IllegalArgumentException("Invalid shard mapping '" + pair + "', " + shards + " shards");
+            }
+            result.put(pair.substring(0, eq).trim(), shard);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void start(ThreadFactory threadFactory) {
+        stop();
+        if (!config.enabled()) {
+            return;
+        }
+        LOGGER.info("publishing metrics to influx every {}", config.step());
+        final long stepMillis = config.step().toMillis();
+        publisher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        publisher.scheduleAtFixedRate(this::publishSafely, initialDelay(clock.wallTime(), stepMillis), stepMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Milliseconds from {@code now} to a twentieth into the next step.
+     */
+    static long initialDelay(long now, long stepMillis) {
+        return stepMillis - now % stepMillis + stepMillis / 20;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (publisher != null) {
+            publisher.shutdown();
+            publisher = null;
+        }
+        super.stop();
+    }
+
+    private void publishSafely() {
+        try {
+            publish();
+        } catch (Throwable e) {
+            LOGGER.warn("Unexpected exception thrown while publishing metrics to influx", e);
+        }
+    }
+
+    @Override
+    protected void publish() {
+        initialize();
+        final long started = clock.monotonicTime();
+        final Object trace = FlightEvents.beginPublish();
+        publishedLines = 0;
+        publishedBytes = 0;
+        try {
+            if (shards.isEmpty()) {
+                publishSequential();
+            } else {
+                publishSharded();
+            }
+        } finally {
+            exporter.getPublish().record(clock.monotonicTime() - started, TimeUnit.NANOSECONDS);
+            if (trace != null) {
+                FlightEvents.commitPublish(trace, getMeters().size(), publishedLines, publishedBytes);
+            }
+        }
+    }
+
+    private void publishSequential() {
+        createDatabaseIfNecessary();
+
+        try {
+            final String endpoint = writeEndpoint();
+            final boolean gzip = config.compressed();
+            final long timestamp = clock.wallTime();
+            for (List<Meter> batch : MeterPartition.partition(this, config.batchSize())) {
+                final LineProtocolEncoder.Batch encoded = encode(batch, timestamp, gzip);
+                try {
+                    if (encoded.lines() == 0) {
+                        continue;
+                    }
+                    // the sender takes an array of the exact size, the only copy of the batch
+                    final HttpSender.Request.Builder request = httpClient.post(endpoint)
+                            .withBasicAuthentication(config.userName(), config.password())
+                            .withContent("text/plain; charset=utf-8", encoded.toByteArray());
+                    if (gzip) {
+                        request.withHeader("Content-Encoding", "gzip");
+                    }
+                    final int lines = encoded.lines();
+                    final HttpSender.Response response = send(request);
+                    response.onSuccess(r -> LOGGER.debug("successfully sent {} metrics to influx", lines))
+                            .onError(r -> LOGGER.error("failed to send metrics to influx: {}", r.body()));
+                } finally {
+                    encoder.release(encoded);
+                }
+            }
+        } catch (Throwable e) {
+            LOGGER.error("failed to send metrics to influx", e);
+        }
+    }
+
+    private HttpSender.Response send(HttpSender.Request.Builder request) throws Throwable {
+        try {
+            final HttpSender.Response response = request.send();
+            exporter.sent(response);
+            return response;
+        } catch (Throwable e) {
+            exporter.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Encodes and counts a batch, the time spent reading the meters included.
+     */
+    private LineProtocolEncoder.Batch encode(List<Meter> meters, long timestamp, boolean gzip) {
+        final long started = clock.monotonicTime();
+        final LineProtocolEncoder.Batch encoded = encoder.encode(meters, timestamp, gzip);
+        exporter.getEncode().record(clock.monotonicTime() - started, TimeUnit.NANOSECONDS);
+        exporter.encoded(encoded);
+        publishedLines += encoded.lines();
+        publishedBytes += encoded.length();
+        return encoded;
+    }
+
+    /**
+     * Encodes the batches of each shard on this thread and leaves the sending to the shards.
+     */
+    private void publishSharded() {
+        try {
+            final List<List<Meter>> byShard = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                byShard.add(new ArrayList<>());
+            }
+            for (Meter meter : getMeters()) {
+                byShard.get(shardOf(meter.getId().getTag(CanalInstanceMetrics.DESTINATION))).add(meter);
+            }
+
+            final boolean gzip = config.compressed();
+            final long timestamp = clock.wallTime();
+            final int batchSize = config.batchSize();
+            for (int i = 0; i < shards.size(); i++) {
+                final InfluxShard shard = shards.get(i);
+                if (config.autoCreateDb()) {
+                    shard.createDatabaseIfNecessary(createDatabaseQuery(shard.getDb()));
+                }
+                final List<Meter> meters = byShard.get(i);
+                int dropped = 0;
+                for (int from = 0; from < meters.size(); from += batchSize) {
+                    final LineProtocolEncoder.Batch encoded = encode(
+                            meters.subList(from, Math.min(meters.size(), from + batchSize)), timestamp, gzip);
+                    try {
+                        if (encoded.lines() > 0 && !shard.write(encoded.array(), encoded.length(), encoded.lines(), gzip)) {
+                            dropped += encoded.lines();
+                        }
+                    } finally {
+                        encoder.release(encoded);
+                    }
+                }
+                if (dropped > 0) {
+                    LOGGER.warn("dropped {} metrics, {} is not keeping up", dropped, shard);
+                }
+            }
+        } catch (Throwable e) {
+            LOGGER.error("failed to send metrics to influx", e);
+        }
+    }
+
+    int shardOf(String destination) {
+        if (destination == null) {
+            return 0;
+        }
+        final Integer shard = shardMapping.get(destination);
+        return shard != null ? shard : Math.floorMod(destination.hashCode(), shards.size());
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (shards == null) {
+            return;
+        }
+        for (InfluxShard shard : shards) {
+            shard.close(config.httpReadTimeout().toMillis());
+        }
+    }
+
+    private String writeEndpoint() {
+        return config.uri() + "/write?db=" + config.db() + writeParameters();
+    }
+
+    private String writeParameters() {
+        String parameters = "&consistency=" + config.consistency().toString().toLowerCase() + "&precision=ms";
+        if (isNotBlank(config.retentionPolicy())) {
+            parameters += "&rp=" + config.retentionPolicy();
+        }
+        return parameters;
+    }
+
+    private void createDatabaseIfNecessary() {
+        if (!config.autoCreateDb() || databaseExists) {
+            return;
+        }
+
+        try {
+            final String query = createDatabaseQuery(config.db());
+            httpClient.post(config.uri() + "/query?q=" + URLEncoder.encode(query, "UTF-8"))
+                    .withBasicAuthentication(config.userName(), config.password())
+                    .send()
+                    .onSuccess(response -> {
+                        LOGGER.debug("influx database {} is ready to receive metrics", config.db());
+                        databaseExists = true;
+                    })
+                    .onError(response -> LOGGER.error("unable to create database '{}': {}", config.db(), response.body()));
+        } catch (Throwable e) {
+            LOGGER.error("unable to create database '{}'", config.db(), e);
+        }
+    }
+
+    private String createDatabaseQuery(String db) {
+        final StringBuilder query = new StringBuilder("CREATE DATABASE \"").append(db).append('"');
+        final boolean duration = isNotBlank(config.retentionDuration());
+        final boolean replication = config.retentionReplicationFactor() != null;
+        final boolean shardDuration = isNotBlank(config.retentionShardDuration());
+        final boolean name = isNotBlank(config.retentionPolicy());
+        if (duration || replication || shardDuration || name) {
+            query.append(" WITH");
+            if (duration) {
+                query.append(" DURATION ").append(config.retentionDuration());
+            }
+            if (replication) {
+                query.append(" REPLICATION ").append(config.retentionReplicationFactor());
+            }
+            if (shardDuration) {
+                query.append(" SHARD DURATION ").append(config.retentionShardDuration());
+            }
+            if (name) {
+                query.append(" NAME ").append(config.retentionPolicy());
+            }
+        }
+        return query.toString();
+    }
+
+    private static boolean isNotBlank(String s) {
+        return s != null && !s.trim().isEmpty();
+    }
+
+    @Override
+    protected final TimeUnit getBaseTimeUnit() {
+        return TimeUnit.MILLISECONDS;
+    }
+}
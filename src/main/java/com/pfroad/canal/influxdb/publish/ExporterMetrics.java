@@ -0,0 +1,152 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.ipc.http.HttpSender;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Meters of the exporter itself: how long publishing and encoding take, what is sent, and what fails or is
+ * dropped on the way. The time spent in the canal hooks is published by the binders under the same prefix,
+ * {@code canal.metrics.exporter.hook}.
+ */
+public class ExporterMetrics {
+    private static final String PUBLISH         = "canal.metrics.exporter.publish";
+    private static final String ENCODE          = "canal.metrics.exporter.encode";
+    private static final String POINTS          = "canal.metrics.exporter.points";
+    private static final String BYTES           = "canal.metrics.exporter.bytes";
+    private static final String BATCHES         = "canal.metrics.exporter.batches";
+    private static final String FAILURES        = "canal.metrics.exporter.failures";
+    private static final String DROPPED         = "canal.metrics.exporter.dropped";
+    private static final String SPOOL           = "canal.metrics.exporter.spool";
+    private static final String SPOOL_PENDING   = "canal.metrics.exporter.spool.pending";
+    private static final String PUBLISH_HELP    = "Time to encode and hand over all the meters of a step";
+    private static final String ENCODE_HELP     = "Time to read and encode one batch, gauge evaluation included";
+    private static final String POINTS_HELP     = "Points encoded for influx";
+    private static final String BYTES_HELP      = "Bytes of the encoded batches, compressed if enabled";
+    private static final String BATCHES_HELP    = "Batches handed to the http client";
+    private static final String FAILURES_HELP   = "Batches not accepted by influx, by status code or exception";
+    private static final String DROPPED_HELP    = "Points dropped without being sent";
+    private static final String SPOOL_HELP      = "Batches through the spool of undelivered batches";
+    private static final String SPOOL_PEND_HELP = "Batches waiting in the spool";
+
+    private final MeterRegistry registry;
+    private final Timer         publish;
+    private final Timer         encode;
+    private final Counter       points;
+    private final Counter       bytes;
+    private final Counter       batches;
+    private final ConcurrentMap<String, Counter> failures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> dropped  = new ConcurrentHashMap<>();
+
+    public ExporterMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.publish = Timer.builder(PUBLISH)
+                .description(PUBLISH_HELP)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(registry);
+        this.encode = Timer.builder(ENCODE)
+                .description(ENCODE_HELP)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(registry);
+        this.points = Counter.builder(POINTS)
+                .description(POINTS_HELP)
+                .baseUnit("points")
+                .register(registry);
+        this.bytes = Counter.builder(BYTES)
+                .description(BYTES_HELP)
+                .baseUnit("bytes")
+                .register(registry);
+        this.batches = Counter.builder(BATCHES)
+                .description(BATCHES_HELP)
+                .baseUnit("batches")
+                .register(registry);
+    }
+
+    public Timer getPublish() {
+        return publish;
+    }
+
+    public Timer getEncode() {
+        return encode;
+    }
+
+    /**
+     * Counts a batch about to be sent.
+     */
+    public void encoded(LineProtocolEncoder.Batch batch) {
+        points.increment(batch.lines());
+        bytes.increment(batch.length());
+    }
+
+    /**
+     * Counts the outcome of a sent batch, a batch taken by the spool counts as spooled, not failed.
+     */
+    public void sent(HttpSender.Response response) {
+        batches.increment();
+        if (response.code() == SpoolingHttpSender.SPOOLED) {
+            return;
+        }
+        if (!response.isSuccessful()) {
+            failure(String.valueOf(response.code()));
+        }
+    }
+
+    public void failed(Throwable e) {
+        batches.increment();
+        failure(e.getClass().getSimpleName());
+    }
+
+    public void dropped(int lines, String cause) {
+        dropped.computeIfAbsent(cause, (c) -> Counter.builder(DROPPED)
+                .description(DROPPED_HELP)
+                .baseUnit("points")
+                .tag("cause", c)
+                .register(registry))
+                .increment(lines);
+    }
+
+    /**
+     * Publishes the counters of the spool.
+     */
+    public static void bindSpool(MeterRegistry registry, MetricsSpool spool) {
+        FunctionCounter.builder(SPOOL, spool, (s) -> s.getAppendedRecords().doubleValue())
+                .description(SPOOL_HELP)
+                .baseUnit("batches")
+                .tag("op", "appended")
+                .register(registry);
+        FunctionCounter.builder(SPOOL, spool, (s) -> s.getReplayedRecords().doubleValue())
+                .description(SPOOL_HELP)
+                .baseUnit("batches")
+                .tag("op", "replayed")
+                .register(registry);
+        FunctionCounter.builder(SPOOL, spool, (s) -> s.getEvictedRecords().doubleValue())
+                .description(SPOOL_HELP)
+                .baseUnit("batches")
+                .tag("op", "evicted")
+                .register(registry);
+        FunctionCounter.builder(SPOOL, spool, (s) -> s.getDroppedRecords().doubleValue())
+                .description(SPOOL_HELP)
+                .baseUnit("batches")
+                .tag("op", "dropped")
+                .register(registry);
+        Gauge.builder(SPOOL_PENDING, spool, MetricsSpool::getPendingRecords)
+                .description(SPOOL_PEND_HELP)
+                .baseUnit("batches")
+                .register(registry);
+    }
+
+    private void failure(String cause) {
+        failures.computeIfAbsent(cause, (c) -> Counter.builder(FAILURES)
+                .description(FAILURES_HELP)
+                .baseUnit("batches")
+                .tag("cause", c)
+                .register(registry))
+                .increment();
+    }
+}
@@ -0,0 +1,288 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One influx endpoint and database of a sharded {@link CanalInfluxMeterRegistry}.
+ * <p>
+ * Batches are sent by at most {@code inFlight} threads of the shard, so a slow endpoint only holds up its own
+ * batches. At most {@code queueSize} batches wait behind them: when the queue is full the batch is dropped right
+ * away, counted in {@code canal.metrics.exporter.dropped}, and the publishing thread moves on to the next shard.
+ * <p>
+ * Given an {@link AsyncHttpSender}, the shard has no threads of its own: the batches are handed to the sender,
+ * whose limits per endpoint apply instead, and its callbacks do the accounting.
+ */
+public class InfluxShard implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfluxShard.class);
+
+    private static final String QUEUED      = "canal.metrics.shard.queued";
+    private static final String QUEUED_HELP = "Batches waiting to be sent to the shard";
+    private static final byte[] NO_BODY     = new byte[0];
+
+    private final String             uri;
+    private final String             db;
+    private final HttpSender         httpClient;
+    private final AsyncHttpSender    async;
+    private final String             userName;
+    private final String             password;
+    private final String             writeEndpoint;
+    private final ThreadPoolExecutor senders;
+    private final ExporterMetrics    exporter;
+    private final AtomicInteger      outstanding = new AtomicInteger();
+    private volatile boolean         databaseExists;
+    private volatile boolean         creatingDatabase;
+
+    public InfluxShard(MeterRegistry registry, String uri, String db, String writeParameters, HttpSender httpClient,
+                       String userName, String password, int inFlight, int queueSize, ExporterMetrics exporter) {
+        this.uri = uri;
+        this.db = db;
+        this.httpClient = httpClient;
+        this.async = httpClient instanceof AsyncHttpSender ? (AsyncHttpSender) httpClient : null;
+        this.userName = userName;
+        this.password = password;
+        this.writeEndpoint = uri + "/write?db=" + db + writeParameters;
+        this.exporter = exporter;
+        final Tags tags = Tags.of("shard", uri + "/" + db);
+        if (async == null) {
+            this.senders = new ThreadPoolExecutor(inFlight, inFlight, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), new NamedThreadFactory("influx-shard-" + db));
+            Gauge.builder(QUEUED, senders, (s) -> s.getQueue().size())
+                    .description(QUEUED_HELP)
+                    .tags(tags)
+                    .register(registry);
+        } else {
+            this.senders = null;
+            Gauge.builder(QUEUED, async, (s) -> s.getQueued(writeEndpoint))
+                    .description(QUEUED_HELP)
+                    .tags(tags)
+                    .register(registry);
+        }
+    }
+
+    /**
+     * Queues the batch in {@code [0, length)} of the body without waiting. The body is not used once this returns:
+     * the {@link AsyncHttpSender} copies it into its request, the threads of the shard get a copy of their own.
+     *
+     * @return {@code false} if the batch was dropped.
+     */
+    public boolean write(byte[] body, int length, int lines, boolean gzip) {
+        if (async != null) {
+            return writeAsync(body, length, lines, gzip);
+        }
+        final byte[] copy = Arrays.copyOf(body, length);
+        try {
+            senders.execute(() -> send(copy, lines, gzip));
+            return true;
+        } catch (RejectedExecutionException e) {
+            exporter.dropped(lines, "queue");
+            return false;
+        }
+    }
+
+    /**
+     * Queues the creation of the database, until the endpoint confirmed it once.
+     */
+    public void createDatabaseIfNecessary(String query) {
+        if (databaseExists) {
+            return;
+        }
+        if (async != null) {
+            createDatabaseAsync(query);
+            return;
+        }
+        try {
+            senders.execute(() -> createDatabase(query));
+        } catch (RejectedExecutionException e) {
+            // tried again on the next publish
+        }
+    }
+
+    /**
+     * Sends what is queued, waiting at most {@code timeoutMillis}.
+     */
+    public void close(long timeoutMillis) {
+        if (async != null) {
+            awaitOutstanding(timeoutMillis);
+            return;
+        }
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Dropping {} batches not sent to {} in time.", senders.shutdownNow().size(), this);
+            }
+        } catch (InterruptedException e) {
+            senders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        close(0L);
+    }
+
+    private void send(byte[] body, int lines, boolean gzip) {
+        try {
+            final HttpSender.Request.Builder request = httpClient.post(writeEndpoint)
+                    .withBasicAuthentication(userName, password)
+                    .withContent("text/plain; charset=utf-8", body);
+            if (gzip) {
+                request.withHeader("Content-Encoding", "gzip");
+            }
+            final HttpSender.Response response = request.send();
+            exporter.sent(response);
+            response.onSuccess(r -> LOGGER.debug("successfully sent {} metrics to {}", lines, this))
+                    .onError(r -> LOGGER.error("failed to send metrics to {}: {}", this, r.body()));
+        } catch (Throwable e) {
+            exporter.failed(e);
+            LOGGER.error("failed to send metrics to {}", this, e);
+        }
+    }
+
+    /**
+     * The callbacks run on the event loop of the sender, they only count and log.
+     */
+    private boolean writeAsync(byte[] body, int length, int lines, boolean gzip) {
+        final CompletableFuture<HttpSender.Response> future;
+        try {
+            future = async.sendAsync(request(writeEndpoint, NO_BODY, gzip), body, length);
+        } catch (Exception e) {
+            exporter.failed(e);
+            LOGGER.error("failed to send metrics to {}", this, e);
+            return true;
+        }
+        if (isRejected(future)) {
+            exporter.dropped(lines, "queue");
+            return false;
+        }
+        outstanding.incrementAndGet();
+        future.whenComplete((response, e) -> {
+            outstanding.decrementAndGet();
+            if (e != null) {
+                exporter.failed(e);
+                LOGGER.error("failed to send metrics to {}", this, e);
+                return;
+            }
+            exporter.sent(response);
+            response.onSuccess(r -> LOGGER.debug("successfully sent {} metrics to {}", lines, this))
+                    .onError(r -> LOGGER.error("failed to send metrics to {}: {}", this, r.body()));
+        });
+        return true;
+    }
+
+    private void awaitOutstanding(long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (outstanding.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (outstanding.get() > 0) {
+            LOGGER.warn("Dropping {} batches not sent to {} in time.", outstanding.get(), this);
+        }
+    }
+
+    private void createDatabase(String query) {
+        if (databaseExists) {
+            return;
+        }
+        try {
+            httpClient.post(uri + "/query?q=" + URLEncoder.encode(query, "UTF-8"))
+                    .withBasicAuthentication(userName, password)
+                    .send()
+                    .onSuccess(response -> {
+                        LOGGER.debug("influx database {} is ready to receive metrics", this);
+                        databaseExists = true;
+                    })
+                    .onError(response -> LOGGER.error("unable to create database {}: {}", this, response.body()));
+        } catch (Throwable e) {
+            LOGGER.error("unable to create database {}", this, e);
+        }
+    }
+
+    private void createDatabaseAsync(String query) {
+        if (creatingDatabase) {
+            return;
+        }
+        creatingDatabase = true;
+        try {
+            async.sendAsync(request(uri + "/query?q=" + URLEncoder.encode(query, "UTF-8"), NO_BODY, false))
+                    .whenComplete((response, e) -> {
+                        creatingDatabase = false;
+                        if (e != null) {
+                            LOGGER.error("unable to create database {}", this, e);
+                            return;
+                        }
+                        response.onSuccess(r -> {
+                            LOGGER.debug("influx database {} is ready to receive metrics", this);
+                            databaseExists = true;
+                        }).onError(r -> LOGGER.error("unable to create database {}: {}", this, r.body()));
+                    });
+        } catch (Exception e) {
+            creatingDatabase = false;
+            LOGGER.error("unable to create database {}", this, e);
+        }
+    }
+
+    /**
+     * Same headers as {@link HttpSender.Request.Builder} would set.
+     */
+    private HttpSender.Request request(String url, byte[] body, boolean gzip) throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        if (userName != null && !userName.trim().isEmpty()) {
+            final String credentials = userName + ':' + (password == null ? "" : password);
+            headers.put("Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        headers.put("Content-Type", "text/plain; charset=utf-8");
+        if (gzip) {
+            headers.put("Content-Encoding", "gzip");
+        }
+        return new HttpSender.Request(new URL(url), body, HttpSender.Method.POST, headers);
+    }
+
+    private static boolean isRejected(CompletableFuture<?> future) {
+        if (!future.isCompletedExceptionally()) {
+            return false;
+        }
+        try {
+            future.getNow(null);
+            return false;
+        } catch (Exception e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        }
+    }
+
+    public String getDb() {
+        return db;
+    }
+
+    @Override
+    public String toString() {
+        return uri + "/" + db;
+    }
+}
@@ -0,0 +1,537 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.util.DoubleFormat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes meters as Influx line protocol straight into pooled byte buffers, optionally gzip compressed on the
+ * fly, producing the same lines as {@code InfluxMeterRegistry} with its default {@code InfluxNamingConvention}:
+ * snake case names, the same escaping, tags with a blank value left out, a {@code metric_type} tag, the same
+ * fields per meter type and numbers formatted like {@link DoubleFormat#decimalOrNan(double)}. A {@code time} tag
+ * key is refused the same way. Only the non-finite fields of timers and summaries differ, written as {@code 0}
+ * rather than {@code NaN}, which influx rejects.
+ * <p>
+ * Names, tags and numbers are escaped and formatted character by character, so a step does not build a String
+ * per meter and tag. Buffers, {@link Deflater}s and checksums are kept in a pool and reused across steps; they
+ * only grow until they fit the largest batch. Java 8's {@link Deflater} only consumes arrays, which is why the
+ * buffers are heap arrays rather than direct buffers.
+ */
+public class LineProtocolEncoder {
+
+    private static final byte[] GZIP_HEADER     = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int    FLUSH_THRESHOLD = 32 * 1024;
+    private static final int    MAX_DECIMALS    = 6;
+    private static final long[] POW10           = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+    private static final double MAX_SCALED      = 0x1p50;
+    private static final long   MAX_WHOLE       = 1L << 53;
+    private static final String TIME            = "time";
+    private static final int    NAME            = 0;
+    private static final int    TAG_KEY         = 1;
+    private static final int    TAG_VALUE       = 2;
+
+    private static final byte[] METRIC_TYPE     = ascii(",metric_type=");
+    private static final byte[] COUNTER         = ascii("counter");
+    private static final byte[] GAUGE           = ascii("gauge");
+    private static final byte[] HISTOGRAM       = ascii("histogram");
+    private static final byte[] LONG_TASK_TIMER = ascii("long_task_timer");
+    private static final byte[] UNKNOWN         = ascii("unknown");
+    private static final byte[] VALUE           = ascii("value");
+    private static final byte[] SUM             = ascii("sum");
+    private static final byte[] COUNT           = ascii("count");
+    private static final byte[] MEAN            = ascii("mean");
+    private static final byte[] UPPER           = ascii("upper");
+    private static final byte[] ACTIVE_TASKS    = ascii("active_tasks");
+    private static final byte[] DURATION        = ascii("duration");
+
+    /**
+     * Field keys of the measurements of the other meters, indexed by {@link Statistic#ordinal()}.
+     */
+    private static final byte[][] STATISTICS = new byte[Statistic.values().length][];
+
+    static {
+        for (Statistic statistic : Statistic.values()) {
+            STATISTICS[statistic.ordinal()] = ascii(statistic.getTagValueRepresentation()
+                    .replaceAll("(.)(\\p{Upper})", "$1_$2").toLowerCase());
+        }
+    }
+
+    private final TimeUnit                     baseTimeUnit;
+    private final int                          initialBufferSize;
+    private final ConcurrentLinkedQueue<Batch> pool = new ConcurrentLinkedQueue<>();
+
+    public LineProtocolEncoder(TimeUnit baseTimeUnit, int initialBufferSize) {
+        this.baseTimeUnit = baseTimeUnit;
+        this.initialBufferSize = initialBufferSize;
+    }
+
+    /**
+     * Encodes the meters into a pooled batch, which must be handed back with {@link #release(Batch)}.
+     */
+    public Batch encode(List<Meter> meters, long timestamp, boolean gzip) {
+        Batch batch = pool.poll();
+        if (batch == null) {
+            batch = new Batch(initialBufferSize);
+        }
+        try {
+            batch.begin(gzip);
+            for (int i = 0, size = meters.size(); i < size; i++) {
+                batch.write(meters.get(i), timestamp);
+            }
+            batch.end();
+        } catch (RuntimeException e) {
+            release(batch);
+            throw e;
+        }
+        return batch;
+    }
+
+    public void release(Batch batch) {
+        pool.offer(batch);
+    }
+
+    /**
+     * Blank once escaped, like {@code StringUtils.isBlank} on the tag value of the naming convention: spaces and
+     * line feeds are escaped, the other control characters are not.
+     */
+    private static boolean isBlank(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            final char c = s.charAt(i);
+            if (c > ' ' || c == ' ' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    public final class Batch {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32    crc      = new CRC32();
+        private byte[]         out;
+        private int            outLength;
+        private byte[]         plain;
+        private int            plainLength;
+        private long           plainTotal;
+        private boolean        gzip;
+        private int            lines;
+        private int            lineStart;
+
+        Batch(int initialBufferSize) {
+            this.out = new byte[initialBufferSize];
+            this.plain = new byte[FLUSH_THRESHOLD * 2];
+        }
+
+        /**
+         * @return The buffer holding the encoded batch in {@code [0, length())}, owned by the pool.
+         */
+        public byte[] array() {
+            return out;
+        }
+
+        public int length() {
+            return outLength;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(out, outLength);
+        }
+
+        public int lines() {
+            return lines;
+        }
+
+        /**
+         * @return Size of the batch before compression.
+         */
+        public long plainLength() {
+            return gzip ? plainTotal : outLength;
+        }
+
+        public boolean isGzip() {
+            return gzip;
+        }
+
+        void begin(boolean gzip) {
+            this.gzip = gzip;
+            this.outLength = 0;
+            this.plainLength = 0;
+            this.plainTotal = 0;
+            this.lines = 0;
+            if (gzip) {
+                deflater.reset();
+                crc.reset();
+                ensureOut(GZIP_HEADER.length);
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                outLength = GZIP_HEADER.length;
+            }
+        }
+
+        void end() {
+            if (!gzip) {
+                if (outLength > 0 && out[outLength - 1] == '\n') {
+                    outLength--;
+                }
+                return;
+            }
+            if (plainLength > 0 && plain[plainLength - 1] == '\n') {
+                plainLength--;
+            }
+            deflate();
+            deflater.finish();
+            while (!deflater.finished()) {
+                ensureOut(512);
+                outLength += deflater.deflate(out, outLength, out.length - outLength);
+            }
+            ensureOut(8);
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) plainTotal);
+        }
+
+        void write(Meter meter, long timestamp) {
+            if (meter instanceof TimeGauge) {
+                final double value = ((TimeGauge) meter).value(baseTimeUnit);
+                if (Double.isFinite(value)) {
+                    writeLine(meter.getId(), GAUGE, VALUE, value, null, 0, null, 0, null, 0, timestamp);
+                }
+            } else if (meter instanceof Gauge) {
+                final double value = ((Gauge) meter).value();
+                if (Double.isFinite(value)) {
+                    writeLine(meter.getId(), GAUGE, VALUE, value, null, 0, null, 0, null, 0, timestamp);
+                }
+            } else if (meter instanceof Counter) {
+                final double value = ((Counter) meter).count();
+                if (Double.isFinite(value)) {
+                    writeLine(meter.getId(), COUNTER, VALUE, value, null, 0, null, 0, null, 0, timestamp);
+                }
+            } else if (meter instanceof FunctionCounter) {
+                final double value = ((FunctionCounter) meter).count();
+                if (Double.isFinite(value)) {
+                    writeLine(meter.getId(), COUNTER, VALUE, value, null, 0, null, 0, null, 0, timestamp);
+                }
+            } else if (meter instanceof Timer) {
+                final Timer timer = (Timer) meter;
+                writeLine(meter.getId(), HISTOGRAM,
+                        SUM, timer.totalTime(baseTimeUnit),
+                        COUNT, timer.count(),
+                        MEAN, timer.mean(baseTimeUnit),
+                        UPPER, timer.max(baseTimeUnit), timestamp);
+            } else if (meter instanceof DistributionSummary) {
+                final DistributionSummary summary = (DistributionSummary) meter;
+                writeLine(meter.getId(), HISTOGRAM,
+                        SUM, summary.totalAmount(),
+                        COUNT, summary.count(),
+                        MEAN, summary.mean(),
+                        UPPER, summary.max(), timestamp);
+            } else if (meter instanceof FunctionTimer) {
+                final FunctionTimer timer = (FunctionTimer) meter;
+                final double sum = timer.totalTime(baseTimeUnit);
+                if (!Double.isFinite(sum)) {
+                    return;
+                }
+                final double mean = timer.mean(baseTimeUnit);
+                writeLine(meter.getId(), HISTOGRAM,
+                        SUM, sum,
+                        COUNT, timer.count(),
+                        Double.isFinite(mean) ? MEAN : null, mean,
+                        null, 0, timestamp);
+            } else if (meter instanceof LongTaskTimer) {
+                final LongTaskTimer timer = (LongTaskTimer) meter;
+                writeLine(meter.getId(), LONG_TASK_TIMER,
+                        ACTIVE_TASKS, timer.activeTasks(),
+                        DURATION, timer.duration(baseTimeUnit),
+                        null, 0, null, 0, timestamp);
+            } else {
+                writeSeries(meter.getId(), UNKNOWN);
+                boolean first = true;
+                for (Measurement measurement : meter.measure()) {
+                    final double value = measurement.getValue();
+                    if (!Double.isFinite(value)) {
+                        continue;
+                    }
+                    put(first ? (byte) ' ' : (byte) ',');
+                    put(STATISTICS[measurement.getStatistic().ordinal()]);
+                    put((byte) '=');
+                    putDouble(value);
+                    first = false;
+                }
+                if (first) {
+                    // nothing finite to write, drop the series key written above
+                    discardLine();
+                    return;
+                }
+                endLine(timestamp);
+            }
+        }
+
+        private void writeLine(Meter.Id id, byte[] type,
+                               byte[] k1, double v1, byte[] k2, double v2,
+                               byte[] k3, double v3, byte[] k4, double v4, long timestamp) {
+            writeSeries(id, type);
+            put((byte) ' ');
+            field(k1, v1, true);
+            if (k2 != null) {
+                field(k2, v2, false);
+            }
+            if (k3 != null) {
+                field(k3, v3, false);
+            }
+            if (k4 != null) {
+                field(k4, v4, false);
+            }
+            endLine(timestamp);
+        }
+
+        private void field(byte[] key, double value, boolean first) {
+            if (!first) {
+                put((byte) ',');
+            }
+            put(key);
+            put((byte) '=');
+            putDouble(Double.isFinite(value) ? value : 0);
+        }
+
+        private void writeSeries(Meter.Id id, byte[] type) {
+            markLine();
+            putName(id.getName(), NAME);
+            for (Tag tag : id.getTagsAsIterable()) {
+                if (TIME.equals(tag.getKey())) {
+                    throw new IllegalArgumentException("'time' is an invalid tag key in InfluxDB");
+                }
+                if (isBlank(tag.getValue())) {
+                    continue;
+                }
+                put((byte) ',');
+                putName(tag.getKey(), TAG_KEY);
+                put((byte) '=');
+                putEscaped(tag.getValue(), tag.getValue().length(), TAG_VALUE);
+            }
+            put(METRIC_TYPE);
+            put(type);
+        }
+
+        private void endLine(long timestamp) {
+            put((byte) ' ');
+            putLong(timestamp);
+            put((byte) '\n');
+            lines++;
+            if (gzip && plainLength >= FLUSH_THRESHOLD) {
+                deflate();
+            }
+        }
+
+        private void markLine() {
+            lineStart = gzip ? plainLength : outLength;
+        }
+
+        private void discardLine() {
+            if (gzip) {
+                plainLength = lineStart;
+            } else {
+                outLength = lineStart;
+            }
+        }
+
+        /**
+         * Snake case like {@code NamingConvention.snakeCase}, which splits on the dots and so drops the trailing
+         * ones, then escaped.
+         */
+        private void putName(String s, int kind) {
+            int end = s.length();
+            while (end > 0 && s.charAt(end - 1) == '.') {
+                end--;
+            }
+            putEscaped(s, end, kind);
+        }
+
+        /**
+         * Escapes line protocol special characters. Dots become underscores in names and tag keys, so do equal
+         * signs in names, and line feeds become spaces in tag values.
+         */
+        private void putEscaped(String s, int end, int kind) {
+            for (int i = 0; i < end; i++) {
+                char c = s.charAt(i);
+                if (kind == TAG_VALUE) {
+                    if (c == '\n') {
+                        c = ' ';
+                    }
+                } else if (c == '.' || (c == '=' && kind == NAME)) {
+                    c = '_';
+                }
+                if (c == ',' || c == '=' || c == ' ' || c == '"') {
+                    put((byte) '\\');
+                    put((byte) c);
+                } else if (c < 0x80) {
+                    put((byte) c);
+                } else if (c < 0x800) {
+                    put((byte) (0xc0 | (c >> 6)));
+                    put((byte) (0x80 | (c & 0x3f)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    put((byte) (0xf0 | (cp >> 18)));
+                    put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    put((byte) (0x80 | (cp & 0x3f)));
+                } else {
+                    put((byte) (0xe0 | (c >> 12)));
+                    put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        /**
+         * Up to six decimals rounded half even, like {@link DoubleFormat#decimalOrNan(double)}. Whole numbers are
+         * written as they are, the others scaled to a long when the scaling cannot move them across a rounding
+         * tie; the few left, ties or beyond the 17 digits a double prints, go through {@link DoubleFormat}.
+         */
+        private void putDouble(double value) {
+            final long whole = (long) value;
+            if (whole == value && whole > -MAX_WHOLE && whole < MAX_WHOLE
+                    && (whole != 0 || Double.doubleToRawLongBits(value) == 0)) {
+                putLong(whole);
+                return;
+            }
+            final double scaled = Math.abs(value) * POW10[MAX_DECIMALS];
+            if (!(scaled < MAX_SCALED)) {
+                putAscii(DoubleFormat.decimalOrNan(value));
+                return;
+            }
+            final long floor = (long) scaled;
+            final double rest = scaled - floor;
+            if (Math.abs(rest - 0.5) <= Math.ulp(scaled)) {
+                putAscii(DoubleFormat.decimalOrNan(value));
+                return;
+            }
+            final long rounded = rest > 0.5 ? floor + 1 : floor;
+            if (Double.doubleToRawLongBits(value) < 0) {
+                // negative zero too, written -0
+                put((byte) '-');
+            }
+            putLong(rounded / POW10[MAX_DECIMALS]);
+            long fraction = rounded % POW10[MAX_DECIMALS];
+            if (fraction == 0) {
+                return;
+            }
+            int decimals = MAX_DECIMALS;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                decimals--;
+            }
+            put((byte) '.');
+            for (int d = decimals - 1; d >= 0; d--) {
+                put((byte) ('0' + (fraction / POW10[d]) % 10));
+            }
+        }
+
+        private void putAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                put((byte) s.charAt(i));
+            }
+        }
+
+        private void putLong(long value) {
+            if (value < 0) {
+                put((byte) '-');
+                value = -value;
+            }
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            ensure(digits);
+            final byte[] target = gzip ? plain : out;
+            int end = (gzip ? plainLength : outLength) + digits;
+            for (int i = end - 1; i >= end - digits; i--) {
+                target[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            if (gzip) {
+                plainLength = end;
+            } else {
+                outLength = end;
+            }
+        }
+
+        private void put(byte[] b) {
+            ensure(b.length);
+            if (gzip) {
+                System.arraycopy(b, 0, plain, plainLength, b.length);
+                plainLength += b.length;
+            } else {
+                System.arraycopy(b, 0, out, outLength, b.length);
+                outLength += b.length;
+            }
+        }
+
+        private void put(byte b) {
+            ensure(1);
+            if (gzip) {
+                plain[plainLength++] = b;
+            } else {
+                out[outLength++] = b;
+            }
+        }
+
+        private void ensure(int n) {
+            if (gzip) {
+                if (plainLength + n > plain.length) {
+                    plain = Arrays.copyOf(plain, Math.max(plain.length * 2, plainLength + n));
+                }
+            } else {
+                ensureOut(n);
+            }
+        }
+
+        private void ensureOut(int n) {
+            if (outLength + n > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, outLength + n));
+            }
+        }
+
+        private void deflate() {
+            if (plainLength == 0) {
+                return;
+            }
+            crc.update(plain, 0, plainLength);
+            plainTotal += plainLength;
+            deflater.setInput(plain, 0, plainLength);
+            while (!deflater.needsInput()) {
+                ensureOut(512);
+                outLength += deflater.deflate(out, outLength, out.length - outLength);
+            }
+            plainLength = 0;
+        }
+
+        private void writeIntLE(int v) {
+            out[outLength++] = (byte) v;
+            out[outLength++] = (byte) (v >> 8);
+            out[outLength++] = (byte) (v >> 16);
+            out[outLength++] = (byte) (v >> 24);
+        }
+    }
+}
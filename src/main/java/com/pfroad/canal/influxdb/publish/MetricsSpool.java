@@ -0,0 +1,412 @@
+package com.pfroad.canal.influxdb.publish;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, append only spool of encoded batches, stored in memory mapped segment files.
+ * <p>
+ * A record is {@code [int length][byte flags][short urlLength][url][body]}, where {@code length} counts the
+ * bytes after itself. Replayed records are marked by negating their length in place, so a restarted spool
+ * resumes where the replayer stopped. A zero length marks the end of the written part of a segment, whatever a
+ * crash left behind it is zeroed when the spool is opened again. A record that does not read back is skipped.
+ * <p>
+ * When the cap is reached the oldest segment is evicted with whatever it still holds.
+ */
+public class MetricsSpool implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsSpool.class);
+
+    private static final String SUFFIX        = ".spool";
+    private static final int    LENGTH_BYTES  = 4;
+    private static final int    HEADER_BYTES  = 1 + 2;
+    public static final byte    FLAG_GZIP     = 1;
+
+    private final File           directory;
+    private final int            segmentBytes;
+    private final int            maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long                 nextSegmentId;
+    private long                 pendingRecords;
+    private long                 pendingBytes;
+    private boolean              closed;
+
+    private final AtomicLong appendedRecords = new AtomicLong(0L);
+    private final AtomicLong replayedRecords = new AtomicLong(0L);
+    private final AtomicLong evictedRecords  = new AtomicLong(0L);
+    private final AtomicLong droppedRecords  = new AtomicLong(0L);
+
+    public MetricsSpool(File directory, long maxBytes, int segmentBytes) throws IOException {
+        if (segmentBytes <= LENGTH_BYTES + HEADER_BYTES) {
+            throw new IllegalArgumentException("Spool segment size too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        recover();
+    }
+
+    /**
+     * Appends a batch, never waits on anything but the copy into the current segment.
+     *
+     * @return {@code false} if the batch is larger than a segment and was dropped.
+     */
+    public synchronized boolean append(String url, byte[] body, byte flags) {
+        final byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        final int length = HEADER_BYTES + urlBytes.length + body.length;
+        if (closed || urlBytes.length > Short.MAX_VALUE || LENGTH_BYTES + length > segmentBytes) {
+            droppedRecords.incrementAndGet();
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePos + LENGTH_BYTES + length > segmentBytes) {
+            try {
+                tail = roll();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to roll spool segment, batch dropped.", e);
+                droppedRecords.incrementAndGet();
+                return false;
+            }
+        }
+
+        final MappedByteBuffer buf = tail.buffer;
+        final int start = tail.writePos;
+        buf.position(start + LENGTH_BYTES);
+        buf.put(flags);
+        buf.putShort((short) urlBytes.length);
+        buf.put(urlBytes);
+        buf.put(body);
+        // publish the length last, a torn record then reads as the end of the segment
+        buf.putInt(start, length);
+        tail.writePos = start + LENGTH_BYTES + length;
+        tail.pending++;
+        tail.pendingBytes += LENGTH_BYTES + length;
+        pendingRecords++;
+        pendingBytes += LENGTH_BYTES + length;
+        appendedRecords.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return The oldest batch not replayed yet, or {@code null} if there is none.
+     */
+    public synchronized Record peek() {
+        if (closed) {
+            return null;
+        }
+        Segment head;
+        while ((head = segments.peekFirst()) != null) {
+            skipConsumed(head);
+            final int length = head.lengthAt(head.readPos);
+            if (length > 0) {
+                final Record record = read(head, length);
+                if (record != null) {
+                    return record;
+                }
+                skipHead();
+                continue;
+            }
+            if (head == segments.peekLast()) {
+                return null;
+            }
+            segments.pollFirst();
+            delete(head);
+        }
+        return null;
+    }
+
+    /**
+     * @return The record at the read position of the segment, {@code null} if its fields do not fit its length.
+     */
+    private Record read(Segment head, int length) {
+        final int offset = head.readPos;
+        if (length < HEADER_BYTES || offset + LENGTH_BYTES + length > segmentBytes) {
+            return null;
+        }
+        final MappedByteBuffer buf = head.buffer;
+        buf.position(offset + LENGTH_BYTES);
+        final byte flags = buf.get();
+        final int urlLength = buf.getShort();
+        final int bodyLength = length - HEADER_BYTES - urlLength;
+        if (urlLength < 0 || bodyLength < 0) {
+            return null;
+        }
+        final byte[] urlBytes = new byte[urlLength];
+        buf.get(urlBytes);
+        final byte[] body = new byte[bodyLength];
+        buf.get(body);
+        return new Record(head, offset, length, new String(urlBytes, StandardCharsets.UTF_8), body, flags);
+    }
+
+    /**
+     * Drops the oldest record not replayed yet, for a record that cannot be read or replayed. When its length
+     * cannot be trusted to find the next one, the rest of its segment goes with it.
+     */
+    public synchronized void skipHead() {
+        final Segment head = segments.peekFirst();
+        if (closed || head == null) {
+            return;
+        }
+        skipConsumed(head);
+        final int length = head.lengthAt(head.readPos);
+        if (length == 0) {
+            return;
+        }
+        if (length >= HEADER_BYTES && head.readPos + LENGTH_BYTES + length <= segmentBytes) {
+            LOGGER.warn("Skipping unreadable spooled batch at {} of segment {}.", head.readPos, head.file.getName());
+            head.buffer.putInt(head.readPos, -length);
+            head.pending--;
+            head.pendingBytes -= LENGTH_BYTES + length;
+            pendingRecords--;
+            pendingBytes -= LENGTH_BYTES + length;
+            droppedRecords.incrementAndGet();
+            skipConsumed(head);
+            return;
+        }
+        LOGGER.warn("Dropping {} spooled batches of segment {}, corrupted at {}.", head.pending, head.file.getName(),
+                head.readPos);
+        segments.pollFirst();
+        droppedRecords.addAndGet(head.pending);
+        pendingRecords -= head.pending;
+        pendingBytes -= head.pendingBytes;
+        delete(head);
+    }
+
+    /**
+     * Marks a record returned by {@link #peek()} as replayed.
+     */
+    public synchronized void commit(Record record) {
+        final Segment segment = record.segment;
+        if (segment.deleted || segment.lengthAt(record.offset) != record.length) {
+            return;
+        }
+        segment.buffer.putInt(record.offset, -record.length);
+        segment.pending--;
+        segment.pendingBytes -= LENGTH_BYTES + record.length;
+        pendingRecords--;
+        pendingBytes -= LENGTH_BYTES + record.length;
+        replayedRecords.incrementAndGet();
+        skipConsumed(segment);
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public AtomicLong getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public AtomicLong getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    public AtomicLong getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    public AtomicLong getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Segment segment : segments) {
+            segment.deleted = true;
+            segment.buffer.force();
+            unmap(segment.buffer);
+        }
+        segments.clear();
+    }
+
+    private void skipConsumed(Segment segment) {
+        int length;
+        while ((length = segment.lengthAt(segment.readPos)) < 0) {
+            segment.readPos += LENGTH_BYTES - length;
+        }
+    }
+
+    private Segment roll() throws IOException {
+        final Segment segment = open(nextSegmentId++);
+        segments.addLast(segment);
+        while (segments.size() > maxSegments) {
+            final Segment evicted = segments.pollFirst();
+            if (evicted.pending > 0) {
+                LOGGER.warn("Spool full, evicting {} batches of segment {}.", evicted.pending, evicted.file.getName());
+                evictedRecords.addAndGet(evicted.pending);
+                pendingRecords -= evicted.pending;
+                pendingBytes -= evicted.pendingBytes;
+            }
+            delete(evicted);
+        }
+        return segment;
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            final long id;
+            try {
+                id = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            final Segment segment = open(id);
+            int pos = 0;
+            int length;
+            while ((length = segment.lengthAt(pos)) != 0) {
+                final int size = Math.abs(length);
+                if (size < HEADER_BYTES || pos + LENGTH_BYTES + size > segmentBytes) {
+                    LOGGER.warn("Truncating corrupted spool segment {} at {}.", file.getName(), pos);
+                    break;
+                }
+                if (length > 0) {
+                    segment.pending++;
+                    segment.pendingBytes += LENGTH_BYTES + size;
+                    pendingRecords++;
+                    pendingBytes += LENGTH_BYTES + size;
+                }
+                pos += LENGTH_BYTES + size;
+            }
+            // a torn record or a corrupted length leaves bytes a shorter record appended here would not overwrite
+            truncate(segment, pos);
+            segment.writePos = pos;
+            skipConsumed(segment);
+            segments.addLast(segment);
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+        if (pendingRecords > 0) {
+            LOGGER.info("Recovered {} spooled batches from {}.", pendingRecords, directory);
+        }
+    }
+
+    /**
+     * Zeroes the segment from the position on, if anything was written there.
+     */
+    private void truncate(Segment segment, int pos) {
+        final MappedByteBuffer buf = segment.buffer;
+        int dirty = pos;
+        while (dirty < segmentBytes && buf.get(dirty) == 0) {
+            dirty++;
+        }
+        if (dirty == segmentBytes) {
+            return;
+        }
+        final byte[] zeros = new byte[Math.min(64 * 1024, segmentBytes - pos)];
+        buf.position(pos);
+        while (buf.hasRemaining()) {
+            buf.put(zeros, 0, Math.min(zeros.length, buf.remaining()));
+        }
+    }
+
+    private Segment open(long id) throws IOException {
+        final File file = new File(directory, String.format("%016d%s", id, SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            return new Segment(file, buffer);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segment.deleted = true;
+        unmap(segment.buffer);
+        if (!segment.file.delete()) {
+            LOGGER.warn("Unable to delete spool segment {}.", segment.file);
+        }
+    }
+
+    /**
+     * Releases the mapping eagerly where the JDK allows it, the file cannot be deleted on some platforms
+     * while it is mapped.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            final Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            final Object c = cleaner.invoke(buffer);
+            if (c != null) {
+                c.getClass().getMethod("clean").invoke(c);
+            }
+        } catch (Throwable e) {
+            // left to the garbage collector
+        }
+    }
+
+    private final class Segment {
+        private final File             file;
+        private final MappedByteBuffer buffer;
+        private int                    writePos;
+        private int                    readPos;
+        private int                    pending;
+        private long                   pendingBytes;
+        private boolean                deleted;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        int lengthAt(int pos) {
+            return pos + LENGTH_BYTES > segmentBytes ? 0 : buffer.getInt(pos);
+        }
+    }
+
+    public static final class Record {
+        private final Segment segment;
+        private final int     offset;
+        private final int     length;
+        private final String  url;
+        private final byte[]  body;
+        private final byte    flags;
+
+        Record(Segment segment, int offset, int length, String url, byte[] body, byte flags) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.url = url;
+            this.body = body;
+            this.flags = flags;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public boolean isGzip() {
+            return (flags & FLAG_GZIP) != 0;
+        }
+    }
+}
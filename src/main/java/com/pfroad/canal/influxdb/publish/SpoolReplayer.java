@@ -0,0 +1,114 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.instrument.util.NamedThreadFactory;
+import io.micrometer.core.ipc.http.HttpSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers what {@link SpoolingHttpSender} appended to a {@link MetricsSpool}, oldest first, at most {@code rate}
+ * batches per second, backing off exponentially while the endpoint keeps failing. A batch influx rejects for
+ * good, with a 4xx other than 429, is discarded.
+ */
+public class SpoolReplayer implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolReplayer.class);
+
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000L;
+
+    private final MetricsSpool spool;
+    private final HttpSender   sender;
+    private final String       userName;
+    private final String       password;
+    private final long         intervalMillis;
+    private long               backoffMillis;
+    private long               nextAttempt;
+    private ScheduledExecutorService scheduler;
+
+    public SpoolReplayer(MetricsSpool spool, HttpSender sender, String userName, String password, int rate) {
+        this.spool = spool;
+        this.sender = sender;
+        this.userName = userName;
+        this.password = password;
+        this.intervalMillis = Math.max(1L, 1000L / Math.max(1, rate));
+    }
+
+    public synchronized void start() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("influx-spool-replayer"));
+            scheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        // anything escaping would cancel the schedule for good
+        try {
+            replay();
+        } catch (Throwable e) {
+            LOGGER.warn("Replaying spooled batches failed.", e);
+        }
+    }
+
+    private void replay() {
+        final long now = System.currentTimeMillis();
+        if (now < nextAttempt) {
+            return;
+        }
+        final MetricsSpool.Record record;
+        final HttpSender.Request.Builder request;
+        try {
+            record = spool.peek();
+            if (record == null) {
+                return;
+            }
+            request = request(record);
+        } catch (Throwable e) {
+            // no retry would read it any better, it must not hold back what follows
+            LOGGER.warn("Skipping spooled batch that cannot be read.", e);
+            spool.skipHead();
+            return;
+        }
+
+        try {
+            final HttpSender.Response response = request.send();
+            if (response.isSuccessful() || !SpoolingHttpSender.isRetryable(response.code())) {
+                if (!response.isSuccessful()) {
+                    LOGGER.warn("Discarding spooled batch rejected by influx: {}", response.body());
+                }
+                spool.commit(record);
+                backoffMillis = 0;
+                return;
+            }
+            backOff(now, response.body());
+        } catch (Throwable e) {
+            backOff(now, String.valueOf(e));
+        }
+    }
+
+    private HttpSender.Request.Builder request(MetricsSpool.Record record) {
+        final HttpSender.Request.Builder request = sender.post(record.getUrl())
+                .withBasicAuthentication(userName, password)
+                .withContent("text/plain; charset=utf-8", record.getBody());
+        if (record.isGzip()) {
+            request.withHeader("Content-Encoding", "gzip");
+        }
+        return request;
+    }
+
+    private void backOff(long now, String cause) {
+        backoffMillis = backoffMillis == 0 ? intervalMillis : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        nextAttempt = now + backoffMillis;
+        LOGGER.debug("Replaying spooled batch failed, retrying in {}ms: {}", backoffMillis, cause);
+    }
+}
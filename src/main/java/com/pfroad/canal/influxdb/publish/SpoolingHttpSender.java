@@ -0,0 +1,60 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.ipc.http.HttpSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link HttpSender} that appends every write batch, and the creation of the database, to a {@link MetricsSpool}
+ * and leaves their delivery to the {@link SpoolReplayer}, in the order they were appended.
+ * <p>
+ * The publishing thread never sends to influx and never waits on it, however slow or down it is: a write costs
+ * the copy into the mapped segment, and when a segment is full, creating and mapping the next one and deleting the
+ * oldest beyond the cap, all on the local disk. Its response is always {@link #SPOOLED}, or 503 for a batch larger
+ * than a segment, which is dropped. Whether a batch reached influx is only known to the replayer. Requests other
+ * than the writes and the queries are sent by the delegate on the calling thread.
+ */
+public class SpoolingHttpSender implements HttpSender {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolingHttpSender.class);
+
+    /**
+     * Status of the responses to the batches taken by the spool.
+     */
+    public static final int SPOOLED = 202;
+
+    private static final String WRITE_PATH       = "/write";
+    private static final String QUERY_PATH       = "/query";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final HttpSender   delegate;
+    private final MetricsSpool spool;
+
+    public SpoolingHttpSender(HttpSender delegate, MetricsSpool spool) {
+        this.delegate = delegate;
+        this.spool = spool;
+    }
+
+    @Override
+    public Response send(Request request) throws Throwable {
+        final String path = request.getUrl().getPath();
+        if (request.getMethod() != Method.POST || !(path.endsWith(WRITE_PATH) || path.endsWith(QUERY_PATH))) {
+            return delegate.send(request);
+        }
+        // the database is created before the writes behind it are replayed
+        return spool(request, "batch spooled behind " + spool.getPendingRecords() + " others");
+    }
+
+    static boolean isRetryable(int code) {
+        return code >= 500 || code == 429;
+    }
+
+    private Response spool(Request request, String cause) {
+        final String encoding = request.getRequestHeaders().get(CONTENT_ENCODING);
+        final byte flags = "gzip".equalsIgnoreCase(encoding) ? MetricsSpool.FLAG_GZIP : 0;
+        if (spool.append(request.getUrl().toString(), request.getEntity(), flags)) {
+            LOGGER.debug("Spooled batch of {} bytes: {}", request.getEntity().length, cause);
+            return new Response(SPOOLED, "spooled: " + cause);
+        }
+        return new Response(503, "dropped, batch does not fit the spool: " + cause);
+    }
+}
@@ -0,0 +1,122 @@
+package com.pfroad.canal.influxdb.scrape;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.core.instrument.Tag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes meters in the Prometheus text exposition format.
+ * <p>
+ * The meters are those of the step registry, so every value is the one of the last completed step, the same
+ * that is pushed to influx. Everything is therefore exposed as a gauge: counters are counts per step, timers
+ * and summaries give {@code _count}, {@code _sum} and {@code _max} per step.
+ */
+public final class PrometheusTextWriter {
+
+    private PrometheusTextWriter() {
+    }
+
+    public static String write(List<Meter> meters) {
+        // samples of one metric have to be contiguous
+        final Map<String, List<String>> metrics = new TreeMap<>();
+        final StringBuilder sample = new StringBuilder(128);
+        for (Meter meter : meters) {
+            final String base = sanitize(meter.getId().getName());
+            final String labels = labels(meter, sample);
+            for (Measurement measurement : meter.measure()) {
+                final double value = measurement.getValue();
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                final String name = base + suffix(meter.getId().getType(), measurement.getStatistic());
+                sample.setLength(0);
+                sample.append(name).append(labels).append(' ').append(format(value));
+                metrics.computeIfAbsent(name, (n) -> new ArrayList<>()).add(sample.toString());
+            }
+        }
+
+        final StringBuilder out = new StringBuilder(metrics.size() * 128);
+        for (Map.Entry<String, List<String>> metric : metrics.entrySet()) {
+            out.append("# TYPE ").append(metric.getKey()).append(" gauge\n");
+            for (String s : metric.getValue()) {
+                out.append(s).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String suffix(Meter.Type type, Statistic statistic) {
+        switch (statistic) {
+            case VALUE:
+                return "";
+            case COUNT:
+                return type == Meter.Type.COUNTER ? "" : "_count";
+            case TOTAL:
+            case TOTAL_TIME:
+                return "_sum";
+            case MAX:
+                return "_max";
+            default:
+                return "_" + statistic.name().toLowerCase();
+        }
+    }
+
+    private static String labels(Meter meter, StringBuilder sb) {
+        sb.setLength(0);
+        for (Tag tag : meter.getId().getTagsAsIterable()) {
+            sb.append(sb.length() == 0 ? '{' : ',').append(sanitize(tag.getKey())).append("=\"");
+            final String value = tag.getValue();
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        if (sb.length() > 0) {
+            sb.append('}');
+        }
+        return sb.toString();
+    }
+
+    private static String sanitize(String name) {
+        final StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+                    || (i > 0 && c >= '0' && c <= '9');
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,262 @@
+package com.pfroad.canal.influxdb.scrape;
+
+import com.pfroad.canal.influxdb.publish.LineProtocolEncoder;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP endpoint serving the meters of the registry, {@code /metrics} in the Prometheus text format and
+ * {@code /influx} in influx line protocol.
+ * <p>
+ * A single selector thread of its own accepts, reads and writes every connection, so scrapers never run on
+ * canal's Netty threads. Both bodies are rendered together at most once per interval, on the first request
+ * after the previous snapshot expired, and are served as is to every scraper until the next one.
+ * Connections are closed after one response.
+ */
+public class ScrapeServer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScrapeServer.class);
+
+    private static final int  MAX_REQUEST_BYTES = 8 * 1024;
+    private static final long IDLE_TIMEOUT      = TimeUnit.SECONDS.toMillis(10);
+
+    private final MeterRegistry       registry;
+    private final long                intervalMillis;
+    private final LineProtocolEncoder encoder;
+    private final ServerSocketChannel server;
+    private final Selector            selector;
+    private final Thread              thread;
+    private volatile boolean          running = true;
+
+    private long   snapshotTime;
+    private byte[] prometheus;
+    private byte[] influx;
+
+    public ScrapeServer(MeterRegistry registry, int port, long intervalMillis) throws IOException {
+        this.registry = registry;
+        this.intervalMillis = intervalMillis;
+        this.encoder = new LineProtocolEncoder(TimeUnit.MILLISECONDS, 64 * 1024);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.bind(new InetSocketAddress(port));
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "influx-metrics-scrape");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        LOGGER.info("serving metrics on port {}", server.socket().getLocalPort());
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(1000);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.debug("scrape connection failed", e);
+                        closeQuietly(key);
+                    }
+                }
+                closeIdle();
+            }
+        } catch (Throwable e) {
+            LOGGER.error("scrape endpoint stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(connection.request) < 0) {
+            closeQuietly(key);
+            return;
+        }
+        final ByteBuffer request = connection.request;
+        final int end = headerEnd(request);
+        if (end < 0) {
+            if (!request.hasRemaining()) {
+                respond(key, connection, "431 Request Header Fields Too Large", "text/plain", new byte[0]);
+            }
+            return;
+        }
+
+        final String line = requestLine(request);
+        final String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            respond(key, connection, "400 Bad Request", "text/plain", new byte[0]);
+            return;
+        }
+        if (!"GET".equals(parts[0])) {
+            respond(key, connection, "405 Method Not Allowed", "text/plain", new byte[0]);
+            return;
+        }
+        final int query = parts[1].indexOf('?');
+        final String path = query < 0 ? parts[1] : parts[1].substring(0, query);
+        switch (path) {
+            case "/metrics":
+                snapshot();
+                respond(key, connection, "200 OK", "text/plain; version=0.0.4; charset=utf-8", prometheus);
+                break;
+            case "/influx":
+                snapshot();
+                respond(key, connection, "200 OK", "text/plain; charset=utf-8", influx);
+                break;
+            default:
+                respond(key, connection, "404 Not Found", "text/plain", new byte[0]);
+                break;
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+        channel.write(connection.response);
+        if (!connection.response[1].hasRemaining()) {
+            closeQuietly(key);
+        }
+    }
+
+    private void respond(SelectionKey key, Connection connection, String status, String contentType, byte[] body)
+            throws IOException {
+        final String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        connection.response = new ByteBuffer[] {
+                ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(body)
+        };
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    /**
+     * Renders both formats when the last snapshot is older than the interval.
+     */
+    private void snapshot() {
+        final long now = System.currentTimeMillis();
+        if (prometheus != null && now - snapshotTime < intervalMillis) {
+            return;
+        }
+        final List<Meter> meters = registry.getMeters();
+        prometheus = PrometheusTextWriter.write(meters).getBytes(StandardCharsets.UTF_8);
+        final LineProtocolEncoder.Batch batch = encoder.encode(meters, now, false);
+        try {
+            influx = batch.toByteArray();
+        } finally {
+            encoder.release(batch);
+        }
+        snapshotTime = now;
+    }
+
+    private void closeIdle() {
+        final long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof Connection && now - ((Connection) attachment).opened > IDLE_TIMEOUT) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private static int headerEnd(ByteBuffer request) {
+        for (int i = 3; i < request.position(); i++) {
+            if (request.get(i - 3) == '\r' && request.get(i - 2) == '\n' && request.get(i - 1) == '\r'
+                    && request.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String requestLine(ByteBuffer request) {
+        int end = 0;
+        while (end < request.position() && request.get(end) != '\r') {
+            end++;
+        }
+        final byte[] line = new byte[end];
+        for (int i = 0; i < end; i++) {
+            line[i] = request.get(i);
+        }
+        return new String(line, StandardCharsets.US_ASCII);
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // nothing left to do
+        }
+    }
+
+    private static final class Connection {
+        private final long       opened  = System.currentTimeMillis();
+        private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        private ByteBuffer[]     response;
+    }
+}
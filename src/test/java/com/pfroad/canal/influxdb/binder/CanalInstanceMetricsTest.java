@@ -0,0 +1,187 @@
+package com.pfroad.canal.influxdb.binder;
+
+import com.alibaba.otter.canal.instance.core.CanalInstance;
+import com.alibaba.otter.canal.protocol.CanalPacket;
+import com.alibaba.otter.canal.server.netty.listener.ClientRequestResults;
+import com.alibaba.otter.canal.sink.CanalEventDownStreamHandler;
+import com.alibaba.otter.canal.sink.entry.EntryEventSink;
+import com.google.protobuf.GeneratedMessageV3;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Starts and stops many instances against one registry, nothing of a stopped instance may stay behind.
+ */
+public class CanalInstanceMetricsTest {
+    private static final int INSTANCES = 20;
+    private static final int ROUNDS    = 3;
+
+    private MeterRegistry                registry;
+    private InfluxClientInstanceProfiler profiler;
+    private CachedGauges                 cachedGauges;
+    private final Random                 random = new Random(42);
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        profiler = new InfluxClientInstanceProfiler(registry, new AdaptiveSampler(0L), BenchmarkInstances.CONFIG);
+        profiler.start();
+        cachedGauges = new CachedGauges(30000L, 0.1, 2, 10000L);
+    }
+
+    @After
+    public void tearDown() {
+        cachedGauges.close();
+    }
+
+    @Test
+    public void unbindRemovesEveryMeterAndTheHandler() {
+        for (int round = 0; round < ROUNDS; round++) {
+            final List<CanalInstance> instances = new ArrayList<>();
+            final List<CanalInstanceMetrics> bound = new ArrayList<>();
+            for (int i = 0; i < INSTANCES; i++) {
+                final CanalInstance instance = BenchmarkInstances.of("destination-" + i);
+                final CanalInstanceMetrics metrics = new CanalInstanceMetrics(instance, profiler,
+                        BenchmarkInstances.CONFIG, cachedGauges);
+                metrics.bindTo(registry);
+                instances.add(instance);
+                bound.add(metrics);
+                traffic(instance);
+            }
+            readAll();
+
+            // stop every other instance, the others keep their meters
+            final Set<String> stopped = new HashSet<>();
+            for (int i = 0; i < INSTANCES; i += 2) {
+                bound.get(i).unbind();
+                stopped.add(instances.get(i).getDestination());
+            }
+            readAll();
+            for (int i = 0; i < INSTANCES; i++) {
+                final CanalInstance instance = instances.get(i);
+                final boolean isStopped = stopped.contains(instance.getDestination());
+                assertEquals(instance.getDestination(), !isStopped, hasHandler(instance));
+                assertEquals(instance.getDestination(), !isStopped, !meters(instance.getDestination()).isEmpty());
+            }
+
+            for (int i = 1; i < INSTANCES; i += 2) {
+                bound.get(i).unbind();
+            }
+            readAll();
+            for (CanalInstance instance : instances) {
+                assertFalse(instance.getDestination(), hasHandler(instance));
+                assertEquals(instance.getDestination(), new ArrayList<Meter>(), meters(instance.getDestination()));
+            }
+        }
+        for (Meter meter : registry.getMeters()) {
+            assertEquals(meter.getId().toString(), null, meter.getId().getTag(CanalInstanceMetrics.DESTINATION));
+        }
+    }
+
+    @Test
+    public void rebindingADestinationKeepsOneHandler() {
+        final CanalInstance instance = BenchmarkInstances.of("destination-0");
+        for (int round = 0; round < ROUNDS; round++) {
+            final CanalInstanceMetrics metrics = new CanalInstanceMetrics(instance, profiler,
+                    BenchmarkInstances.CONFIG, cachedGauges);
+            metrics.bindTo(registry);
+            traffic(instance);
+            readAll();
+            assertTrue(hasHandler(instance));
+            metrics.unbind();
+            assertFalse(hasHandler(instance));
+            assertTrue(meters(instance.getDestination()).isEmpty());
+        }
+    }
+
+    @Test
+    public void bindingABoundInstanceRegistersNothing() {
+        final CanalInstance instance = BenchmarkInstances.of("destination-0");
+        final CanalInstanceMetrics metrics = new CanalInstanceMetrics(instance, profiler,
+                BenchmarkInstances.CONFIG, cachedGauges);
+        metrics.bindTo(registry);
+        final int bound = registry.getMeters().size();
+
+        final MeterRegistry other = new SimpleMeterRegistry();
+        final InfluxClientInstanceProfiler otherProfiler = new InfluxClientInstanceProfiler(other,
+                new AdaptiveSampler(0L), BenchmarkInstances.CONFIG);
+        final List<Meter> profilerMeters = new ArrayList<>(other.getMeters());
+        try {
+            new CanalInstanceMetrics(instance, otherProfiler, BenchmarkInstances.CONFIG, cachedGauges).bindTo(other);
+            fail("bound twice");
+        } catch (IllegalStateException expected) {
+            // the handler of the first binding stays
+        }
+        assertEquals(profilerMeters, other.getMeters());
+        assertEquals(bound, registry.getMeters().size());
+        assertTrue(hasHandler(instance));
+
+        metrics.unbind();
+        assertTrue(meters(instance.getDestination()).isEmpty());
+    }
+
+    /**
+     * Sinks a few batches and sends a few client requests, so that the meters created on first use exist too.
+     */
+    private void traffic(CanalInstance instance) {
+        for (int b = 0; b < 3; b++) {
+            BenchmarkInstances.sink(instance, 64, random);
+        }
+        final String destination = instance.getDestination();
+        final GeneratedMessageV3 get = CanalPacket.Get.newBuilder()
+                .setDestination(destination).setClientId("1001").setFetchSize(100).build();
+        final GeneratedMessageV3 ack = CanalPacket.ClientAck.newBuilder()
+                .setDestination(destination).setClientId("1001").build();
+        profiler.profiling(ClientRequestResults.of(destination, CanalPacket.PacketType.GET, 4096, 1000000L,
+                (short) 0, false, get));
+        profiler.profiling(ClientRequestResults.of(destination, CanalPacket.PacketType.GET, 16, 1000000L,
+                (short) 0, true, get));
+        profiler.profiling(ClientRequestResults.of(destination, CanalPacket.PacketType.CLIENTACK, 16, 100000L,
+                (short) 0, false, ack));
+        profiler.profiling(ClientRequestResults.of(destination, CanalPacket.PacketType.GET, 16, 100000L,
+                (short) 401, false, get));
+    }
+
+    private void readAll() {
+        for (Meter meter : registry.getMeters()) {
+            for (Measurement measurement : meter.measure()) {
+                measurement.getValue();
+            }
+        }
+    }
+
+    private List<Meter> meters(String destination) {
+        final List<Meter> meters = new ArrayList<>();
+        for (Meter meter : registry.getMeters()) {
+            if (destination.equals(meter.getId().getTag(CanalInstanceMetrics.DESTINATION))) {
+                meters.add(meter);
+            }
+        }
+        return meters;
+    }
+
+    private static boolean hasHandler(CanalInstance instance) {
+        for (CanalEventDownStreamHandler handler : ((EntryEventSink) instance.getEventSink()).getHandlers()) {
+            if (handler instanceof InfluxCanalEventDownStreamHandler) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
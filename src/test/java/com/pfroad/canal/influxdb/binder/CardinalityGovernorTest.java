@@ -0,0 +1,96 @@
+package com.pfroad.canal.influxdb.binder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CardinalityGovernorTest {
+    private static final String CLIENTS = "canal.test.clients";
+
+    private final MeterRegistry       registry = new SimpleMeterRegistry();
+    private final CardinalityGovernor governor = new CardinalityGovernor(registry, 1000L);
+
+    private CardinalityGovernor.Guard<Counter> guard(int limit) {
+        return governor.guard("clientId", limit,
+                (id) -> Counter.builder(CLIENTS).tag("clientId", id).register(registry), registry::remove);
+    }
+
+    private Counter meter(String clientId) {
+        return registry.find(CLIENTS).tag("clientId", clientId).counter();
+    }
+
+    private double size() {
+        return registry.get("canal.metrics.cardinality.size").tag("tag", "clientId").gauge().value();
+    }
+
+    @Test
+    public void readingTheSizeEvictsNothing() throws InterruptedException {
+        final CardinalityGovernor quick = new CardinalityGovernor(registry, 1L);
+        final CardinalityGovernor.Guard<Counter> clients = quick.guard("clientId", 10,
+                (id) -> Counter.builder(CLIENTS).tag("clientId", id).register(registry), registry::remove);
+        clients.get("a").increment();
+        quick.sweep(System.currentTimeMillis());
+        Thread.sleep(10L);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1d, size(), 0d);
+        }
+        assertNotNull(meter("a"));
+        assertEquals(1, quick.sweep(System.currentTimeMillis()));
+        assertNull(meter("a"));
+        assertEquals(0d, size(), 0d);
+    }
+
+    @Test
+    public void sweepEvictsWhatWasNotUsedSinceTheSweepBefore() {
+        final CardinalityGovernor.Guard<Counter> clients = guard(10);
+        clients.get("idle").increment();
+        clients.get("busy").increment();
+        final long now = System.currentTimeMillis();
+        assertEquals(0, governor.sweep(now));
+
+        clients.get("busy").increment();
+        // used since the sweep before, or not idle long enough
+        assertEquals(0, governor.sweep(now + 500L));
+        clients.get("busy").increment();
+        assertEquals(1, governor.sweep(now + 1500L));
+        assertNull(meter("idle"));
+        assertNotNull(meter("busy"));
+        assertEquals(1d, registry.get("canal.metrics.cardinality.evictions").counter().count(), 0d);
+        assertEquals(1d, size(), 0d);
+    }
+
+    @Test
+    public void pinnedValuesAndClearedGuardsAreLeftAlone() {
+        final CardinalityGovernor.Guard<Counter> clients = guard(1);
+        final CardinalityGovernor.Guard<Counter> others = guard(1);
+        clients.pin("pinned");
+        clients.get("pinned").increment();
+        others.get("gone").increment();
+        others.clear();
+        final long now = System.currentTimeMillis();
+        governor.sweep(now);
+        assertEquals(0, governor.sweep(now + 5000L));
+        assertNotNull(meter("pinned"));
+        assertNull(meter("gone"));
+    }
+
+    @Test
+    public void fullGuardSharesTheOtherMeters() {
+        final CardinalityGovernor.Guard<Counter> clients = guard(1);
+        final Counter first = clients.get("first");
+        final Counter other = clients.get("second");
+        assertSame(other, clients.get("third"));
+        assertEquals(first, meter("first"));
+        assertEquals(other, meter(CardinalityGovernor.OTHER));
+        assertEquals(2d, registry.get("canal.metrics.cardinality.overflows").counter().count(), 0d);
+        final Gauge size = registry.get("canal.metrics.cardinality.size").gauge();
+        assertEquals(2d, size.value(), 0d);
+    }
+}
@@ -0,0 +1,351 @@
+package com.pfroad.canal.influxdb.publish;
+
+import io.micrometer.core.ipc.http.HttpSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The response parser of {@link AsyncHttpSender} against a server writing scripted bytes, split to arrive over
+ * several reads.
+ */
+public class AsyncHttpSenderTest {
+    private ScriptedServer server;
+    private AsyncHttpSender sender;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ScriptedServer();
+        sender = new AsyncHttpSender(1000L, 2000L, 4, 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        server.close();
+    }
+
+    @Test
+    public void contentLengthBody() throws Throwable {
+        server.reply(false, "HTTP/1.1 200 OK\r\nContent-Le", "ngth: 5\r\nX-Other: a:b\r\n\r\nhel", "lo");
+        final HttpSender.Response response = sender.send(request("/write", "line 1"));
+        assertEquals(200, response.code());
+        assertEquals("hello", response.body());
+        assertEquals(Collections.singletonList("POST /write line 1"), server.requests);
+    }
+
+    @Test
+    public void bodyRangeOfAPooledBuffer() throws Throwable {
+        server.reply(false, "HTTP/1.1 204 No Content\r\n\r\n");
+        final byte[] pooled = "line 1 left over".getBytes(StandardCharsets.UTF_8);
+        final CompletableFuture<HttpSender.Response> future = sender.sendAsync(request("/write", ""), pooled, 6);
+        // copied already, the buffer can be reused
+        Arrays.fill(pooled, (byte) 'x');
+        assertEquals(204, future.get(5, TimeUnit.SECONDS).code());
+        assertEquals(Collections.singletonList("POST /write line 1"), server.requests);
+    }
+
+    @Test
+    public void chunkedBody() throws Throwable {
+        server.reply(false, "HTTP/1.1 400 Bad Request\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r",
+                "\nhel", "lo\r\n6\r\n world\r\n0\r\nX-Trailer: t\r\n", "\r\n");
+        server.reply(false, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+        final HttpSender.Response response = sender.send(request("/write", "bad"));
+        assertEquals(400, response.code());
+        assertEquals("hello world", response.body());
+        // the trailer was consumed, the next response parses on the same connection
+        assertEquals("ok", sender.send(request("/write", "good")).body());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void interimResponseAndNoContent() throws Throwable {
+        server.reply(false, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 204 No Content\r\n", "\r\n");
+        final HttpSender.Response response = sender.send(request("/write", "line"));
+        assertEquals(204, response.code());
+        assertEquals(HttpSender.Response.NO_RESPONSE_BODY, response.body());
+    }
+
+    @Test
+    public void closeDelimitedBody() throws Throwable {
+        server.replyAndClose("HTTP/1.1 500 Internal Server Error\r\n\r\nsome ", "body");
+        server.reply(false, "HTTP/1.1 204 No Content\r\n\r\n");
+        final HttpSender.Response response = sender.send(request("/write", "first"));
+        assertEquals(500, response.code());
+        assertEquals("some body", response.body());
+        assertEquals(204, sender.send(request("/write", "second")).code());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void pipelinedResponsesCompleteInOrder() throws Throwable {
+        server.holdReplies(3);
+        server.reply(false, "HTTP/1.1 204 No Content\r\n\r\nHTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n2HTTP/1.1 ");
+        server.reply(false, "");
+        server.reply(false, "200 OK\r\nContent-Length: 1\r\n\r\n3");
+        final List<CompletableFuture<HttpSender.Response>> futures = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            futures.add(sender.sendAsync(request("/write", "line " + i)));
+        }
+        assertEquals(204, futures.get(0).get(5, TimeUnit.SECONDS).code());
+        assertEquals("2", futures.get(1).get(5, TimeUnit.SECONDS).body());
+        assertEquals("3", futures.get(2).get(5, TimeUnit.SECONDS).body());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void connectionCloseSendsTheRestAgain() throws Throwable {
+        // the server waits for both requests, answers the first announcing the close and drops the second
+        server.holdReplies(2);
+        server.replyAndClose("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 5\r\n\r\nfirst");
+        server.reply(false, "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nsecond");
+        final CompletableFuture<HttpSender.Response> first = sender.sendAsync(request("/write", "1"));
+        final CompletableFuture<HttpSender.Response> second = sender.sendAsync(request("/write", "2"));
+        assertEquals("first", first.get(5, TimeUnit.SECONDS).body());
+        assertEquals("second", second.get(5, TimeUnit.SECONDS).body());
+        assertEquals(2, server.connections.get());
+        assertEquals(Collections.singletonList("POST /write 2"), server.dropped);
+        assertEquals(0, sender.getQueued(server.url("/write")));
+    }
+
+    @Test
+    public void sendGivesUpWithoutAnAnswer() throws Throwable {
+        sender.close();
+        sender = new AsyncHttpSender(200L, 300L, 1, 10);
+        final long started = System.nanoTime();
+        try {
+            sender.send(request("/write", "unanswered"));
+            fail();
+        } catch (SocketTimeoutException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 2000);
+        }
+    }
+
+    @Test
+    public void closeCompletesEverySubmittedRequest() throws Exception {
+        sender.close();
+        // nothing rejected for a full queue before reaching it
+        sender = new AsyncHttpSender(1000L, 2000L, 4, Integer.MAX_VALUE);
+        final List<CompletableFuture<HttpSender.Response>> futures = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(4);
+        final AtomicBoolean closed = new AtomicBoolean();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Thread thread = new Thread(() -> {
+                started.countDown();
+                // submitting across the close, some pass the running check just before it
+                for (int i = 0; !closed.get() || i % 1000 != 0; i++) {
+                    final CompletableFuture<HttpSender.Response> future = sender.sendAsync(request("/write", "r"));
+                    if (!future.isDone()) {
+                        futures.add(future);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        started.await();
+        Thread.sleep(50);
+        sender.close();
+        closed.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompletableFuture<HttpSender.Response> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException || e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+    }
+
+    private HttpSender.Request request(String path, String body) {
+        try {
+            return new HttpSender.Request(new URL(server.url(path)), body.getBytes(StandardCharsets.UTF_8),
+                    HttpSender.Method.POST, Collections.emptyMap());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Answers the requests of each connection in turn with the next scripted reply, unanswered without one.
+     */
+    private static final class ScriptedServer implements Closeable {
+        private final ServerSocket           socket;
+        private final Thread                 thread;
+        private final BlockingQueue<Reply>   replies    = new LinkedBlockingQueue<>();
+        private final AtomicInteger          connections = new AtomicInteger();
+        private final List<String>           requests   = Collections.synchronizedList(new ArrayList<>());
+        private final List<String>           dropped    = Collections.synchronizedList(new ArrayList<>());
+        private volatile int                 hold       = 1;
+
+        ScriptedServer() throws IOException {
+            socket = new ServerSocket(0, 8, InetAddress.getLoopbackAddress());
+            thread = new Thread(this::run, "scripted-http-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + path;
+        }
+
+        void reply(boolean close, String... fragments) {
+            replies.add(new Reply(close, fragments));
+        }
+
+        void replyAndClose(String... fragments) {
+            reply(true, fragments);
+        }
+
+        /**
+         * Reads as many requests before writing the first reply, so that they are pipelined.
+         */
+        void holdReplies(int requests) {
+            hold = requests;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            try {
+                thread.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            try {
+                while (!socket.isClosed()) {
+                    try (Socket connection = socket.accept()) {
+                        connections.incrementAndGet();
+                        serve(connection);
+                    } catch (IOException | InterruptedException e) {
+                        // next connection
+                    }
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+            }
+        }
+
+        private void serve(Socket connection) throws IOException, InterruptedException {
+            final InputStream in = connection.getInputStream();
+            final OutputStream out = connection.getOutputStream();
+            final List<String> read = new ArrayList<>();
+            while (true) {
+                while (read.size() < hold) {
+                    final String request = readRequest(in);
+                    if (request == null) {
+                        return;
+                    }
+                    read.add(request);
+                }
+                hold = 1;
+                final String request = read.remove(0);
+                requests.add(request);
+                final Reply reply = replies.poll();
+                if (reply == null) {
+                    // left unanswered, until the client gives up
+                    while (readRequest(in) != null) {
+                        continue;
+                    }
+                    return;
+                }
+                for (String fragment : reply.fragments) {
+                    out.write(fragment.getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    Thread.sleep(5);
+                }
+                if (reply.close) {
+                    dropped.addAll(read);
+                    // no reset for what the client sent meanwhile, wait for it to close too
+                    connection.shutdownOutput();
+                    while (readRequest(in) != null) {
+                        continue;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return {@code "<method> <path> <body>"}, {@code null} once the client closed.
+         */
+        private static String readRequest(InputStream in) throws IOException {
+            final ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int matched = 0;
+            while (matched < 4) {
+                final int b = in.read();
+                if (b < 0) {
+                    return null;
+                }
+                head.write(b);
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            final String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            int length = 0;
+            for (String line : lines) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    length = Integer.parseInt(line.substring(line.indexOf(':') + 1).trim());
+                }
+            }
+            final byte[] body = new byte[length];
+            for (int n = 0; n < length; ) {
+                final int r = in.read(body, n, length - n);
+                if (r < 0) {
+                    return null;
+                }
+                n += r;
+            }
+            final String[] status = lines[0].split(" ");
+            return status[0] + ' ' + status[1] + ' ' + new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Reply {
+        private final boolean  close;
+        private final String[] fragments;
+
+        Reply(boolean close, String[] fragments) {
+            this.close = close;
+            this.fragments = fragments;
+        }
+    }
+}
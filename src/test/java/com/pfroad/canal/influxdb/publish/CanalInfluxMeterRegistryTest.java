@@ -0,0 +1,20 @@
+package com.pfroad.canal.influxdb.publish;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CanalInfluxMeterRegistryTest {
+    private static final long STEP = 60000L;
+
+    @Test
+    public void firstPublishLandsATwentiethIntoTheNextStep() {
+        final long stepStart = 1000L * STEP;
+        for (long offset : new long[] {0L, 1L, STEP / 20 - 1, STEP / 20, STEP / 2, STEP - 1}) {
+            final long now = stepStart + offset;
+            final long first = now + CanalInfluxMeterRegistry.initialDelay(now, STEP);
+            assertEquals("step of a start " + offset + "ms into a step", stepStart + STEP, first - first % STEP);
+            assertEquals("offset of a start " + offset + "ms into a step", STEP / 20, first % STEP);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.pfroad.canal.influxdb.publish;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.LongTaskTimer;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.Statistic;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.core.instrument.util.DoubleFormat;
+import io.micrometer.influx.InfluxConfig;
+import io.micrometer.influx.InfluxMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The lines of the encoder against those {@link InfluxMeterRegistry} posts for the same meters.
+ */
+public class LineProtocolEncoderTest {
+    private static final Duration STEP = Duration.ofMinutes(1);
+
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder(TimeUnit.MILLISECONDS, 256);
+    private final Map<String, String> options = new HashMap<>();
+    private final MockClock           clock   = new MockClock();
+
+    private HttpServer server;
+    private byte[]     posted;
+    private String     postedEncoding;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4);
+        server.createContext("/write", (exchange) -> {
+            posted = read(exchange.getRequestBody());
+            postedEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        options.put("influx.uri", "http://127.0.0.1:" + server.getAddress().getPort());
+        options.put("influx.autoCreateDb", "false");
+        options.put("influx.enabled", "false");
+        options.put("influx.step", STEP.toString());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void writesWhatInfluxMeterRegistryWrites() throws IOException {
+        final ReferenceRegistry reference = reference(false);
+        register(reference);
+        clock.add(STEP);
+
+        final String expected = new String(reference.post(), StandardCharsets.UTF_8);
+        assertEquals(null, postedEncoding);
+        assertEquals(expected, encode(reference.getMeters(), false));
+        // every meter made it into the comparison, but the two left out for their NaN
+        assertEquals(reference.getMeters().size() - 2, expected.split("\n").length);
+    }
+
+    @Test
+    public void gzipFramesTheSameLines() throws IOException {
+        final ReferenceRegistry reference = reference(true);
+        register(reference);
+        for (int i = 0; i < 2000; i++) {
+            // past the flush threshold, deflated in several rounds
+            reference.counter("canal.bulk", "destination", "d" + i, "table", "t" + (i % 7)).increment(i);
+        }
+        clock.add(STEP);
+
+        final byte[] gzipped = reference.post();
+        assertEquals("gzip", postedEncoding);
+        final String expected = gunzip(gzipped);
+
+        final LineProtocolEncoder.Batch batch = encoder.encode(reference.getMeters(), clock.wallTime(), true);
+        try {
+            final byte[] encoded = batch.toByteArray();
+            assertTrue(batch.isGzip());
+            assertEquals(0x1f, encoded[0] & 0xff);
+            assertEquals(0x8b, encoded[1] & 0xff);
+            assertEquals(8, encoded[2]);
+            // the trailer holds the crc and the size, both checked by GZIPInputStream
+            final String lines = gunzip(encoded);
+            assertEquals(expected, lines);
+            assertEquals(lines.getBytes(StandardCharsets.UTF_8).length, batch.plainLength());
+            assertEquals(reference.getMeters().size() - 2, batch.lines());
+        } finally {
+            encoder.release(batch);
+        }
+        // a pooled batch starts afresh
+        assertEquals(expected, encode(reference.getMeters(), false));
+    }
+
+    @Test
+    public void timeIsRefusedAsATagKey() {
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final Counter ok = registry.counter("canal.ok");
+        final Counter time = registry.counter("canal.bad", "time", "now");
+        try {
+            encoder.encode(Arrays.asList(ok, time), 0L, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("'time' is an invalid tag key in InfluxDB", e.getMessage());
+        }
+        // the batch went back to the pool in a usable state
+        assertEquals("canal_ok,metric_type=counter value=0 " + clock.wallTime(),
+                encode(Collections.singletonList(ok), false));
+    }
+
+    @Test
+    public void formatsNumbersLikeDoubleFormat() {
+        final double[] holder = new double[1];
+        final Gauge gauge = Gauge.builder("g", holder, (h) -> h[0]).register(new SimpleMeterRegistry());
+        final double[] values = {
+                0, -0.0, 1, -1, 0.1, 0.1 + 0.2, 1.5, 2.5, 0.0000005, 0.0000015, 0.0000025, 0.00000049999, 2.5e-7,
+                -1e-9, 1e-300, 123.4567895, 1e12, 1e12 + 0.5, 123456789012.345678, 4.5e15 + 0.5, 9.3e18, 1e20,
+                Long.MAX_VALUE, Long.MIN_VALUE, -Long.MAX_VALUE, 0x1p53 + 2, Double.MAX_VALUE, -Double.MAX_VALUE,
+                Double.MIN_VALUE,
+        };
+        for (double v : values) {
+            assertFormatted(gauge, holder, v);
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            final double v;
+            switch (i % 4) {
+                case 0:
+                    v = random.nextDouble() * Math.pow(10, random.nextInt(40) - 10);
+                    break;
+                case 1:
+                    // on or around a sixth decimal tie
+                    v = (random.nextInt(1000000000) + 0.5) / 1e6 + (random.nextInt(3) - 1) * 1e-13;
+                    break;
+                case 2:
+                    v = Math.round(random.nextDouble() * 1e9) / 1e3;
+                    break;
+                default:
+                    v = Double.longBitsToDouble(random.nextLong());
+                    break;
+            }
+            if (Double.isFinite(v)) {
+                assertFormatted(gauge, holder, random.nextBoolean() ? v : -v);
+            }
+        }
+    }
+
+    private void assertFormatted(Gauge gauge, double[] holder, double value) {
+        holder[0] = value;
+        final String line = encode(Collections.singletonList(gauge), false);
+        final String field = line.substring(line.indexOf("value=") + 6, line.lastIndexOf(' '));
+        assertEquals(Double.toString(value), DoubleFormat.decimalOrNan(value), field);
+    }
+
+    private ReferenceRegistry reference(boolean gzip) {
+        options.put("influx.compressed", String.valueOf(gzip));
+        return new ReferenceRegistry(options::get, clock);
+    }
+
+    /**
+     * Every meter type, with names and tags needing escaping.
+     */
+    private void register(MeterRegistry registry) {
+        registry.counter("canal.instance.sink.rows", "destination", "example", "table", "db.t1").increment(1234);
+        registry.counter("canal.escaped", "a key", "a value", "k,ey", "v,alue", "k=ey", "v=alue",
+                "q\"uote", "v\"alue", "line", "a\nb", "unicode", "\u4e2d\u6587\ud83d\ude00").increment();
+        registry.counter("canal.blank", "empty", "", "tab", "\t", "space", " ", "kept", "yes").increment(2);
+        registry.counter("canal.trailing.dots..", "tag.", "v").increment(3);
+        registry.counter("canal.equals=name").increment(4);
+        Gauge.builder("canal.gauge.fraction", this, (t) -> 1234567890123.456).register(registry);
+        Gauge.builder("canal.gauge.tiny", this, (t) -> -0.0000004).register(registry);
+        Gauge.builder("canal.gauge.nan", this, (t) -> Double.NaN).register(registry);
+        TimeGauge.builder("canal.time.gauge", this, TimeUnit.SECONDS, (t) -> 1.5).register(registry);
+        FunctionCounter.builder("canal.function.counter", this, (t) -> 1e13 + 0.25).register(registry);
+        FunctionCounter.builder("canal.function.counter.nan", this, (t) -> Double.NaN).register(registry);
+
+        final Timer timer = Timer.builder("canal.timer").tag("packetType", "GET").register(registry);
+        timer.record(3, TimeUnit.MILLISECONDS);
+        timer.record(1500, TimeUnit.MICROSECONDS);
+        Timer.builder("canal.timer.empty").register(registry);
+        final DistributionSummary summary = DistributionSummary.builder("canal.summary").register(registry);
+        summary.record(0.125);
+        summary.record(7);
+        FunctionTimer.builder("canal.function.timer", this, (t) -> 3, (t) -> 10.5, TimeUnit.MILLISECONDS)
+                .register(registry);
+        FunctionTimer.builder("canal.function.timer.empty", this, (t) -> 0, (t) -> 0, TimeUnit.MILLISECONDS)
+                .register(registry);
+        final LongTaskTimer longTask = LongTaskTimer.builder("canal.long.task").register(registry);
+        longTask.start();
+        clock.add(2, TimeUnit.SECONDS);
+
+        final List<Measurement> measurements = Arrays.asList(
+                new Measurement(() -> 5.0, Statistic.TOTAL_TIME),
+                new Measurement(() -> 2.0, Statistic.ACTIVE_TASKS),
+                new Measurement(() -> Double.NaN, Statistic.MAX),
+                new Measurement(() -> 0.75, Statistic.VALUE));
+        Meter.builder("canal.custom", Meter.Type.OTHER, measurements).tag("destination", "example").register(registry);
+    }
+
+    private String encode(List<Meter> meters, boolean gzip) {
+        final LineProtocolEncoder.Batch batch = encoder.encode(meters, clock.wallTime(), gzip);
+        try {
+            return new String(batch.array(), 0, batch.length(), StandardCharsets.UTF_8);
+        } finally {
+            encoder.release(batch);
+        }
+    }
+
+    private static String gunzip(byte[] gzipped) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            return new String(read(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private final class ReferenceRegistry extends InfluxMeterRegistry {
+        ReferenceRegistry(InfluxConfig config, MockClock clock) {
+            super(config, clock);
+        }
+
+        byte[] post() {
+            posted = null;
+            publish();
+            if (posted == null) {
+                throw new AssertionError("nothing posted");
+            }
+            return posted;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.pfroad.canal.influxdb.publish;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsSpoolTest {
+    private static final String URL = "http://localhost:8086/write?db=canal";
+
+    /**
+     * Bytes of a record of {@link #URL} with a body of {@code bodyBytes}.
+     */
+    private static int recordBytes(int bodyBytes) {
+        return 4 + 1 + 2 + URL.length() + bodyBytes;
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MetricsSpool> spools = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (MetricsSpool spool : spools) {
+            spool.close();
+        }
+    }
+
+    private MetricsSpool open(File directory, long maxBytes, int segmentBytes) throws IOException {
+        final MetricsSpool spool = new MetricsSpool(directory, maxBytes, segmentBytes);
+        spools.add(spool);
+        return spool;
+    }
+
+    private static byte[] body(int i) {
+        return String.format("m,destination=d%03d value=%d", i, i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void replaysOldestFirst() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 4096);
+        assertTrue(spool.isEmpty());
+        assertNull(spool.peek());
+        long bytes = 0;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(spool.append(URL, body(i), i % 2 == 0 ? MetricsSpool.FLAG_GZIP : 0));
+            bytes += recordBytes(body(i).length);
+        }
+        assertEquals(100, spool.getPendingRecords());
+        assertEquals(bytes, spool.getPendingBytes());
+
+        for (int i = 0; i < 100; i++) {
+            final MetricsSpool.Record record = spool.peek();
+            assertEquals(URL, record.getUrl());
+            assertArrayEquals(body(i), record.getBody());
+            assertEquals(i % 2 == 0, record.isGzip());
+            // not committed, the same record again
+            assertArrayEquals(body(i), spool.peek().getBody());
+            spool.commit(record);
+        }
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.getPendingBytes());
+        assertNull(spool.peek());
+        assertEquals(100, spool.getAppendedRecords().get());
+        assertEquals(100, spool.getReplayedRecords().get());
+        // the consumed segments are deleted, only the one written to stays
+        assertEquals(1, segmentFiles().length);
+    }
+
+    @Test
+    public void replayMarksSurviveARestart() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 4096);
+        for (int i = 0; i < 5; i++) {
+            spool.append(URL, body(i), (byte) 0);
+        }
+        spool.commit(spool.peek());
+        spool.commit(spool.peek());
+        spool.close();
+
+        final MetricsSpool reopened = open(folder.getRoot(), 1 << 20, 4096);
+        assertEquals(3, reopened.getPendingRecords());
+        assertArrayEquals(body(2), reopened.peek().getBody());
+        // appends go after what was recovered
+        reopened.append(URL, body(5), (byte) 0);
+        for (int i = 2; i <= 5; i++) {
+            final MetricsSpool.Record record = reopened.peek();
+            assertArrayEquals(body(i), record.getBody());
+            reopened.commit(record);
+        }
+        assertTrue(reopened.isEmpty());
+    }
+
+    @Test
+    public void corruptTailIsTruncated() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 4096);
+        for (int i = 0; i < 3; i++) {
+            spool.append(URL, body(i), (byte) 0);
+        }
+        spool.close();
+
+        // a length running past the segment where the next record would start
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            file.seek(3 * recordBytes(body(0).length));
+            file.writeInt(1 << 20);
+        }
+
+        final MetricsSpool reopened = open(folder.getRoot(), 1 << 20, 4096);
+        assertEquals(3, reopened.getPendingRecords());
+        assertTrue(reopened.append(URL, body(3), (byte) 0));
+        for (int i = 0; i < 4; i++) {
+            final MetricsSpool.Record record = reopened.peek();
+            assertArrayEquals(body(i), record.getBody());
+            reopened.commit(record);
+        }
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void tornRecordIsZeroed() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 4096);
+        spool.append(URL, body(0), (byte) 0);
+        spool.close();
+
+        // a crash after the body of a longer record was written, but before its length, with bytes in that body
+        // reading as a record right where a shorter one appended after restart would end
+        final int start = recordBytes(body(0).length);
+        final byte[] ghost = "ghost".getBytes(StandardCharsets.UTF_8);
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            file.seek(start);
+            file.writeInt(0);
+            file.write(new byte[512]);
+            file.seek(start + recordBytes(body(1).length));
+            file.writeInt(recordBytes(ghost.length) - 4);
+            file.writeByte(0);
+            file.writeShort(URL.length());
+            file.write(URL.getBytes(StandardCharsets.UTF_8));
+            file.write(ghost);
+        }
+
+        final MetricsSpool reopened = open(folder.getRoot(), 1 << 20, 4096);
+        assertEquals(1, reopened.getPendingRecords());
+        reopened.commit(reopened.peek());
+        assertTrue(reopened.append(URL, body(1), (byte) 0));
+        final MetricsSpool.Record record = reopened.peek();
+        assertArrayEquals(body(1), record.getBody());
+        reopened.commit(record);
+        assertNull(reopened.peek());
+        assertTrue(reopened.isEmpty());
+    }
+
+    @Test
+    public void unreadableRecordIsSkipped() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 4096);
+        for (int i = 0; i < 3; i++) {
+            spool.append(URL, body(i), (byte) 0);
+        }
+        spool.close();
+
+        // an url longer than the record holding it
+        try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            file.seek(recordBytes(body(0).length) + 4 + 1);
+            file.writeShort(Short.MAX_VALUE);
+        }
+
+        final MetricsSpool reopened = open(folder.getRoot(), 1 << 20, 4096);
+        assertEquals(3, reopened.getPendingRecords());
+        for (int i : new int[] {0, 2}) {
+            final MetricsSpool.Record record = reopened.peek();
+            assertArrayEquals(body(i), record.getBody());
+            reopened.commit(record);
+        }
+        assertNull(reopened.peek());
+        assertTrue(reopened.isEmpty());
+        assertEquals(0, reopened.getPendingBytes());
+        assertEquals(1, reopened.getDroppedRecords().get());
+    }
+
+    @Test
+    public void oldestSegmentIsEvictedAtTheCap() throws IOException {
+        // two records per segment, two segments at most
+        final int segmentBytes = 2 * recordBytes(body(0).length);
+        final MetricsSpool spool = open(folder.getRoot(), 2L * segmentBytes, segmentBytes);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(spool.append(URL, body(i), (byte) 0));
+        }
+        assertEquals(2, spool.getEvictedRecords().get());
+        assertEquals(4, spool.getPendingRecords());
+        assertEquals(4 * recordBytes(body(0).length), spool.getPendingBytes());
+        assertEquals(2, segmentFiles().length);
+        for (int i = 2; i < 6; i++) {
+            final MetricsSpool.Record record = spool.peek();
+            assertArrayEquals(body(i), record.getBody());
+            spool.commit(record);
+        }
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void commitOfAnEvictedRecordIsIgnored() throws IOException {
+        final int segmentBytes = 2 * recordBytes(body(0).length);
+        final MetricsSpool spool = open(folder.getRoot(), 2L * segmentBytes, segmentBytes);
+        spool.append(URL, body(0), (byte) 0);
+        final MetricsSpool.Record evicted = spool.peek();
+        for (int i = 1; i < 6; i++) {
+            spool.append(URL, body(i), (byte) 0);
+        }
+        spool.commit(evicted);
+        assertEquals(4, spool.getPendingRecords());
+        assertEquals(0, spool.getReplayedRecords().get());
+        assertArrayEquals(body(2), spool.peek().getBody());
+    }
+
+    @Test
+    public void batchLargerThanASegmentIsDropped() throws IOException {
+        final MetricsSpool spool = open(folder.getRoot(), 1 << 20, 256);
+        assertFalse(spool.append(URL, new byte[256], (byte) 0));
+        assertEquals(1, spool.getDroppedRecords().get());
+        assertTrue(spool.isEmpty());
+    }
+
+    private File[] segmentFiles() {
+        final File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(".spool"));
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,189 @@
+package com.pfroad.canal.influxdb.publish;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.ipc.http.HttpSender;
+import io.micrometer.core.ipc.http.HttpUrlConnectionSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The spool in front of an influx stub answering what the test tells it to.
+ */
+public class SpoolingHttpSenderTest {
+    private static final long TIMEOUT_MILLIS = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger status   = new AtomicInteger(204);
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final List<String>  accepted = new ArrayList<>();
+    private final List<String>  encodings = new ArrayList<>();
+
+    private HttpServer          server;
+    private String              uri;
+    private MetricsSpool        spool;
+    private SpoolingHttpSender  sender;
+    private SpoolReplayer       replayer;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.createContext("/", (exchange) -> {
+            final byte[] body = read(exchange.getRequestBody());
+            attempts.incrementAndGet();
+            final int code = status.get();
+            if (code < 300) {
+                synchronized (accepted) {
+                    accepted.add(exchange.getRequestURI().getPath() + " " + new String(body, StandardCharsets.UTF_8));
+                    encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                }
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.start();
+        uri = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        spool = new MetricsSpool(folder.getRoot(), 1 << 20, 64 * 1024);
+        final HttpSender delegate = new HttpUrlConnectionSender(Duration.ofSeconds(1), Duration.ofSeconds(1));
+        sender = new SpoolingHttpSender(delegate, spool);
+        replayer = new SpoolReplayer(spool, delegate, "user", "password", 200);
+    }
+
+    @After
+    public void tearDown() {
+        replayer.stop();
+        spool.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void publishingOnlyAppends() throws Throwable {
+        status.set(503);
+        final HttpSender.Response response = write("batch-0", false);
+        assertEquals(SpoolingHttpSender.SPOOLED, response.code());
+        assertTrue(response.isSuccessful());
+        assertEquals(0, attempts.get());
+        assertEquals(1, spool.getPendingRecords());
+    }
+
+    @Test
+    public void replaysInOrderOnceInfluxRecovers() throws Throwable {
+        status.set(503);
+        sender.post(uri + "/query?q=CREATE+DATABASE+canal").send();
+        for (int i = 0; i < 5; i++) {
+            write("batch-" + i, false);
+        }
+        replayer.start();
+        await(() -> attempts.get() >= 3);
+        assertEquals(6, spool.getPendingRecords());
+        synchronized (accepted) {
+            assertTrue(accepted.isEmpty());
+        }
+
+        status.set(204);
+        await(spool::isEmpty);
+        final List<String> expected = new ArrayList<>();
+        expected.add("/query ");
+        for (int i = 0; i < 5; i++) {
+            expected.add("/write batch-" + i);
+        }
+        synchronized (accepted) {
+            assertEquals(expected, accepted);
+        }
+
+        // healthy, a new batch goes through the spool too
+        write("batch-5", false);
+        await(spool::isEmpty);
+        synchronized (accepted) {
+            assertEquals("/write batch-5", accepted.get(accepted.size() - 1));
+        }
+    }
+
+    @Test
+    public void rejectedBatchIsDiscarded() throws Throwable {
+        status.set(400);
+        write("bad", false);
+        replayer.start();
+        await(spool::isEmpty);
+        assertEquals(1, attempts.get());
+
+        status.set(204);
+        write("good", false);
+        await(spool::isEmpty);
+        synchronized (accepted) {
+            assertEquals("/write good", accepted.get(0));
+        }
+    }
+
+    @Test
+    public void unreadableBatchDoesNotBlockTheSpool() throws Throwable {
+        spool.append("not an url", "lost".getBytes(StandardCharsets.UTF_8), (byte) 0);
+        write("after", false);
+        replayer.start();
+        await(spool::isEmpty);
+        assertEquals(1, spool.getDroppedRecords().get());
+        synchronized (accepted) {
+            assertEquals("/write after", accepted.get(0));
+        }
+    }
+
+    @Test
+    public void gzipIsKeptAcrossTheSpool() throws Throwable {
+        write("zipped", true);
+        write("plain", false);
+        replayer.start();
+        await(spool::isEmpty);
+        synchronized (accepted) {
+            assertEquals("gzip", encodings.get(0));
+            assertEquals(null, encodings.get(1));
+        }
+    }
+
+    private HttpSender.Response write(String body, boolean gzip) throws Throwable {
+        final HttpSender.Request.Builder request = sender.post(uri + "/write?db=canal")
+                .withContent("text/plain; charset=utf-8", body.getBytes(StandardCharsets.UTF_8));
+        if (gzip) {
+            request.withHeader("Content-Encoding", "gzip");
+        }
+        return request.send();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}